@@ -0,0 +1,66 @@
+package com.classycode.andvault.benchmark;
+
+import com.classycode.andvault.CoreVault;
+import com.classycode.andvault.SoftwareKeyWrapper;
+import com.classycode.andvault.VaultException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of storing and reading a credential, by value size. The vault is unlocked
+ * and uses an in-memory storage, so this measures the encryption path only.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CredentialBenchmark {
+
+    @Param({"32", "1024", "32768", "1048576"})
+    public int valueSize;
+
+    private File directory;
+
+    private CoreVault vault;
+
+    private byte[] value;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = StorageBackend.createTempDirectory();
+        vault = new CoreVault(new SoftwareKeyWrapper(), new MemoryStorage(), directory);
+        vault.unlock(0);
+        value = new byte[valueSize];
+        new Random(42).nextBytes(value);
+        vault.storeCredential("read", value);
+    }
+
+    @TearDown
+    public void tearDown() {
+        vault.lock();
+        StorageBackend.delete(directory);
+    }
+
+    @Benchmark
+    public void storeCredential() throws VaultException {
+        vault.storeCredential("write", value);
+    }
+
+    @Benchmark
+    public byte[] getCredential() throws VaultException {
+        return vault.getCredential("read");
+    }
+}
@@ -0,0 +1,74 @@
+package com.classycode.andvault.benchmark;
+
+import com.classycode.andvault.CoreVault;
+import com.classycode.andvault.SoftwareKeyWrapper;
+import com.classycode.andvault.VaultStorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of listing the credential names, by vault size and storage backend.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CredentialNamesBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    @Param
+    public StorageBackend backend;
+
+    private File directory;
+
+    private VaultStorage storage;
+
+    private CoreVault vault;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = StorageBackend.createTempDirectory();
+        storage = backend.create(directory);
+        vault = new CoreVault(new SoftwareKeyWrapper(), storage, directory);
+        vault.unlock(0);
+        final Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < entries; i++) {
+            values.put("acct/" + i + "/token", new byte[64]);
+        }
+        vault.storeCredentials(values);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        vault.lock();
+        StorageBackend.close(storage);
+        StorageBackend.delete(directory);
+    }
+
+    @Benchmark
+    public List<String> getCredentialNames() {
+        return vault.getCredentialNames();
+    }
+
+    @Benchmark
+    public List<String> getCredentialNamesByPrefix() {
+        return vault.getCredentialNames("acct/1/");
+    }
+}
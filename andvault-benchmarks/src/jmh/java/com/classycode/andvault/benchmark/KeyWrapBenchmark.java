@@ -0,0 +1,78 @@
+package com.classycode.andvault.benchmark;
+
+import com.classycode.andvault.CoreVault;
+import com.classycode.andvault.SoftwareKeyWrapper;
+import com.classycode.andvault.VaultException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cost of wrapping and unwrapping the vault key, and of a read on a locked vault, which unwraps the
+ * key for every operation. Uses the software RSA stand-in for the Android KeyStore, so the numbers
+ * are a lower bound for the device.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KeyWrapBenchmark {
+
+    private SoftwareKeyWrapper keyWrapper;
+
+    private SecretKey key;
+
+    private byte[] wrappedKey;
+
+    private File directory;
+
+    private CoreVault lockedVault;
+
+    @Setup
+    public void setup() throws Exception {
+        keyWrapper = new SoftwareKeyWrapper();
+        final byte[] raw = new byte[CoreVault.KEY_LENGTH];
+        new SecureRandom().nextBytes(raw);
+        key = new SecretKeySpec(raw, "AES");
+        wrappedKey = keyWrapper.wrap(key);
+
+        directory = StorageBackend.createTempDirectory();
+        lockedVault = new CoreVault(keyWrapper, new MemoryStorage(), directory);
+        lockedVault.storeCredential("cred", new byte[32]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        StorageBackend.delete(directory);
+    }
+
+    @Benchmark
+    public byte[] wrap() throws GeneralSecurityException {
+        return keyWrapper.wrap(key);
+    }
+
+    @Benchmark
+    public SecretKey unwrap() throws GeneralSecurityException {
+        return keyWrapper.unwrap(wrappedKey);
+    }
+
+    @Benchmark
+    public byte[] getCredentialLocked() throws VaultException {
+        return lockedVault.getCredential("cred");
+    }
+}
@@ -0,0 +1,56 @@
+package com.classycode.andvault.benchmark;
+
+import com.classycode.andvault.VaultStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link VaultStorage} keeping everything in memory, to measure the vault without storage costs.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class MemoryStorage implements VaultStorage {
+
+    private final Map<String, byte[]> credentials = new ConcurrentHashMap<String, byte[]>();
+
+    private volatile byte[] key;
+
+    @Override
+    public List<String> getCredentialNames() {
+        return new ArrayList<String>(credentials.keySet());
+    }
+
+    @Override
+    public byte[] getCredential(String name) {
+        return credentials.get(name);
+    }
+
+    @Override
+    public void setCredential(String name, byte[] value) {
+        credentials.put(name, value);
+    }
+
+    @Override
+    public void removeCredential(String name) {
+        credentials.remove(name);
+    }
+
+    @Override
+    public void setKey(byte[] key) {
+        this.key = key;
+    }
+
+    @Override
+    public byte[] getKey() {
+        return key;
+    }
+
+    @Override
+    public void reset() {
+        credentials.clear();
+        key = null;
+    }
+}
@@ -0,0 +1,82 @@
+package com.classycode.andvault.benchmark;
+
+import com.classycode.andvault.CachingVaultStorage;
+import com.classycode.andvault.LogFileStorage;
+import com.classycode.andvault.PropertiesFileStorage;
+import com.classycode.andvault.VaultStorage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The {@link VaultStorage} implementations that run on the JVM, as benchmark parameter. The Android
+ * backends are measured on the device, see the instrumentation benchmarks of the library.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public enum StorageBackend {
+
+    MEMORY {
+        @Override
+        VaultStorage create(File directory) {
+            return new MemoryStorage();
+        }
+    },
+
+    /**
+     * Stand-in for the SharedPreferences based storage, with the same rewrite-on-write cost model.
+     */
+    PROPERTIES {
+        @Override
+        VaultStorage create(File directory) {
+            return new PropertiesFileStorage(new File(directory, "vault.properties"));
+        }
+    },
+
+    LOG_FILE {
+        @Override
+        VaultStorage create(File directory) throws IOException {
+            return new LogFileStorage(new File(directory, "vault.log"));
+        }
+    },
+
+    CACHING_PROPERTIES {
+        @Override
+        VaultStorage create(File directory) throws IOException {
+            return new CachingVaultStorage(PROPERTIES.create(directory), 16 * 1024 * 1024);
+        }
+    };
+
+    /**
+     * @param directory An empty directory for the storage's files
+     */
+    abstract VaultStorage create(File directory) throws IOException;
+
+    static void close(VaultStorage storage) throws IOException {
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+
+    /**
+     * @return A new empty temporary directory
+     */
+    static File createTempDirectory() throws IOException {
+        final File directory = File.createTempFile("andvault-benchmark", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
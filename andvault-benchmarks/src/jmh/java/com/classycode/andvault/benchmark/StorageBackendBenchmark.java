@@ -0,0 +1,89 @@
+package com.classycode.andvault.benchmark;
+
+import com.classycode.andvault.CoreVault;
+import com.classycode.andvault.SoftwareKeyWrapper;
+import com.classycode.andvault.VaultException;
+import com.classycode.andvault.VaultStorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same vault workload on every storage backend: reads and writes of single credentials in a vault
+ * of 1000 credentials.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StorageBackendBenchmark {
+
+    private static final int ENTRIES = 1000;
+
+    @Param
+    public StorageBackend backend;
+
+    @Param({"32", "4096"})
+    public int valueSize;
+
+    private File directory;
+
+    private VaultStorage storage;
+
+    private CoreVault vault;
+
+    private byte[] value;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = StorageBackend.createTempDirectory();
+        storage = backend.create(directory);
+        vault = new CoreVault(new SoftwareKeyWrapper(), storage, directory);
+        vault.unlock(0);
+        value = new byte[valueSize];
+        new Random(42).nextBytes(value);
+        final Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < ENTRIES; i++) {
+            values.put("cred" + i, value);
+        }
+        vault.storeCredentials(values);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        vault.lock();
+        StorageBackend.close(storage);
+        StorageBackend.delete(directory);
+    }
+
+    @Benchmark
+    public void storeCredential() throws VaultException {
+        vault.storeCredential("cred" + nextIndex(), value);
+    }
+
+    @Benchmark
+    public byte[] getCredential() throws VaultException {
+        return vault.getCredential("cred" + nextIndex());
+    }
+
+    private int nextIndex() {
+        next = (next + 1) % ENTRIES;
+        return next;
+    }
+}
@@ -0,0 +1,92 @@
+package com.classycode.andvault;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Standard Base64 (RFC 4648) without line breaks, as produced by {@code android.util.Base64} with the
+ * {@code NO_WRAP} flag. Used where the Android implementation is not available.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class Base64Codec {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * Maps a Base64 character to its 6 bit value, or -1 if it is not part of the alphabet.
+     */
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            DECODE_TABLE[ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    static String encode(byte[] value) {
+        final StringBuilder encoded = new StringBuilder((value.length + 2) / 3 * 4);
+        for (int i = 0; i < value.length; i += 3) {
+            final int remaining = value.length - i;
+            final int bits = (value[i] & 0xff) << 16
+                    | (remaining > 1 ? (value[i + 1] & 0xff) << 8 : 0)
+                    | (remaining > 2 ? value[i + 2] & 0xff : 0);
+            encoded.append(ALPHABET.charAt(bits >> 18 & 0x3f));
+            encoded.append(ALPHABET.charAt(bits >> 12 & 0x3f));
+            encoded.append(remaining > 1 ? ALPHABET.charAt(bits >> 6 & 0x3f) : '=');
+            encoded.append(remaining > 2 ? ALPHABET.charAt(bits & 0x3f) : '=');
+        }
+        return encoded.toString();
+    }
+
+    static byte[] decode(String encoded) {
+        final ByteBuffer decoded = ByteBuffer.allocate(getDecodedLength(encoded));
+        decode(encoded, decoded);
+        return decoded.array();
+    }
+
+    /**
+     * Decode the string straight into the buffer, without intermediate arrays.
+     *
+     * @return The decoded length. The buffer is left untouched if it has less room than that.
+     */
+    static int decode(String encoded, ByteBuffer dst) {
+        final int decodedLength = getDecodedLength(encoded);
+        if (decodedLength > dst.remaining()) {
+            return decodedLength;
+        }
+        final int length = getUnpaddedLength(encoded);
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = encoded.charAt(i);
+            final int value = c < DECODE_TABLE.length ? DECODE_TABLE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid Base64 character");
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                dst.put((byte) (bits >> bitCount));
+            }
+        }
+        return decodedLength;
+    }
+
+    private static int getDecodedLength(String encoded) {
+        return getUnpaddedLength(encoded) * 3 / 4;
+    }
+
+    private static int getUnpaddedLength(String encoded) {
+        int length = encoded.length();
+        while (length > 0 && encoded.charAt(length - 1) == '=') {
+            length--;
+        }
+        return length;
+    }
+}
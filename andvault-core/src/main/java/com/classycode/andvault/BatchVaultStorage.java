@@ -0,0 +1,43 @@
+package com.classycode.andvault;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link VaultStorage} that can read and write several credentials at once. Batch writes are
+ * atomic: either all changes of a batch are persisted, or none of them.
+ * <p/>
+ * Implementing this interface is optional, {@link CoreVault} falls back to the single-credential methods
+ * of {@link VaultStorage} (without the atomicity guarantee) for storages that don't implement it.
+ * <p/>
+ * Exception: a {@link CachingVaultStorage} in {@link CachingVaultStorage.WriteMode#WRITE_BACK} mode only
+ * buffers batch writes. They return true as soon as they are buffered and are not atomic, see there.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface BatchVaultStorage extends VaultStorage {
+
+    /**
+     * Return the stored values for the credentials with the given names.
+     *
+     * @param names The names of the credentials.
+     * @return The values by credential name. Credentials not contained in the storage are omitted.
+     */
+    Map<String, byte[]> getCredentials(Collection<String> names);
+
+    /**
+     * Store the credentials in one atomic write.
+     *
+     * @param values The (encrypted) values by credential name
+     * @return True if all values were written to persistent storage, false if none were.
+     */
+    boolean setCredentials(Map<String, byte[]> values);
+
+    /**
+     * Remove the given credentials in one atomic write.
+     *
+     * @param names The names of the credentials.
+     * @return True if the credentials were removed from persistent storage, false if none were.
+     */
+    boolean removeCredentials(Collection<String> names);
+}
@@ -0,0 +1,530 @@
+package com.classycode.andvault;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * File-backed storage for credentials that are too large to be handled in memory. Each credential is
+ * stored in its own file, encrypted as it is streamed, so memory use does not depend on its size.
+ * <p/>
+ * Files are named after a hash of the credential name. A new value is written to a temporary file
+ * which replaces the existing one only when the stream is closed, so readers never see a partially
+ * written value.
+ * <p/>
+ * All files start with a magic number (4 bytes) and a format version (1 byte). Values are written in
+ * the chunked format (version 2):
+ * <ul>
+ * <li>chunk size (4 bytes), nonce prefix ({@link #NONCE_PREFIX_LENGTH} bytes)</li>
+ * <li>the value, split into chunks of the chunk size (the last one may be shorter), each encrypted
+ * with AES/GCM/NoPadding and followed by its authentication tag</li>
+ * </ul>
+ * The IV of a chunk is the nonce prefix, followed by the chunk index (4 bytes) and a flag marking the
+ * last chunk (1 byte). Every chunk can thus be located, decrypted and authenticated on its own, and
+ * chunks cannot be reordered, dropped or truncated without failing authentication.
+ * <p/>
+ * Files in the original streaming format (version 1, encrypted with AES/CBC/PKCS5Padding) are not
+ * authenticated and are rejected.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class BlobStore {
+
+    private static final int MAGIC = 0x41564253; // "AVBS"
+
+    private static final int VERSION_CHUNKED = 2;
+
+    /**
+     * Plaintext bytes per chunk. Small enough that a positional read of a few kilobytes does not
+     * decrypt much more than it returns.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int NONCE_PREFIX_LENGTH = 7;
+
+    private static final int CHUNKED_HEADER_LENGTH = 4 + 1 + 4 + NONCE_PREFIX_LENGTH;
+
+    private static final String BLOB_SUFFIX = ".blob";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Ciphers for positional reads, which complete within a single call.
+     */
+    private static final CipherPool CHUNK_CIPHERS = CipherPool.create("vault-chunk", GcmParameters.TRANSFORMATION);
+
+    private final File directory;
+
+    private final int chunkSize;
+
+    private final SecureRandom random = new SecureRandom();
+
+    BlobStore(File directory) {
+        this(directory, DEFAULT_CHUNK_SIZE);
+    }
+
+    BlobStore(File directory, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        this.directory = directory;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Open a stream encrypting a new value for the named credential. The existing value, if any, is
+     * replaced when the stream is closed. The stream encrypts with its own copy of the key, which is
+     * wiped when it is closed, so the key passed in may be wiped while the stream is in use.
+     */
+    OutputStream openOutputStream(String name, SecretKey key) throws IOException, GeneralSecurityException {
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        random.nextBytes(noncePrefix);
+        // streams outlive this call, so they get their own cipher instead of a pooled one
+        final Cipher cipher = Cipher.getInstance(GcmParameters.TRANSFORMATION);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create blob directory " + directory);
+        }
+        final File target = getFile(name);
+        final File temp = File.createTempFile(target.getName(), TEMP_SUFFIX, directory);
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(CHUNKED_HEADER_LENGTH);
+            header.putInt(MAGIC).put((byte) VERSION_CHUNKED).putInt(chunkSize).put(noncePrefix);
+            fileOut.write(header.array());
+        } catch (IOException e) {
+            fileOut.close();
+            temp.delete();
+            throw e;
+        }
+        return new ChunkedOutputStream(cipher, copyKey(key), noncePrefix, chunkSize, fileOut, temp, target);
+    }
+
+    /**
+     * Open a stream decrypting the value of the named credential. Like the output stream, it decrypts
+     * with its own copy of the key, wiped when it is closed.
+     *
+     * @return The stream, or null if there is no value for the credential
+     */
+    InputStream openInputStream(String name, SecretKey key) throws IOException, GeneralSecurityException {
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(getFile(name), "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            checkVersion(file, name);
+            return new ChunkedInputStream(new ChunkedBlob(file), Cipher.getInstance(GcmParameters.TRANSFORMATION), copyKey(key));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (GeneralSecurityException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt part of the value of the named credential. Only the chunks covering the requested range
+     * are read and decrypted.
+     *
+     * @param offset The offset in the (plaintext) value to start reading at
+     * @param dst    The buffer to read into, up to its remaining bytes are read
+     * @return The number of bytes read, or -1 if there is no value for the credential or the offset is
+     * at or beyond its end
+     */
+    int read(String name, SecretKey key, long offset, ByteBuffer dst) throws IOException, GeneralSecurityException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(getFile(name), "r");
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        try {
+            checkVersion(file, name);
+            final ChunkedBlob blob = new ChunkedBlob(file);
+            if (offset >= blob.length) {
+                return -1;
+            }
+            final Cipher cipher = CHUNK_CIPHERS.get();
+            final byte[] plaintext = new byte[blob.chunkSize];
+            final int length = (int) Math.min(dst.remaining(), blob.length - offset);
+            int read = 0;
+            try {
+                while (read < length) {
+                    final long position = offset + read;
+                    final int index = (int) (position / blob.chunkSize);
+                    final int chunkOffset = (int) (position % blob.chunkSize);
+                    final int chunkLength = blob.decryptChunk(cipher, key, index, plaintext);
+                    final int count = Math.min(chunkLength - chunkOffset, length - read);
+                    dst.put(plaintext, chunkOffset, count);
+                    read += count;
+                }
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+            return read;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return True if there is a value for the named credential.
+     */
+    boolean exists(String name) {
+        return getFile(name).isFile();
+    }
+
+    /**
+     * @return True if there are no values.
+     */
+    boolean isEmpty() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(BLOB_SUFFIX)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the value of the named credential.
+     */
+    void remove(String name) {
+        getFile(name).delete();
+    }
+
+    /**
+     * Remove all values, including leftovers of streams that were never closed.
+     */
+    void reset() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String name) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Credential name must not be null or empty");
+        }
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(name.getBytes("UTF-8"));
+            final StringBuilder fileName = new StringBuilder(hash.length * 2 + BLOB_SUFFIX.length());
+            for (byte b : hash) {
+                fileName.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, fileName.append(BLOB_SUFFIX).toString());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // SHA-256 is always available
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e); // should never happen
+        }
+    }
+
+    /**
+     * Check the magic number and the format version, leaving the file positioned after the version.
+     */
+    /**
+     * @return A copy of the key for a stream, which may outlive the key it was opened with
+     */
+    private static VaultSecretKey copyKey(SecretKey key) {
+        final byte[] encoded = key.getEncoded();
+        try {
+            return new VaultSecretKey(encoded, key.getAlgorithm());
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    private static void checkVersion(RandomAccessFile file, String name) throws IOException {
+        if (file.readInt() != MAGIC) {
+            throw new IOException("Not a vault blob: " + name);
+        }
+        final int version = file.readUnsignedByte();
+        if (version != VERSION_CHUNKED) {
+            throw new IOException("Unsupported vault blob version " + version);
+        }
+    }
+
+    private static void initChunkCipher(Cipher cipher, int mode, SecretKey key, byte[] noncePrefix, int index, boolean last) throws GeneralSecurityException {
+        final byte[] iv = new byte[GcmParameters.IV_LENGTH];
+        System.arraycopy(noncePrefix, 0, iv, 0, NONCE_PREFIX_LENGTH);
+        iv[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+        iv[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        iv[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        iv[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+        iv[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+        cipher.init(mode, key, GcmParameters.create(iv));
+    }
+
+    /**
+     * An open file in the chunked format, with its header parsed.
+     */
+    private static final class ChunkedBlob {
+
+        final RandomAccessFile file;
+
+        final int chunkSize;
+
+        /**
+         * Length of the plaintext value.
+         */
+        final long length;
+
+        final int chunkCount;
+
+        private final FileChannel channel;
+
+        private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+
+        private final ByteBuffer ciphertext;
+
+        /**
+         * @param file The file, positioned right after the version
+         */
+        ChunkedBlob(RandomAccessFile file) throws IOException {
+            this.file = file;
+            this.channel = file.getChannel();
+            chunkSize = file.readInt();
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk size " + chunkSize);
+            }
+            file.readFully(noncePrefix);
+            final long stored = file.length() - CHUNKED_HEADER_LENGTH;
+            final long storedChunkSize = (long) chunkSize + GcmParameters.TAG_LENGTH;
+            final long count = (stored + storedChunkSize - 1) / storedChunkSize;
+            if (count == 0 || count > Integer.MAX_VALUE || stored - (count - 1) * storedChunkSize < GcmParameters.TAG_LENGTH) {
+                throw new IOException("Truncated vault blob");
+            }
+            chunkCount = (int) count;
+            length = stored - count * GcmParameters.TAG_LENGTH;
+            ciphertext = ByteBuffer.allocate(chunkSize + GcmParameters.TAG_LENGTH);
+        }
+
+        /**
+         * Read, authenticate and decrypt a single chunk.
+         *
+         * @param plaintext Receives the decrypted chunk, must hold at least {@link #chunkSize} bytes
+         * @return The number of plaintext bytes in the chunk
+         */
+        int decryptChunk(Cipher cipher, SecretKey key, int index, byte[] plaintext) throws IOException, GeneralSecurityException {
+            final boolean last = index == chunkCount - 1;
+            final long position = CHUNKED_HEADER_LENGTH + (long) index * (chunkSize + GcmParameters.TAG_LENGTH);
+            ciphertext.clear();
+            if (last) {
+                ciphertext.limit((int) (length - (long) index * chunkSize) + GcmParameters.TAG_LENGTH);
+            }
+            while (ciphertext.hasRemaining()) {
+                if (channel.read(ciphertext, position + ciphertext.position()) == -1) {
+                    throw new EOFException("Truncated vault blob");
+                }
+            }
+            initChunkCipher(cipher, Cipher.DECRYPT_MODE, key, noncePrefix, index, last);
+            return cipher.doFinal(ciphertext.array(), 0, ciphertext.limit(), plaintext, 0);
+        }
+    }
+
+    /**
+     * Decrypts a file in the chunked format one chunk at a time.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final ChunkedBlob blob;
+
+        private final Cipher cipher;
+
+        private final VaultSecretKey key;
+
+        private final byte[] chunk;
+
+        private int nextIndex;
+
+        private int chunkLength;
+
+        private int chunkPosition;
+
+        private boolean closed;
+
+        ChunkedInputStream(ChunkedBlob blob, Cipher cipher, VaultSecretKey key) {
+            this.blob = blob;
+            this.cipher = cipher;
+            this.key = key;
+            this.chunk = new byte[blob.chunkSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (chunkPosition == chunkLength) {
+                if (nextIndex == blob.chunkCount) {
+                    return -1;
+                }
+                try {
+                    chunkLength = blob.decryptChunk(cipher, key, nextIndex++, chunk);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Could not decrypt credential", e);
+                }
+                chunkPosition = 0;
+            }
+            final int count = Math.min(len, chunkLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, b, off, count);
+            chunkPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunkLength - chunkPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            Arrays.fill(chunk, (byte) 0);
+            key.wipe();
+            blob.file.close();
+        }
+    }
+
+    /**
+     * Encrypts to a temporary file one chunk at a time and moves the file into place when closed.
+     * <p/>
+     * A full chunk is only written once more data follows, since the last chunk is encrypted
+     * differently. A value that is a multiple of the chunk size thus ends with a full last chunk, an
+     * empty value consists of an empty last chunk.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+
+        private final Cipher cipher;
+
+        private final VaultSecretKey key;
+
+        private final byte[] noncePrefix;
+
+        private final byte[] chunk;
+
+        private final byte[] ciphertext;
+
+        private final FileOutputStream fileOut;
+
+        private final File temp;
+
+        private final File target;
+
+        private int chunkLength;
+
+        private int index;
+
+        private boolean closed;
+
+        ChunkedOutputStream(Cipher cipher, VaultSecretKey key, byte[] noncePrefix, int chunkSize, FileOutputStream fileOut, File temp, File target) {
+            this.cipher = cipher;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.chunk = new byte[chunkSize];
+            this.ciphertext = new byte[chunkSize + GcmParameters.TAG_LENGTH];
+            this.fileOut = fileOut;
+            this.temp = temp;
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                if (chunkLength == chunk.length) {
+                    writeChunk(false);
+                }
+                final int count = Math.min(len, chunk.length - chunkLength);
+                System.arraycopy(b, off, chunk, chunkLength, count);
+                chunkLength += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            if (index == Integer.MAX_VALUE) {
+                throw new IOException("Credential too large");
+            }
+            try {
+                initChunkCipher(cipher, Cipher.ENCRYPT_MODE, key, noncePrefix, index++, last);
+                final int length = cipher.doFinal(chunk, 0, chunkLength, ciphertext, 0);
+                fileOut.write(ciphertext, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt credential", e);
+            }
+            chunkLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean committed = false;
+            try {
+                writeChunk(true);
+                fileOut.getFD().sync();
+                fileOut.close();
+                committed = temp.renameTo(target);
+                if (!committed) {
+                    throw new IOException("Could not replace " + target);
+                }
+            } finally {
+                fileOut.close();
+                if (!committed) {
+                    temp.delete();
+                }
+                Arrays.fill(chunk, (byte) 0);
+                key.wipe();
+            }
+        }
+    }
+}
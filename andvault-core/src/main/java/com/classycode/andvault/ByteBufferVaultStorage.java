@@ -0,0 +1,34 @@
+package com.classycode.andvault;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link VaultStorage} that can read and write credentials from and to caller-provided buffers,
+ * without allocating intermediate arrays or strings.
+ * <p/>
+ * Implementing this interface is optional, {@link CoreVault} falls back to the array-based methods of
+ * {@link VaultStorage} for storages that don't implement it.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface ByteBufferVaultStorage extends VaultStorage {
+
+    /**
+     * Copy the stored value for the credential with the given name into the buffer, starting at its
+     * position. If the buffer has enough room, its position is advanced by the length of the value.
+     * Otherwise, the buffer is left untouched and the caller may retry with a larger buffer.
+     *
+     * @param name The name of the credential.
+     * @param dst  The buffer to copy the value into
+     * @return The length of the value, or -1, if the storage does not contain the credential
+     */
+    int getCredential(String name, ByteBuffer dst);
+
+    /**
+     * Store the credential. The buffer's remaining bytes are stored, its position is advanced to its limit.
+     *
+     * @param name  The name of the credential.
+     * @param value The (encrypted) value of the credential
+     */
+    void setCredential(String name, ByteBuffer value);
+}
@@ -0,0 +1,730 @@
+package com.classycode.andvault;
+
+import java.io.Flushable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link VaultStorage} decorator that keeps the stored (encrypted) values of another storage in
+ * memory, so repeated reads don't go to disk. Since only encrypted values are cached, this does not
+ * weaken the protection of the credentials, unlike {@link CoreVault#enablePlaintextCache(int, long, long)}.
+ * <p/>
+ * The cache is bounded by the total size of the cached names and values; the least recently used
+ * entries are evicted first. Names that are not in the storage are cached as well, so repeated
+ * lookups of missing credentials don't go to disk either. The list of credential names is loaded
+ * once and then kept up to date with every write.
+ * <p/>
+ * Writes are either passed on to the wrapped storage right away ({@link WriteMode#WRITE_THROUGH}), or
+ * collected and written in the background ({@link WriteMode#WRITE_BACK}), in which case batch writes
+ * are not atomic and report success before they are persisted. The wrapped vault key is always written
+ * through, and so is metadata (see {@link MetadataVaultStorage}), which is only supported if the
+ * wrapped storage supports it. Batch reads and writes go to the wrapped storage as batches if it
+ * supports them (see {@link BatchVaultStorage}), and pages of names are listed by its index if it has one
+ * (see {@link IndexedVaultStorage}).
+ * <p/>
+ * The wrapped storage must not be modified other than through this decorator while it is in use.
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class CachingVaultStorage implements BatchVaultStorage, ByteBufferVaultStorage, IndexedVaultStorage, MetadataVaultStorage, Flushable {
+
+    /**
+     * Controls when credential writes reach the wrapped storage.
+     */
+    public enum WriteMode {
+
+        /**
+         * Every write is passed on to the wrapped storage before the call returns.
+         */
+        WRITE_THROUGH,
+
+        /**
+         * Writes only update the cache and are passed on to the wrapped storage in the background, after
+         * the flush delay has passed. Changes that have not been flushed yet are lost if the process dies.
+         * Call {@link #flush()} to write them explicitly.
+         * <p/>
+         * Batch writes are not atomic in this mode: they return true once buffered, before anything is
+         * persisted. A flush writes all buffered values in one batch and all buffered removals in another,
+         * so a flush interrupted between the two persists only the values.
+         */
+        WRITE_BACK
+    }
+
+    /**
+     * Default time after which buffered writes are flushed in {@link WriteMode#WRITE_BACK} mode.
+     */
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 1000;
+
+    /**
+     * Marks cached names that are not in the storage, and buffered removals. Compared by identity.
+     */
+    private static final byte[] ABSENT = new byte[0];
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new VaultExecutors.NamedThreadFactory("andvault-cache-flush"));
+
+    private final VaultStorage delegate;
+
+    private final long maxBytes;
+
+    private final WriteMode writeMode;
+
+    private final long flushDelayMillis;
+
+    /**
+     * Serializes flushes, so buffered changes reach the wrapped storage in order.
+     */
+    private final Object flushLock = new Object();
+
+    // the following fields are guarded by this
+
+    /**
+     * Cached values in access order, the least recently used first.
+     */
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private long cachedBytes;
+
+    /**
+     * Changes not yet written to the wrapped storage, {@link #ABSENT} for removals.
+     */
+    private final Map<String, byte[]> dirty = new LinkedHashMap<String, byte[]>();
+
+    private long dirtyBytes;
+
+    /**
+     * Incremented on every write, so a value read from the wrapped storage concurrently with a write
+     * is not cached.
+     */
+    private long version;
+
+    private Set<String> names;
+
+    private byte[] key;
+
+    private boolean keyLoaded;
+
+    private ScheduledFuture<?> flushTask;
+
+    /**
+     * The cookie of the trace section of the scheduled flush.
+     */
+    private int flushTraceCookie;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Wrap the storage, writing through.
+     *
+     * @param delegate The storage to cache
+     * @param maxBytes The maximum total size of the cached names and values, in bytes
+     */
+    public CachingVaultStorage(VaultStorage delegate, long maxBytes) {
+        this(delegate, maxBytes, WriteMode.WRITE_THROUGH, DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * @param delegate         The storage to cache
+     * @param maxBytes         The maximum total size of the cached names and values, in bytes. In
+     *                         {@link WriteMode#WRITE_BACK} mode, buffered changes are flushed
+     *                         immediately once they exceed this size as well.
+     * @param writeMode        When writes reach the wrapped storage
+     * @param flushDelayMillis The time after which buffered writes are flushed, only used with
+     *                         {@link WriteMode#WRITE_BACK}
+     */
+    public CachingVaultStorage(VaultStorage delegate, long maxBytes, WriteMode writeMode, long flushDelayMillis) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        if (flushDelayMillis < 0) {
+            throw new IllegalArgumentException("Flush delay must not be negative");
+        }
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.writeMode = writeMode;
+        this.flushDelayMillis = flushDelayMillis;
+    }
+
+    /**
+     * @return The wrapped storage.
+     */
+    public VaultStorage getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return The write mode.
+     */
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * @return The number of reads that were served from memory.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return The number of reads that went to the wrapped storage.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return The total size of the cached names and values in bytes.
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    @Override
+    public synchronized List<String> getCredentialNames() {
+        // loaded while holding the lock: concurrent write-through writes update the set after
+        // writing, which is idempotent whether or not the loaded list includes their change
+        if (names == null) {
+            names = new LinkedHashSet<String>(delegate.getCredentialNames());
+            for (Map.Entry<String, byte[]> change : dirty.entrySet()) {
+                if (change.getValue() == ABSENT) {
+                    names.remove(change.getKey());
+                } else {
+                    names.add(change.getKey());
+                }
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Served by the index of the wrapped storage if it has one and no changes are buffered, otherwise
+     * by filtering and sorting the names known to this storage.
+     */
+    @Override
+    public List<String> getCredentialNames(String prefix, String startAfter, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if (delegate instanceof IndexedVaultStorage) {
+            final boolean buffered;
+            synchronized (this) {
+                buffered = !dirty.isEmpty();
+            }
+            if (!buffered) {
+                return ((IndexedVaultStorage) delegate).getCredentialNames(prefix, startAfter, limit);
+            }
+        }
+        final List<String> names = new ArrayList<String>();
+        for (String name : getCredentialNames()) {
+            if (name.startsWith(prefix) && (startAfter == null || name.compareTo(startAfter) > 0)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names.size() > limit ? new ArrayList<String>(names.subList(0, limit)) : names;
+    }
+
+    @Override
+    public byte[] getCredential(String name) {
+        final long readVersion;
+        synchronized (this) {
+            final byte[] value = lookup(name);
+            if (value != null) {
+                return value == ABSENT ? null : value.clone();
+            }
+            readVersion = version;
+        }
+        return load(name, readVersion);
+    }
+
+    /**
+     * Copies cached values into the buffer without allocating.
+     */
+    @Override
+    public int getCredential(String name, ByteBuffer dst) {
+        final long readVersion;
+        synchronized (this) {
+            final byte[] value = lookup(name);
+            if (value != null) {
+                return copy(value, dst);
+            }
+            readVersion = version;
+        }
+        final byte[] value = load(name, readVersion);
+        return value == null ? -1 : copy(value, dst);
+    }
+
+    @Override
+    public Map<String, byte[]> getCredentials(Collection<String> names) {
+        final Map<String, byte[]> credentials = new LinkedHashMap<String, byte[]>(names.size() * 2);
+        final List<String> uncachedNames = new ArrayList<String>();
+        final long readVersion;
+        synchronized (this) {
+            for (String name : names) {
+                final byte[] value = lookup(name);
+                if (value == null) {
+                    uncachedNames.add(name);
+                } else if (value != ABSENT) {
+                    credentials.put(name, value.clone());
+                }
+            }
+            readVersion = version;
+        }
+        if (uncachedNames.isEmpty()) {
+            return credentials;
+        }
+        final Map<String, byte[]> loaded;
+        if (delegate instanceof BatchVaultStorage) {
+            loaded = ((BatchVaultStorage) delegate).getCredentials(uncachedNames);
+        } else {
+            loaded = new LinkedHashMap<String, byte[]>(uncachedNames.size() * 2);
+            for (String name : uncachedNames) {
+                final byte[] value = delegate.getCredential(name);
+                if (value != null) {
+                    loaded.put(name, value);
+                }
+            }
+        }
+        synchronized (this) {
+            if (readVersion == version) {
+                for (String name : uncachedNames) {
+                    final byte[] value = loaded.get(name);
+                    cachePut(name, value == null ? ABSENT : value.clone());
+                }
+            }
+        }
+        credentials.putAll(loaded);
+        return credentials;
+    }
+
+    @Override
+    public void setCredential(String name, byte[] value) {
+        checkCredentialName(name);
+        if (writeMode == WriteMode.WRITE_BACK) {
+            buffer(name, value.clone());
+            return;
+        }
+        boolean written = false;
+        try {
+            delegate.setCredential(name, value);
+            written = true;
+        } finally {
+            synchronized (this) {
+                version++;
+                if (written) {
+                    cachePut(name, value.clone());
+                    if (names != null) {
+                        names.add(name);
+                    }
+                } else {
+                    cacheRemove(name);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setCredential(String name, ByteBuffer value) {
+        final byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        setCredential(name, bytes);
+    }
+
+    /**
+     * In {@link WriteMode#WRITE_BACK} mode, the values are only buffered and true is returned right away,
+     * see {@link WriteMode#WRITE_BACK}.
+     */
+    @Override
+    public boolean setCredentials(Map<String, byte[]> values) {
+        for (String name : values.keySet()) {
+            checkCredentialName(name);
+        }
+        if (writeMode == WriteMode.WRITE_BACK) {
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                buffer(entry.getKey(), entry.getValue().clone());
+            }
+            return true;
+        }
+        boolean written = false;
+        try {
+            written = writeSets(values);
+            return written;
+        } finally {
+            synchronized (this) {
+                version++;
+                for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                    if (written) {
+                        cachePut(entry.getKey(), entry.getValue().clone());
+                        if (names != null) {
+                            names.add(entry.getKey());
+                        }
+                    } else {
+                        cacheRemove(entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeCredential(String name) {
+        if (writeMode == WriteMode.WRITE_BACK) {
+            buffer(name, ABSENT);
+            return;
+        }
+        boolean written = false;
+        try {
+            delegate.removeCredential(name);
+            written = true;
+        } finally {
+            synchronized (this) {
+                version++;
+                if (written) {
+                    cachePut(name, ABSENT);
+                    if (names != null) {
+                        names.remove(name);
+                    }
+                } else {
+                    cacheRemove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * In {@link WriteMode#WRITE_BACK} mode, the removals are only buffered and true is returned right
+     * away, see {@link WriteMode#WRITE_BACK}.
+     */
+    @Override
+    public boolean removeCredentials(Collection<String> names) {
+        if (writeMode == WriteMode.WRITE_BACK) {
+            for (String name : names) {
+                buffer(name, ABSENT);
+            }
+            return true;
+        }
+        boolean written = false;
+        try {
+            written = writeRemovals(names);
+            return written;
+        } finally {
+            synchronized (this) {
+                version++;
+                for (String name : names) {
+                    if (written) {
+                        cachePut(name, ABSENT);
+                        if (this.names != null) {
+                            this.names.remove(name);
+                        }
+                    } else {
+                        cacheRemove(name);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setKey(byte[] key) {
+        // the key must never be lost, write it after any buffered credential writes
+        flush();
+        boolean written = false;
+        try {
+            delegate.setKey(key);
+            written = true;
+        } finally {
+            synchronized (this) {
+                this.key = written ? key.clone() : null;
+                keyLoaded = written;
+            }
+        }
+    }
+
+    @Override
+    public synchronized byte[] getKey() {
+        if (!keyLoaded) {
+            key = delegate.getKey();
+            keyLoaded = true;
+        }
+        return key == null ? null : key.clone();
+    }
+
+    /**
+     * @return True if the wrapped storage supports metadata. If it does not, metadata is never stored.
+     */
+    public boolean supportsMetadata() {
+        return delegate instanceof MetadataVaultStorage;
+    }
+
+    /**
+     * @return The value from the wrapped storage, or null if it does not support metadata
+     */
+    @Override
+    public byte[] getMetadata(String name) {
+        return delegate instanceof MetadataVaultStorage ? ((MetadataVaultStorage) delegate).getMetadata(name) : null;
+    }
+
+    /**
+     * @return False if the wrapped storage does not support metadata
+     */
+    @Override
+    public boolean setMetadata(String name, byte[] value) {
+        if (!(delegate instanceof MetadataVaultStorage)) {
+            return false;
+        }
+        // metadata may describe the credentials, write it after any buffered credential writes
+        flush();
+        return ((MetadataVaultStorage) delegate).setMetadata(name, value);
+    }
+
+    @Override
+    public void reset() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                version++;
+                cancelScheduledFlush();
+                dirty.clear();
+                dirtyBytes = 0;
+                cache.clear();
+                cachedBytes = 0;
+                names = null;
+                key = null;
+                keyLoaded = false;
+            }
+            delegate.reset();
+        }
+    }
+
+    /**
+     * Write all buffered changes to the wrapped storage. Only needed with {@link WriteMode#WRITE_BACK}.
+     *
+     * @throws IllegalStateException The changes could not be written, they remain buffered
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            final Map<String, byte[]> changes;
+            synchronized (this) {
+                cancelScheduledFlush();
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                changes = new LinkedHashMap<String, byte[]>(dirty);
+            }
+            final Map<String, byte[]> sets = new LinkedHashMap<String, byte[]>(changes.size() * 2);
+            final List<String> removals = new ArrayList<String>();
+            for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                if (change.getValue() == ABSENT) {
+                    removals.add(change.getKey());
+                } else {
+                    sets.put(change.getKey(), change.getValue());
+                }
+            }
+            boolean written = false;
+            try {
+                written = (sets.isEmpty() || writeSets(sets)) && (removals.isEmpty() || writeRemovals(removals));
+            } finally {
+                if (!written) {
+                    synchronized (this) {
+                        scheduleFlush(); // retry later, the changes stay buffered
+                    }
+                }
+            }
+            if (!written) {
+                throw new IllegalStateException("Writing buffered credentials failed");
+            }
+            synchronized (this) {
+                for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                    // changes buffered again in the meantime stay dirty
+                    if (dirty.get(change.getKey()) == change.getValue()) {
+                        dirty.remove(change.getKey());
+                        dirtyBytes -= weight(change.getKey(), change.getValue());
+                        cachePut(change.getKey(), change.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the value from the wrapped storage and cache it, unless it was written in the meantime.
+     */
+    private byte[] load(String name, long readVersion) {
+        final byte[] value = delegate.getCredential(name);
+        synchronized (this) {
+            if (readVersion == version) {
+                cachePut(name, value == null ? ABSENT : value.clone());
+            }
+        }
+        return value;
+    }
+
+    private static void checkCredentialName(String name) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Credential name must not be null or empty");
+        }
+    }
+
+    private static int copy(byte[] value, ByteBuffer dst) {
+        if (value == ABSENT) {
+            return -1;
+        }
+        if (value.length <= dst.remaining()) {
+            dst.put(value);
+        }
+        return value.length;
+    }
+
+    private static long weight(String name, byte[] value) {
+        return name.length() + value.length;
+    }
+
+    private boolean writeSets(Map<String, byte[]> values) {
+        if (delegate instanceof BatchVaultStorage) {
+            return ((BatchVaultStorage) delegate).setCredentials(values);
+        }
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            delegate.setCredential(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    private boolean writeRemovals(Collection<String> names) {
+        if (delegate instanceof BatchVaultStorage) {
+            return ((BatchVaultStorage) delegate).removeCredentials(names);
+        }
+        for (String name : names) {
+            delegate.removeCredential(name);
+        }
+        return true;
+    }
+
+    /**
+     * Buffer a change in {@link WriteMode#WRITE_BACK} mode.
+     */
+    private void buffer(String name, byte[] value) {
+        final boolean flushNow;
+        synchronized (this) {
+            version++;
+            cacheRemove(name);
+            final byte[] previous = dirty.put(name, value);
+            if (previous != null) {
+                dirtyBytes -= weight(name, previous);
+            }
+            dirtyBytes += weight(name, value);
+            if (names != null) {
+                if (value == ABSENT) {
+                    names.remove(name);
+                } else {
+                    names.add(name);
+                }
+            }
+            flushNow = dirtyBytes > maxBytes;
+            if (!flushNow) {
+                scheduleFlush();
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    // the following methods must be called while holding the lock on this
+
+    /**
+     * @return The buffered or cached value, {@link #ABSENT} if the credential is known not to exist,
+     * or null if the wrapped storage needs to be asked
+     */
+    private byte[] lookup(String name) {
+        byte[] value = dirty.get(name);
+        if (value == null) {
+            value = cache.get(name);
+        }
+        if (value == null && names != null && !names.contains(name)) {
+            value = ABSENT;
+        }
+        if (value == null) {
+            misses++;
+            VaultMetrics.cacheMiss(VaultMetrics.Cache.STORAGE);
+        } else {
+            hits++;
+            VaultMetrics.cacheHit(VaultMetrics.Cache.STORAGE);
+        }
+        return value;
+    }
+
+    private void cachePut(String name, byte[] value) {
+        final long weight = weight(name, value);
+        if (weight > maxBytes) {
+            cacheRemove(name);
+            return;
+        }
+        final byte[] previous = cache.put(name, value);
+        if (previous != null) {
+            cachedBytes -= weight(name, previous);
+        }
+        cachedBytes += weight;
+        final Iterator<Map.Entry<String, byte[]>> iterator = cache.entrySet().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, byte[]> eldest = iterator.next();
+            iterator.remove();
+            cachedBytes -= weight(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void cacheRemove(String name) {
+        final byte[] previous = cache.remove(name);
+        if (previous != null) {
+            cachedBytes -= weight(name, previous);
+        }
+    }
+
+    private void cancelScheduledFlush() {
+        if (flushTask != null) {
+            if (flushTask.cancel(false)) {
+                VaultTracing.endAsync(VaultTracing.SECTION_WRITE_BACK, flushTraceCookie);
+            } // otherwise the task is running and ends its trace section itself
+            flushTask = null;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushTask != null) {
+            return;
+        }
+        final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_WRITE_BACK);
+        flushTraceCookie = traceCookie;
+        flushTask = FLUSHER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CachingVaultStorage.this) {
+                    flushTask = null;
+                }
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    // the changes stay buffered, flush() scheduled another attempt
+                } finally {
+                    VaultTracing.endAsync(VaultTracing.SECTION_WRITE_BACK, traceCookie);
+                }
+            }
+        }, flushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+}
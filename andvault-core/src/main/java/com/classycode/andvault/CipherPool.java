@@ -0,0 +1,135 @@
+package com.classycode.andvault;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A per-thread pool of {@link Cipher} instances for one transformation. {@link Cipher} objects are
+ * not thread safe and expensive to obtain (provider lookup and allocation), so each thread keeps
+ * its own instance and re-initializes it for every operation.
+ * <p/>
+ * A cipher obtained from the pool must only be used until the calling method returns, as the next
+ * call to {@link #get()} on the same thread returns the same instance.
+ * <p/>
+ * A pooled cipher keeps the key schedule of the last key it was initialized with. {@link #clearAll()}
+ * marks all pooled ciphers as retired once that key must no longer be held in memory. Retirement is
+ * lazy, as ciphers are not thread safe and may be in use on their thread: each thread re-initializes
+ * its retired cipher with a throwaway key and replaces it on its next {@link #get()}. Until then, and
+ * for good on a thread that does not use the pool again, the old key schedule stays in memory.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class CipherPool {
+
+    private static final List<CipherPool> pools = new CopyOnWriteArrayList<CipherPool>();
+
+    private final String name;
+
+    private final String transformation;
+
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private static final SecretKeySpec THROWAWAY_KEY = new SecretKeySpec(new byte[16], "AES");
+
+    private final ThreadLocal<PooledCipher> ciphers = new ThreadLocal<PooledCipher>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private CipherPool(String name, String transformation) {
+        this.name = name;
+        this.transformation = transformation;
+    }
+
+    /**
+     * Create a pool and register it for {@link #getAllStats()}.
+     *
+     * @param name           A name identifying the pool's purpose
+     * @param transformation The cipher transformation, as passed to {@link Cipher#getInstance(String)}
+     */
+    static CipherPool create(String name, String transformation) {
+        final CipherPool pool = new CipherPool(name, transformation);
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * @return The calling thread's cipher. It needs to be initialized before use.
+     */
+    Cipher get() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        acquisitions.incrementAndGet();
+        final int currentGeneration = generation.get();
+        PooledCipher pooled = ciphers.get();
+        if (pooled == null || pooled.generation != currentGeneration) {
+            if (pooled != null) {
+                scrub(pooled.cipher);
+            }
+            pooled = new PooledCipher(Cipher.getInstance(transformation), currentGeneration);
+            ciphers.set(pooled);
+            size.incrementAndGet();
+        }
+        return pooled.cipher;
+    }
+
+    /**
+     * Retire the ciphers of all pools, so none of them is used with the key it was last initialized with
+     * again. Called when the vault key is wiped from memory. Returns right away, each cipher is scrubbed
+     * on the next {@link #get()} of its thread.
+     */
+    static void clearAll() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Overwrite the key schedule of a retired cipher, as far as the provider allows.
+     */
+    private static void scrub(Cipher cipher) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, THROWAWAY_KEY);
+        } catch (GeneralSecurityException e) {
+            // the cipher is dropped anyway
+        } catch (RuntimeException e) {
+            // the cipher is dropped anyway
+        }
+    }
+
+    CipherPoolStats getStats() {
+        return new CipherPoolStats(name, transformation, size.get(), acquisitions.get());
+    }
+
+    /**
+     * @return A snapshot of the statistics of all pools in this process.
+     */
+    static List<CipherPoolStats> getAllStats() {
+        final List<CipherPoolStats> stats = new ArrayList<CipherPoolStats>(pools.size());
+        for (CipherPool pool : pools) {
+            stats.add(pool.getStats());
+        }
+        return stats;
+    }
+
+    private static final class PooledCipher {
+
+        final Cipher cipher;
+
+        /**
+         * The value of {@link #generation} when the cipher was created.
+         */
+        final int generation;
+
+        PooledCipher(Cipher cipher, int generation) {
+            this.cipher = cipher;
+            this.generation = generation;
+        }
+    }
+}
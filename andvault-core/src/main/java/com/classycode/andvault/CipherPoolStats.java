@@ -0,0 +1,67 @@
+package com.classycode.andvault;
+
+/**
+ * Snapshot of the usage statistics of one of the vault's internal cipher pools, see
+ * {@link CoreVault#getCipherPoolStats()}.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public final class CipherPoolStats {
+
+    private final String name;
+
+    private final String transformation;
+
+    private final int size;
+
+    private final long acquisitions;
+
+    CipherPoolStats(String name, String transformation, int size, long acquisitions) {
+        this.name = name;
+        this.transformation = transformation;
+        this.size = size;
+        this.acquisitions = acquisitions;
+    }
+
+    /**
+     * @return The name of the pool, describing what its ciphers are used for.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The cipher transformation, e.g. "AES".
+     */
+    public String getTransformation() {
+        return transformation;
+    }
+
+    /**
+     * @return The number of ciphers created by the pool, i.e. the number of threads that used it, plus
+     * the replacements of ciphers retired when the vault was locked.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of times a cipher was taken from the pool.
+     */
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    /**
+     * @return The fraction (0..1) of acquisitions that reused an existing cipher instead of creating one.
+     */
+    public double getReuseRate() {
+        return acquisitions == 0 ? 0 : (double) (acquisitions - size) / acquisitions;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + transformation + "): size=" + size + ", acquisitions=" + acquisitions
+                + ", reuseRate=" + getReuseRate();
+    }
+}
@@ -0,0 +1,1873 @@
+package com.classycode.andvault;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Secure storage of application secrets: values are encrypted with a symmetric vault key, which is
+ * stored wrapped by a {@link KeyWrapper}.
+ * <p/>
+ * This is the platform independent part of the {@code Vault}, which binds it to the Android KeyStore.
+ * On the JVM, it can be used with a {@link SoftwareKeyWrapper} and a {@link PropertiesFileStorage}
+ * (or a {@link LogFileStorage}), e.g. to test or benchmark the crypto and storage paths off-device.
+ * <p/>
+ * Thread safe. Operations on the same credential are serialized by read-write locks striped by
+ * credential name: reads run in parallel, a write excludes reads and writes of credentials sharing
+ * its lock stripe. Batch operations take the locks of all involved stripes in a fixed order.
+ * <p/>
+ * Values are encrypted with AES/GCM and stored in a versioned format (see {@link RecordEnvelope}).
+ * Values stored by older versions of the library are still read, and rewritten in the current format
+ * on a background thread (see {@link #migrateRecords()}). The vault key can be replaced without
+ * losing the credentials using {@link #rotateKey()}.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2015
+ */
+public class CoreVault {
+
+    private static final Logger LOGGER = Logger.getLogger(CoreVault.class.getName());
+
+    private static final String CIPHER_AES = "AES";
+
+    private static final int MIN_SCRATCH_BUFFER_SIZE = 256;
+
+    /**
+     * Number of credentials rewritten at once by the record migration, see {@link #migrateRecords()}.
+     */
+    private static final int MIGRATION_BATCH_SIZE = 32;
+
+    /**
+     * Maximum number of credentials a key rotation re-encrypts and writes at once, see {@link #rotateKey()}.
+     * Operations on credentials of the same lock stripe wait while a batch is written.
+     */
+    private static final int ROTATION_BATCH_SIZE = 16;
+
+    /**
+     * Maximum size of the stored records in one batch of a key rotation, so batches of large values
+     * are kept small as well.
+     */
+    private static final int ROTATION_BATCH_BYTES = 16 * 1024;
+
+    /**
+     * Metadata holding the new vault key of a pending rotation, wrapped.
+     */
+    private static final String METADATA_ROTATION_KEY = "rotation_key";
+
+    /**
+     * Metadata holding the name of the last credential re-encrypted by a pending rotation.
+     */
+    private static final String METADATA_ROTATION_CHECKPOINT = "rotation_checkpoint";
+
+    /**
+     * The names of all metadata the vault keeps in its storage, to be copied along with the credentials
+     * when a vault is moved to another storage.
+     */
+    static final List<String> METADATA_NAMES = Collections.unmodifiableList(Arrays.asList(METADATA_ROTATION_KEY, METADATA_ROTATION_CHECKPOINT));
+
+    /**
+     * Minimum time between two writes of the rotation checkpoint. A resumed rotation repeats the batches
+     * done since, but only needs to read them.
+     */
+    private static final long ROTATION_CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Number of credential lock stripes, a power of two.
+     */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * Guards creation of the vault key, so concurrent first use does not create two different keys.
+     * Shared by all instances, as several vaults may use the same storage.
+     */
+    private static final Object KEY_CREATION_LOCK = new Object();
+
+    /**
+     * The indices of all lock stripes, for operations that exclude all others.
+     */
+    private static final int[] ALL_STRIPES = new int[LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            ALL_STRIPES[i] = i;
+        }
+    }
+
+    /**
+     * The order in which background migrations and key rotations process credentials: by lock stripe,
+     * then by name, so each batch only needs the lock of a single stripe.
+     */
+    private static final Comparator<String> STRIPE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            final int stripeL = getStripe(lhs);
+            final int stripeR = getStripe(rhs);
+            return stripeL != stripeR ? (stripeL < stripeR ? -1 : 1) : lhs.compareTo(rhs);
+        }
+    };
+
+    /**
+     * Per-thread buffers for encrypted values on the {@link ByteBuffer} paths, grown as needed.
+     */
+    private static final ThreadLocal<ByteBuffer> ENCRYPTED_SCRATCH = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * Per-thread buffers for decrypted values that don't fit the caller's buffer as is. Wiped after every use.
+     */
+    private static final ThreadLocal<ByteBuffer> DECRYPTED_SCRATCH = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * Key length for AES-256
+     */
+    public static final int KEY_LENGTH = 32;
+
+    private final KeyWrapper keyWrapper;
+
+    private final VaultStorage storage;
+
+    private final BlobStore blobStore;
+
+    /**
+     * Incremented on every {@link #newGeneration()}, so that unlocked sessions of any vault instance
+     * in this process notice that their key has been thrown away.
+     */
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private volatile VaultSession session;
+
+    private final AtomicLong keyCacheHits = new AtomicLong();
+
+    private final AtomicLong keyCacheMisses = new AtomicLong();
+
+    private final VaultClock clock;
+
+    private volatile PlaintextCache plaintextCache;
+
+    private final ReentrantReadWriteLock[] credentialLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    /**
+     * Guards changes of {@link #session}.
+     */
+    private final Object sessionLock = new Object();
+
+    /**
+     * Incremented whenever a key rotation completes, guarded by {@link #sessionLock}.
+     */
+    private volatile int keyVersion;
+
+    /**
+     * The background initialization started by the constructor, or null once it has been awaited
+     * (or if the vault was initialized eagerly).
+     */
+    private volatile Future<Void> warmUp;
+
+    /**
+     * Names of credentials found in the legacy record format when read, rewritten by the next migration.
+     */
+    private final Set<String> outdatedRecords =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * True while a migration of the outdated records is scheduled or running.
+     */
+    private final AtomicBoolean migrationScheduled = new AtomicBoolean();
+
+    /**
+     * True once all records have been checked by a migration, later ones only rewrite the records found
+     * outdated when read.
+     */
+    private volatile boolean migrationSwept;
+
+    /**
+     * The new vault key while a key rotation is pending, or null. New values are encrypted with it, and
+     * stored values are decrypted with it or the retired vault key. Only changed while all credential
+     * locks are held, or before any credential was encrypted with the new key.
+     */
+    private volatile SecretKey rotationKey;
+
+    /**
+     * The running or last key rotation, guarded by this.
+     */
+    private Future<Integer> keyRotation;
+
+    /**
+     * Guards {@link #openBlobStreams} and {@link #rotationStarting}, so no credential stream is written with
+     * the retired key once a key rotation has checked that there are none.
+     */
+    private final Object blobLock = new Object();
+
+    /**
+     * Number of streams returned by {@link #openCredentialOutputStream(String)} that are not closed yet.
+     */
+    private int openBlobStreams;
+
+    /**
+     * True from the start of a key rotation until its new key is in use (or it fails before that).
+     */
+    private boolean rotationStarting;
+
+    /**
+     * Initialize the vault, creating the vault key if the storage does not hold one yet.
+     *
+     * @param keyWrapper    Protects the vault key at rest
+     * @param storage       A storage mechanism
+     * @param blobDirectory The directory for credentials stored with {@link #openCredentialOutputStream(String)}
+     * @throws VaultException Thrown if the vault key could not be created or unwrapped
+     */
+    public CoreVault(KeyWrapper keyWrapper, VaultStorage storage, File blobDirectory) throws VaultException {
+        this(keyWrapper, storage, blobDirectory, false, VaultClock.SYSTEM);
+    }
+
+    /**
+     * @param warmUpAsync If true, the vault key is created or unwrapped on a background thread owned by the
+     *                    library, and operations needing the vault key wait for it to complete. If the
+     *                    initialization fails, the first operation needing the vault key throws a
+     *                    {@link VaultException}.
+     * @param clock       The clock measuring the idle time of unlocked sessions
+     */
+    CoreVault(KeyWrapper keyWrapper, VaultStorage storage, File blobDirectory, boolean warmUpAsync, VaultClock clock)
+            throws VaultException {
+        this.keyWrapper = keyWrapper;
+        this.storage = storage;
+        this.clock = clock;
+        for (int i = 0; i < credentialLocks.length; i++) {
+            credentialLocks[i] = new ReentrantReadWriteLock();
+        }
+        this.blobStore = new BlobStore(blobDirectory);
+
+        if (warmUpAsync) {
+            final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_WARM_UP);
+            try {
+                warmUp = VaultExecutors.io().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws GeneralSecurityException, IOException {
+                        try {
+                            createOrUnwrapVaultKey();
+                            resumeKeyRotation();
+                            return null;
+                        } finally {
+                            VaultTracing.endAsync(VaultTracing.SECTION_WARM_UP, traceCookie);
+                        }
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                VaultTracing.endAsync(VaultTracing.SECTION_WARM_UP, traceCookie);
+                LOGGER.warning("Vault warm-up could not be scheduled, initializing on the calling thread");
+            }
+        }
+
+        // early initialization to catch device lock changes.
+        try {
+            createOrUnwrapVaultKey();
+            resumeKeyRotation();
+        } catch (GeneralSecurityException e) {
+            throw new VaultException("Initializing the Vault failed (HINT: did device lockscreen setting change?)", e);
+        } catch (IOException e) {
+            throw new VaultException("Initializing the Vault failed (HINT: did device lockscreen setting change?)", e);
+        }
+    }
+
+    /**
+     * @return The (symmetric) vault key. If it does not exist yet, it is created.
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private SecretKey getOrCreateVaultKey() throws GeneralSecurityException, IOException {
+        awaitWarmUp();
+        return createOrUnwrapVaultKey();
+    }
+
+    private SecretKey createOrUnwrapVaultKey() throws GeneralSecurityException, IOException {
+        byte[] wrappedVaultKey = storage.getKey();
+        if (wrappedVaultKey == null) {
+            synchronized (KEY_CREATION_LOCK) {
+                // another thread may have created the key in the meantime
+                wrappedVaultKey = storage.getKey();
+                if (wrappedVaultKey == null) { // no symmetric key yet, create and random one, and wrap it
+                    final SecretKey key = generateVaultKey();
+                    storage.setKey(wrapVaultKey(key));
+                    return key;
+                }
+            }
+        }
+        final SecretKey key = unwrapVaultKey(wrappedVaultKey);
+        if (keyWrapper instanceof UpgradableKeyWrapper && ((UpgradableKeyWrapper) keyWrapper).isOutdated(wrappedVaultKey)) {
+            rewrapVaultKey(key, wrappedVaultKey);
+        }
+        return key;
+    }
+
+    private static SecretKey generateVaultKey() {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_GENERATE_VAULT_KEY);
+        final long start = VaultMetrics.start();
+        final byte[] raw = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(raw);
+        final SecretKey key = new SecretKeySpec(raw, CIPHER_AES);
+        VaultMetrics.record(VaultMetrics.Phase.KEY_GENERATION, start, KEY_LENGTH);
+        VaultTracing.end(tracer);
+        return key;
+    }
+
+    private SecretKey unwrapVaultKey(byte[] wrappedKey) throws GeneralSecurityException {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_KEY_UNWRAP);
+        final long start = VaultMetrics.start();
+        try {
+            return keyWrapper.unwrap(wrappedKey);
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.KEY_UNWRAP, start, wrappedKey.length);
+            VaultTracing.end(tracer);
+        }
+    }
+
+    private byte[] wrapVaultKey(SecretKey key) throws GeneralSecurityException {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_KEY_WRAP);
+        final long start = VaultMetrics.start();
+        try {
+            final byte[] wrappedKey = keyWrapper.wrap(key);
+            VaultMetrics.record(VaultMetrics.Phase.KEY_WRAP, start, wrappedKey.length);
+            return wrappedKey;
+        } finally {
+            VaultTracing.end(tracer);
+        }
+    }
+
+    /**
+     * Replace the stored vault key, wrapped with an outdated scheme, by the same key wrapped with the
+     * current one. If that fails, the outdated key is kept (it can still be unwrapped) and the migration
+     * is retried the next time the key is unwrapped.
+     */
+    private void rewrapVaultKey(SecretKey key, byte[] outdatedWrappedKey) {
+        synchronized (KEY_CREATION_LOCK) {
+            if (!Arrays.equals(outdatedWrappedKey, storage.getKey())) {
+                return; // migrated by another thread, or the vault was reset
+            }
+            try {
+                storage.setKey(wrapVaultKey(key));
+                LOGGER.info("Vault key migrated to the current key wrapping scheme");
+            } catch (GeneralSecurityException e) {
+                LOGGER.log(Level.WARNING, "Vault key could not be migrated to the current key wrapping scheme", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Vault key could not be migrated to the current key wrapping scheme", e);
+            }
+        }
+    }
+
+    /**
+     * Wait for the background initialization started by the constructor
+     * to complete, if it hasn't yet. Rethrows the exception it failed with, once.
+     */
+    private void awaitWarmUp() throws GeneralSecurityException, IOException {
+        final Future<Void> pending = warmUp;
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the vault initialization");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Vault initialization failed", cause);
+        } finally {
+            // later operations unwrap the key on their own, and report failures themselves
+            if (pending.isDone()) {
+                warmUp = null;
+            }
+        }
+    }
+
+    /**
+     * Unlock the vault: the vault key is unwrapped once and kept in memory, so subsequent operations
+     * do not need to go through the {@link KeyWrapper}. The key is wiped from memory when the vault is
+     * locked again using {@link #lock()}, or when it has not been used for the given idle timeout.
+     * <p/>
+     * While the vault is locked, every operation unwraps the vault key on its own.
+     *
+     * @param idleTimeoutMillis The idle timeout in milliseconds, or 0 to keep the vault unlocked until {@link #lock()} is called.
+     * @throws VaultException The vault key could not be unwrapped
+     */
+    public void unlock(long idleTimeoutMillis) throws VaultException {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        VaultSession previous;
+        while (true) {
+            final int version = keyVersion;
+            final SecretKey key;
+            try {
+                key = getOrCreateVaultKey();
+            } catch (GeneralSecurityException e) {
+                throw new VaultException("Unlocking the Vault failed", e);
+            } catch (IOException e) {
+                throw new VaultException("Unlocking the Vault failed", e);
+            }
+            keyCacheMisses.incrementAndGet();
+            VaultMetrics.cacheMiss(VaultMetrics.Cache.KEY);
+            synchronized (sessionLock) {
+                // otherwise a key rotation completed meanwhile, and the key may be the retired one
+                if (version == keyVersion) {
+                    previous = session;
+                    session = new VaultSession(key, idleTimeoutMillis, generation.get(), clock);
+                    break;
+                }
+            }
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Lock the vault, wiping the in-memory vault key of the session started by {@link #unlock(long)}
+     * and the values in the plaintext cache, if enabled. Does nothing if the vault is not unlocked.
+     */
+    public void lock() {
+        final VaultSession current;
+        synchronized (sessionLock) {
+            current = session;
+            session = null;
+        }
+        if (current != null) {
+            current.close();
+        }
+        final PlaintextCache cache = plaintextCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return True if the vault is unlocked, i.e. the vault key is held in memory.
+     */
+    public boolean isUnlocked() {
+        final VaultSession current = session;
+        return current != null && current.isOpen() && current.getGeneration() == generation.get();
+    }
+
+    /**
+     * @return The number of operations that used the in-memory key of an unlocked session.
+     */
+    public long getKeyCacheHitCount() {
+        return keyCacheHits.get();
+    }
+
+    /**
+     * @return The number of times the vault key had to be unwrapped through the {@link KeyWrapper}.
+     */
+    public long getKeyCacheMissCount() {
+        return keyCacheMisses.get();
+    }
+
+    /**
+     * @return Usage statistics of the pooled ciphers used for encryption and key wrapping, in this process.
+     */
+    public static List<CipherPoolStats> getCipherPoolStats() {
+        return CipherPool.getAllStats();
+    }
+
+    /**
+     * Enable caching of decrypted credential values in memory, so frequently read credentials don't
+     * need to be read from storage and decrypted every time. The cache is bounded by the number of
+     * values and their total size; the least recently used values are evicted first. Evicted values
+     * are overwritten with zeros.
+     * <p/>
+     * Keeping decrypted values in memory weakens their protection, so the time to live should be kept
+     * as short as the access pattern allows. The cache is cleared when the vault is locked or reset.
+     * Credentials stored with {@link #openCredentialOutputStream(String)} are never cached.
+     *
+     * @param maxEntries The maximum number of cached values
+     * @param maxBytes   The maximum total size of the cached values in bytes
+     * @param ttlMillis  The time after which a cached value expires, in milliseconds
+     */
+    public void enablePlaintextCache(int maxEntries, long maxBytes, long ttlMillis) {
+        final PlaintextCache previous = plaintextCache;
+        plaintextCache = new PlaintextCache(maxEntries, maxBytes, ttlMillis, generation.get(), clock);
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Disable the plaintext cache and wipe the cached values. Does nothing if the cache is not enabled.
+     */
+    public void disablePlaintextCache() {
+        final PlaintextCache previous = plaintextCache;
+        plaintextCache = null;
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * @return Usage statistics of the plaintext cache, or null if it is not enabled
+     */
+    public PlaintextCacheStats getPlaintextCacheStats() {
+        final PlaintextCache cache = getPlaintextCache();
+        return cache == null ? null : cache.getStats();
+    }
+
+    /**
+     * @return The list of credentials stored in the vault.
+     */
+    public List<String> getCredentialNames() {
+        return storage.getCredentialNames();
+    }
+
+    /**
+     * @param prefix The prefix of the names, e.g. "acct/123/"
+     * @return The names of the credentials starting with the prefix, in lexicographic order.
+     */
+    public List<String> getCredentialNames(String prefix) {
+        return getCredentialNames(prefix, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return a page of the names of the credentials starting with the given prefix, in lexicographic
+     * order. Pass the last name of a page as startAfter to get the next page. This is efficient if the
+     * storage implements {@link IndexedVaultStorage}, otherwise all names are listed and filtered.
+     *
+     * @param prefix     The prefix of the names, the empty string for all names
+     * @param startAfter Only return names following this one, or null to start with the first matching name
+     * @param limit      The maximum number of names to return, must be positive
+     * @return The names, at most limit. Fewer names than limit means there are no more.
+     */
+    public List<String> getCredentialNames(String prefix, String startAfter, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if (storage instanceof IndexedVaultStorage) {
+            return ((IndexedVaultStorage) storage).getCredentialNames(prefix, startAfter, limit);
+        }
+        final List<String> names = new ArrayList<String>();
+        for (String name : storage.getCredentialNames()) {
+            if (name.startsWith(prefix) && (startAfter == null || name.compareTo(startAfter) > 0)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names.size() > limit ? new ArrayList<String>(names.subList(0, limit)) : names;
+    }
+
+    /**
+     * Remove the named credential from the vault.
+     *
+     * @param name The credential's name
+     */
+    public void removeCredential(String name) {
+        final Lock lock = getLock(name).writeLock();
+        lock.lock();
+        final long start = VaultMetrics.start();
+        try {
+            storage.removeCredential(name);
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, 0);
+            invalidateCached(name);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the value of the named credential.
+     *
+     * @param name The credential's name (must not be null)
+     * @return The credential value, or null, if the credential does not exist in the vault
+     * @throws VaultException An error occurred while retrieving the credential from the vault
+     */
+    public byte[] getCredential(String name) throws VaultException {
+        final Lock lock = getLock(name).readLock();
+        lock.lock();
+        try {
+            final PlaintextCache cache = getPlaintextCache();
+            long cacheVersion = 0;
+            if (cache != null) {
+                final byte[] cached = cache.get(name);
+                if (cached != null) {
+                    return cached;
+                }
+                cacheVersion = cache.getVersion();
+            }
+            final long start = VaultMetrics.start();
+            final byte[] encryptedCredential = storage.getCredential(name);
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, encryptedCredential == null ? 0 : encryptedCredential.length);
+            if (encryptedCredential == null) {
+                return null;
+            }
+            if (RecordEnvelope.isLegacy(encryptedCredential)) {
+                recordOutdated(name);
+            }
+            try {
+                final byte[] value = decrypt(encryptedCredential);
+                if (cache != null) {
+                    cache.put(name, value, cacheVersion);
+                }
+                return value;
+            } catch (GeneralSecurityException e) {
+                throw new VaultException("Credential could not be read", e);
+            } catch (IOException e) {
+                throw new VaultException("Credential could not be read", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the value of the named credential, which is assumed to be a string.
+     *
+     * @param name The credential's name (must not be null)
+     * @return The credential value as a string, or null, if the credential does not exist in the vault
+     * @throws VaultException An error occurred while retrieving the credential from the vault
+     */
+    public String getStringCredential(String name) throws VaultException {
+        byte[] value = getCredential(name);
+        if (value == null) {
+            return null;
+        } else {
+            try {
+                return new String(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException(e); // should never happen
+            }
+        }
+    }
+
+    /**
+     * Store a new credential, which is assumed to be a string, in the vault or overwrite an existing one.
+     *
+     * @param name  The credential's name (must not be null)
+     * @param value The credential's value (must not be null)
+     * @throws VaultException An error occurred while storing the credential
+     */
+    public void storeCredential(String name, byte[] value) throws VaultException {
+        final Lock lock = getLock(name).writeLock();
+        lock.lock();
+        try {
+            final byte[] encrypted = encrypt(value);
+            final long start = VaultMetrics.start();
+            storage.setCredential(name, encrypted);
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, encrypted.length);
+        } catch (GeneralSecurityException e) {
+            throw new VaultException("Credential could not be stored", e);
+        } catch (IOException e) {
+            throw new VaultException("Credential could not be stored", e);
+        } finally {
+            invalidateCached(name);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Store a new credential in the vault or overwrite an existing one.
+     *
+     * @param name  The credential's name (must not be null)
+     * @param value The credential's value (must not be null)
+     * @throws VaultException An error occurred while storing the credential
+     */
+    public void storeStringCredential(String name, String value) throws VaultException {
+        try {
+            storeCredential(name, value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e); // should never happen
+        }
+    }
+
+    /**
+     * Get the value of the named credential, decrypting it into the given buffer. Unlike
+     * {@link #getCredential(String)}, this does not allocate memory once the vault is unlocked (see
+     * {@link #unlock(long)}) and the storage supports reading into buffers ({@link ByteBufferVaultStorage}),
+     * so it is suitable for reading credentials frequently.
+     *
+     * @param name The credential's name (must not be null)
+     * @param dst  The buffer to decrypt the value into, starting at its position. Its position is advanced by the length of the value.
+     * @return The length of the value, or -1, if the credential does not exist in the vault
+     * @throws BufferOverflowException The value is longer than the remaining bytes of the buffer, the buffer is left untouched
+     * @throws VaultException          An error occurred while retrieving the credential from the vault
+     */
+    public int getCredential(String name, ByteBuffer dst) throws VaultException {
+        final Lock lock = getLock(name).readLock();
+        lock.lock();
+        try {
+            final PlaintextCache cache = getPlaintextCache();
+            long cacheVersion = 0;
+            if (cache != null) {
+                final int length = cache.get(name, dst);
+                if (length >= 0) {
+                    return length;
+                }
+                cacheVersion = cache.getVersion();
+            }
+            final ByteBuffer encrypted = readEncrypted(name);
+            if (encrypted == null) {
+                return -1;
+            }
+            if (RecordEnvelope.isLegacy(encrypted)) {
+                recordOutdated(name);
+            }
+            try {
+                final int start = dst.position();
+                final int length;
+                // same as withVaultKey(), without allocating an operation
+                final VaultSession current = getCurrentSession();
+                final SecretKey sessionKey = current == null ? null : current.acquire();
+                if (sessionKey != null) {
+                    try {
+                        keyCacheHits.incrementAndGet();
+                        VaultMetrics.cacheHit(VaultMetrics.Cache.KEY);
+                        length = decrypt(sessionKey, encrypted, dst);
+                    } finally {
+                        current.release();
+                    }
+                } else {
+                    keyCacheMisses.incrementAndGet();
+                    VaultMetrics.cacheMiss(VaultMetrics.Cache.KEY);
+                    length = decrypt(getOrCreateVaultKey(), encrypted, dst);
+                }
+                if (cache != null) {
+                    final byte[] value = new byte[length];
+                    final ByteBuffer decrypted = dst.duplicate();
+                    decrypted.position(start);
+                    decrypted.get(value);
+                    cache.put(name, value, cacheVersion);
+                    Arrays.fill(value, (byte) 0);
+                }
+                return length;
+            } catch (GeneralSecurityException e) {
+                throw new VaultException("Credential could not be read", e);
+            } catch (IOException e) {
+                throw new VaultException("Credential could not be read", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Store a new credential in the vault or overwrite an existing one, taking the value from the given
+     * buffer.
+     *
+     * @param name The credential's name (must not be null)
+     * @param src  The credential's value, the buffer's remaining bytes are stored. Its position is advanced to its limit.
+     * @throws VaultException An error occurred while storing the credential
+     */
+    public void storeCredential(String name, final ByteBuffer src) throws VaultException {
+        final Lock lock = getLock(name).writeLock();
+        lock.lock();
+        try {
+            final ByteBuffer encrypted;
+            try {
+                encrypted = withVaultKey(new KeyOperation<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer run(SecretKey key) throws GeneralSecurityException {
+                        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_ENCRYPT);
+                        try {
+                            final long start = VaultMetrics.start();
+                            final int length = src.remaining();
+                            final ByteBuffer buffer = getScratchBuffer(ENCRYPTED_SCRATCH, RecordEnvelope.getRecordLength(length));
+                            RecordEnvelope.encrypt(getWriteKey(key), src, buffer);
+                            buffer.flip();
+                            VaultMetrics.record(VaultMetrics.Phase.ENCRYPT, start, length);
+                            return buffer;
+                        } finally {
+                            VaultTracing.end(tracer);
+                        }
+                    }
+                });
+            } catch (GeneralSecurityException e) {
+                throw new VaultException("Credential could not be stored", e);
+            } catch (IOException e) {
+                throw new VaultException("Credential could not be stored", e);
+            }
+            final long start = VaultMetrics.start();
+            final int length = encrypted.remaining();
+            try {
+                if (storage instanceof ByteBufferVaultStorage) {
+                    ((ByteBufferVaultStorage) storage).setCredential(name, encrypted);
+                } else {
+                    final byte[] value = new byte[length];
+                    encrypted.get(value);
+                    storage.setCredential(name, value);
+                }
+            } finally {
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, length);
+                invalidateCached(name);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the values of the named credentials. The vault key is only unwrapped once for the whole batch.
+     *
+     * @param names The credentials' names (must not be null)
+     * @return The credential values by name, credentials that do not exist in the vault are omitted
+     * @throws VaultException An error occurred while retrieving the credentials from the vault
+     */
+    public Map<String, byte[]> getCredentials(Collection<String> names) throws VaultException {
+        final int[] stripes = getStripes(names);
+        lockStripes(stripes, false);
+        try {
+            final PlaintextCache cache = getPlaintextCache();
+            long cacheVersion = 0;
+            Map<String, byte[]> cached = null;
+            Collection<String> uncachedNames = names;
+            if (cache != null) {
+                cached = new LinkedHashMap<String, byte[]>(names.size() * 2);
+                uncachedNames = new ArrayList<String>(names.size());
+                for (String name : names) {
+                    final byte[] value = cache.get(name);
+                    if (value != null) {
+                        cached.put(name, value);
+                    } else {
+                        uncachedNames.add(name);
+                    }
+                }
+                if (uncachedNames.isEmpty()) {
+                    return cached;
+                }
+                cacheVersion = cache.getVersion();
+            }
+            final long start = VaultMetrics.start();
+            final Map<String, byte[]> encryptedCredentials;
+            if (storage instanceof BatchVaultStorage) {
+                encryptedCredentials = ((BatchVaultStorage) storage).getCredentials(uncachedNames);
+            } else {
+                encryptedCredentials = new LinkedHashMap<String, byte[]>(uncachedNames.size() * 2);
+                for (String name : uncachedNames) {
+                    final byte[] encryptedCredential = storage.getCredential(name);
+                    if (encryptedCredential != null) {
+                        encryptedCredentials.put(name, encryptedCredential);
+                    }
+                }
+            }
+            if (start != 0) {
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, getTotalLength(encryptedCredentials));
+            }
+            if (encryptedCredentials.isEmpty()) {
+                return cached != null ? cached : encryptedCredentials;
+            }
+            for (Map.Entry<String, byte[]> entry : encryptedCredentials.entrySet()) {
+                if (RecordEnvelope.isLegacy(entry.getValue())) {
+                    recordOutdated(entry.getKey());
+                }
+            }
+            try {
+                final Map<String, byte[]> credentials = cryptAll(Cipher.DECRYPT_MODE, encryptedCredentials);
+                if (cache == null) {
+                    return credentials;
+                }
+                for (Map.Entry<String, byte[]> credential : credentials.entrySet()) {
+                    cache.put(credential.getKey(), credential.getValue(), cacheVersion);
+                }
+                cached.putAll(credentials);
+                return cached;
+            } catch (GeneralSecurityException e) {
+                throw new VaultException("Credentials could not be read", e);
+            } catch (IOException e) {
+                throw new VaultException("Credentials could not be read", e);
+            }
+        } finally {
+            unlockStripes(stripes, false);
+        }
+    }
+
+    /**
+     * Store several credentials in the vault, overwriting existing ones. The vault key is only unwrapped
+     * once for the whole batch, and if the storage supports it ({@link BatchVaultStorage}), the
+     * credentials are written all at once: either all of them are stored, or none.
+     *
+     * @param credentials The credentials' values by name (names and values must not be null)
+     * @throws VaultException An error occurred while storing the credentials
+     */
+    public void storeCredentials(Map<String, byte[]> credentials) throws VaultException {
+        if (credentials.isEmpty()) {
+            return;
+        }
+        final int[] stripes = getStripes(credentials.keySet());
+        lockStripes(stripes, true);
+        try {
+            final Map<String, byte[]> encryptedCredentials;
+            try {
+                encryptedCredentials = cryptAll(Cipher.ENCRYPT_MODE, credentials);
+            } catch (GeneralSecurityException e) {
+                throw new VaultException("Credentials could not be stored", e);
+            } catch (IOException e) {
+                throw new VaultException("Credentials could not be stored", e);
+            }
+            final long start = VaultMetrics.start();
+            try {
+                if (storage instanceof BatchVaultStorage) {
+                    if (!((BatchVaultStorage) storage).setCredentials(encryptedCredentials)) {
+                        throw new VaultException("Credentials could not be written to storage");
+                    }
+                } else {
+                    for (Map.Entry<String, byte[]> entry : encryptedCredentials.entrySet()) {
+                        storage.setCredential(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                if (start != 0) {
+                    VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, getTotalLength(encryptedCredentials));
+                }
+                invalidateCached(credentials.keySet());
+            }
+        } finally {
+            unlockStripes(stripes, true);
+        }
+    }
+
+    /**
+     * Remove several credentials from the vault. If the storage supports it ({@link BatchVaultStorage}),
+     * the credentials are removed all at once.
+     *
+     * @param names The credentials' names
+     * @throws VaultException An error occurred while removing the credentials
+     */
+    public void removeCredentials(Collection<String> names) throws VaultException {
+        final int[] stripes = getStripes(names);
+        lockStripes(stripes, true);
+        final long start = VaultMetrics.start();
+        try {
+            if (storage instanceof BatchVaultStorage) {
+                if (!((BatchVaultStorage) storage).removeCredentials(names)) {
+                    throw new VaultException("Credentials could not be removed from storage");
+                }
+            } else {
+                for (String name : names) {
+                    storage.removeCredential(name);
+                }
+            }
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, 0);
+            invalidateCached(names);
+            unlockStripes(stripes, true);
+        }
+    }
+
+    /**
+     * Open a stream to store a new credential in the vault or overwrite an existing one. The value is
+     * encrypted in fixed-size chunks as it is written and goes straight to a file, so arbitrarily large
+     * credentials can be stored without holding them in memory. Each chunk is authenticated on its own,
+     * which allows reading parts of the value using {@link #readCredential(String, long, ByteBuffer)}. The new value replaces the existing
+     * one when the stream is closed; if it is never closed, the existing value is kept.
+     * <p/>
+     * Streamed credentials are kept apart from the ones stored with {@link #storeCredential(String, byte[])}:
+     * they are not listed by {@link #getCredentialNames()} and are removed using {@link #removeCredentialStream(String)}.
+     * <p/>
+     * The stream holds its own copy of the vault key until it is closed, so it can still be written after
+     * the vault is locked.
+     *
+     * @param name The credential's name (must not be null)
+     * @return The stream, which must be closed by the caller
+     * @throws VaultException An error occurred while opening the stream, or a key rotation is being started
+     */
+    public OutputStream openCredentialOutputStream(final String name) throws VaultException {
+        try {
+            return withVaultKey(new KeyOperation<OutputStream>() {
+                @Override
+                public OutputStream run(SecretKey key) throws GeneralSecurityException, IOException {
+                    synchronized (blobLock) {
+                        if (rotationStarting) {
+                            throw new IOException("Credential streams can not be written while a key rotation is started");
+                        }
+                        final OutputStream out = new BlobOutputStream(blobStore.openOutputStream(name, getWriteKey(key)));
+                        openBlobStreams++;
+                        return out;
+                    }
+                }
+            });
+        } catch (GeneralSecurityException e) {
+            throw new VaultException("Credential stream could not be opened", e);
+        } catch (IOException e) {
+            throw new VaultException("Credential stream could not be opened", e);
+        }
+    }
+
+    /**
+     * Open a stream to read a credential stored using {@link #openCredentialOutputStream(String)}. The
+     * value is decrypted one chunk at a time as it is read. Like the output stream, it holds its own copy
+     * of the vault key until it is closed.
+     *
+     * @param name The credential's name (must not be null)
+     * @return The stream, which must be closed by the caller, or null if the credential does not exist in the vault
+     * @throws VaultException An error occurred while opening the stream
+     */
+    public InputStream openCredentialInputStream(final String name) throws VaultException {
+        try {
+            return withVaultKey(new KeyOperation<InputStream>() {
+                @Override
+                public InputStream run(SecretKey key) throws GeneralSecurityException, IOException {
+                    return blobStore.openInputStream(name, getWriteKey(key));
+                }
+            });
+        } catch (GeneralSecurityException e) {
+            throw new VaultException("Credential stream could not be opened", e);
+        } catch (IOException e) {
+            throw new VaultException("Credential stream could not be opened", e);
+        }
+    }
+
+    /**
+     * Read part of a credential stored using {@link #openCredentialOutputStream(String)}. Only the
+     * chunks covering the requested range are read and decrypted, not the whole value.
+     *
+     * @param name   The credential's name (must not be null)
+     * @param offset The offset in the value to start reading at
+     * @param dst    The buffer to read into, up to {@link ByteBuffer#remaining()} bytes are read
+     * @return The number of bytes read, or -1 if the offset is at or beyond the end of the value, or
+     * the credential does not exist in the vault
+     * @throws VaultException An error occurred while reading the credential, e.g. it has been tampered with
+     */
+    public int readCredential(final String name, final long offset, final ByteBuffer dst) throws VaultException {
+        try {
+            return withVaultKey(new KeyOperation<Integer>() {
+                @Override
+                public Integer run(SecretKey key) throws GeneralSecurityException, IOException {
+                    return blobStore.read(name, getWriteKey(key), offset, dst);
+                }
+            });
+        } catch (GeneralSecurityException e) {
+            throw new VaultException("Credential could not be read", e);
+        } catch (IOException e) {
+            throw new VaultException("Credential could not be read", e);
+        }
+    }
+
+    /**
+     * Remove a credential stored using {@link #openCredentialOutputStream(String)} from the vault.
+     *
+     * @param name The credential's name
+     */
+    public void removeCredentialStream(String name) {
+        blobStore.remove(name);
+    }
+
+    /**
+     * Rewrite all credentials still stored in a legacy record format (see {@link RecordEnvelope}) in the
+     * current one, on a low-priority background thread owned by the library. The values don't change.
+     * <p/>
+     * Reading a credential in a legacy format schedules this on its own, so calling it is optional. It
+     * allows completing the upgrade of a vault at a time chosen by the app, e.g. when it is idle.
+     *
+     * @return The number of rewritten credentials, once done
+     * @throws RejectedExecutionException Too many background operations are queued
+     */
+    public Future<Integer> migrateRecords() {
+        return VaultExecutors.background().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws GeneralSecurityException, IOException {
+                return migrateRecords(true);
+            }
+        });
+    }
+
+    /**
+     * Replace the vault key by a new one, and re-encrypt all credentials with it on a low-priority
+     * background thread owned by the library, a few at a time. The vault remains usable while the key is
+     * rotated: new values are encrypted with the new key, stored values are decrypted with either key.
+     * Operations wait at most for a small batch of credentials sharing their lock stripe to be written.
+     * <p/>
+     * The new key and the progress are kept in the storage, so a rotation that is interrupted (e.g.
+     * because the process is killed) resumes where it stopped when the vault is opened again. While a
+     * rotation is running, this returns the running one.
+     * <p/>
+     * Requires a storage supporting metadata ({@link MetadataVaultStorage}); for a
+     * {@link CachingVaultStorage}, the storage it wraps must support it. Credentials stored with
+     * {@link #openCredentialOutputStream(String)} are not re-encrypted, so there must be none, stored or
+     * being written, when the rotation starts; no stream can be opened until the new key is in use.
+     * Other vault instances using the same storage must not be used until it is complete.
+     *
+     * @return The number of re-encrypted credentials, once the rotation is complete
+     * @throws VaultException The storage does not support metadata, or the vault holds streamed credentials
+     */
+    public synchronized Future<Integer> rotateKey() throws VaultException {
+        if (!supportsMetadata(storage)) {
+            throw new VaultException("Key rotation requires a storage supporting metadata, " + storage.getClass().getName() + " does not");
+        }
+        if (keyRotation != null && !keyRotation.isDone()) {
+            return keyRotation;
+        }
+        synchronized (blobLock) {
+            if (rotationKey == null) {
+                if (openBlobStreams > 0 || !blobStore.isEmpty()) {
+                    throw new VaultException("Streamed credentials can not be re-encrypted, remove them before rotating the key");
+                }
+                // streams opened from now on would be encrypted with the retired key
+                rotationStarting = true;
+            }
+        }
+        try {
+            keyRotation = VaultExecutors.background().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws GeneralSecurityException, IOException {
+                    try {
+                        return runKeyRotation();
+                    } finally {
+                        setRotationStarted();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            setRotationStarted();
+            throw e;
+        }
+        return keyRotation;
+    }
+
+    /**
+     * Start a new vault generation after the vault has been reset: unlocked vault instances in this
+     * process are locked on their next operation, plaintext caches are cleared.
+     */
+    static void newGeneration() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Decrypt a value using the vault key.
+     *
+     * @param value
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private byte[] decrypt(byte[] value) throws GeneralSecurityException, IOException {
+        return crypt(Cipher.DECRYPT_MODE, value);
+    }
+
+    /**
+     * Encrypt a value using the vault key.
+     *
+     * @param value
+     * @return The encrypted value
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private byte[] encrypt(byte[] value) throws GeneralSecurityException, IOException {
+        return crypt(Cipher.ENCRYPT_MODE, value);
+    }
+
+    /**
+     * An operation that needs the vault key.
+     */
+    private interface KeyOperation<T> {
+
+        T run(SecretKey key) throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Counts as open in {@link #openBlobStreams} until it is closed.
+     */
+    private final class BlobOutputStream extends FilterOutputStream {
+
+        private boolean closed;
+
+        BlobOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                synchronized (blobLock) {
+                    if (!closed) {
+                        closed = true;
+                        openBlobStreams--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the operation with the vault key, using the key of the unlocked session if there is one
+     * and unwrapping the key otherwise.
+     */
+    private <T> T withVaultKey(KeyOperation<T> operation) throws GeneralSecurityException, IOException {
+        final VaultSession current = getCurrentSession();
+        final SecretKey sessionKey = current == null ? null : current.acquire();
+        if (sessionKey != null) {
+            try {
+                keyCacheHits.incrementAndGet();
+                VaultMetrics.cacheHit(VaultMetrics.Cache.KEY);
+                return operation.run(sessionKey);
+            } finally {
+                current.release();
+            }
+        }
+        keyCacheMisses.incrementAndGet();
+        VaultMetrics.cacheMiss(VaultMetrics.Cache.KEY);
+        return operation.run(getOrCreateVaultKey());
+    }
+
+    /**
+     * Remember a credential read in a legacy record format, and schedule the migration if it isn't yet.
+     * The record is not rewritten right away, so reads never wait for a write.
+     */
+    private void recordOutdated(String name) {
+        outdatedRecords.add(name);
+        scheduleMigration();
+    }
+
+    private void scheduleMigration() {
+        if (!migrationScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            VaultExecutors.background().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // the first migration checks all records, as the others are most likely outdated as well
+                        migrateRecords(!migrationSwept);
+                    } catch (GeneralSecurityException e) {
+                        LOGGER.log(Level.WARNING, "Credentials could not be migrated to the current record format", e);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Credentials could not be migrated to the current record format", e);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Credentials could not be migrated to the current record format", e);
+                    } finally {
+                        migrationScheduled.set(false);
+                    }
+                    if (!outdatedRecords.isEmpty()) {
+                        scheduleMigration(); // found while this migration was running
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // retried on the next read of an outdated record
+            migrationScheduled.set(false);
+        }
+    }
+
+    /**
+     * Rewrite the credentials found outdated when read, and all others if sweep is true.
+     *
+     * @return The number of rewritten credentials
+     */
+    private int migrateRecords(final boolean sweep) throws GeneralSecurityException, IOException {
+        final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_RECORD_MIGRATION);
+        try {
+            return withVaultKey(new KeyOperation<Integer>() {
+                @Override
+                public Integer run(SecretKey key) {
+                    final List<String> names = new ArrayList<String>();
+                    for (Iterator<String> it = outdatedRecords.iterator(); it.hasNext(); ) {
+                        names.add(it.next());
+                        it.remove();
+                    }
+                    int migrated = migrateRecords(key, names);
+                    if (sweep) {
+                        migrated += migrateRecords(key, storage.getCredentialNames());
+                        migrationSwept = true;
+                    }
+                    if (migrated > 0) {
+                        LOGGER.info("Migrated " + migrated + " credentials to the current record format");
+                    }
+                    return migrated;
+                }
+            });
+        } finally {
+            VaultTracing.endAsync(VaultTracing.SECTION_RECORD_MIGRATION, traceCookie);
+        }
+    }
+
+    /**
+     * Rewrite the outdated records among the named credentials, a few of a single lock stripe at a time,
+     * so each write lock is only held briefly and released between the batches.
+     */
+    private int migrateRecords(SecretKey key, List<String> names) {
+        final List<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted, STRIPE_ORDER);
+        int migrated = 0;
+        for (int i = 0, end; i < sorted.size(); i = end) {
+            end = getBatchEnd(sorted, i, MIGRATION_BATCH_SIZE);
+            migrated += migrateBatch(key, sorted.subList(i, end));
+        }
+        return migrated;
+    }
+
+    /**
+     * @param names Credential names sorted by {@link #STRIPE_ORDER}
+     * @return The end of the batch starting at the given index: at most maxSize names of the same lock stripe
+     */
+    private static int getBatchEnd(List<String> names, int start, int maxSize) {
+        final int stripe = getStripe(names.get(start));
+        int end = start + 1;
+        while (end < names.size() && end - start < maxSize && getStripe(names.get(end)) == stripe) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @param names Credential names of a single lock stripe
+     */
+    private int migrateBatch(SecretKey key, List<String> names) {
+        final int[] stripes = getStripes(names);
+        lockStripes(stripes, true);
+        try {
+            // read again under the lock, the credentials may have been changed in the meantime
+            final Map<String, byte[]> migrated = new LinkedHashMap<String, byte[]>(names.size() * 2);
+            for (String name : names) {
+                final long start = VaultMetrics.start();
+                final byte[] encrypted = storage.getCredential(name);
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, encrypted == null ? 0 : encrypted.length);
+                if (encrypted == null || !RecordEnvelope.isLegacy(encrypted)) {
+                    continue;
+                }
+                try {
+                    final byte[] value = crypt(Cipher.DECRYPT_MODE, key, encrypted);
+                    try {
+                        migrated.put(name, crypt(Cipher.ENCRYPT_MODE, key, value));
+                    } finally {
+                        Arrays.fill(value, (byte) 0);
+                    }
+                } catch (GeneralSecurityException e) {
+                    // unreadable either way, leave it as it is
+                    LOGGER.log(Level.WARNING, "Credential " + name + " could not be migrated to the current record format", e);
+                }
+            }
+            if (migrated.isEmpty()) {
+                return 0;
+            }
+            final long start = VaultMetrics.start();
+            try {
+                if (storage instanceof BatchVaultStorage) {
+                    if (!((BatchVaultStorage) storage).setCredentials(migrated)) {
+                        LOGGER.warning("Migrated credentials could not be written to storage");
+                        return 0;
+                    }
+                } else {
+                    for (Map.Entry<String, byte[]> entry : migrated.entrySet()) {
+                        storage.setCredential(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                if (start != 0) {
+                    VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, getTotalLength(migrated));
+                }
+            }
+            return migrated.size();
+        } finally {
+            unlockStripes(stripes, true);
+        }
+    }
+
+    /**
+     * @return The key new values are encrypted with: the new key while a key rotation is pending, the
+     * given vault key otherwise.
+     */
+    private SecretKey getWriteKey(SecretKey key) {
+        final SecretKey newKey = rotationKey;
+        return newKey == null ? key : newKey;
+    }
+
+    /**
+     * Continue the key rotation that was pending when the vault was last used, if any. The new key is
+     * needed right away, as values may have been encrypted with it already.
+     */
+    private void resumeKeyRotation() throws GeneralSecurityException {
+        if (!supportsMetadata(storage)) {
+            return;
+        }
+        final byte[] wrappedKey = ((MetadataVaultStorage) storage).getMetadata(METADATA_ROTATION_KEY);
+        if (wrappedKey == null) {
+            return;
+        }
+        rotationKey = unwrapVaultKey(wrappedKey);
+        try {
+            rotateKey();
+        } catch (VaultException e) {
+            LOGGER.log(Level.WARNING, "Key rotation could not be resumed", e);
+        } catch (RejectedExecutionException e) {
+            // retried when the vault is opened again
+            LOGGER.log(Level.WARNING, "Key rotation could not be resumed", e);
+        }
+    }
+
+    private int runKeyRotation() throws GeneralSecurityException, IOException {
+        final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_KEY_ROTATION);
+        try {
+            return withVaultKey(new KeyOperation<Integer>() {
+                @Override
+                public Integer run(SecretKey key) throws GeneralSecurityException, IOException {
+                    return rotateKey(key);
+                }
+            });
+        } finally {
+            VaultTracing.endAsync(VaultTracing.SECTION_KEY_ROTATION, traceCookie);
+        }
+    }
+
+    /**
+     * Start or resume the key rotation, re-encrypt the credentials not done yet and make the new key the
+     * vault key. Credentials are processed ordered by lock stripe and name, so every batch only blocks
+     * one stripe and the checkpoint is the name of the last credential done. Checkpoints are written
+     * between stripes.
+     *
+     * @param retiredKey The current vault key
+     * @return The number of re-encrypted credentials
+     */
+    private int rotateKey(SecretKey retiredKey) throws GeneralSecurityException, IOException {
+        final MetadataVaultStorage metadata = (MetadataVaultStorage) storage;
+        byte[] wrappedKey = metadata.getMetadata(METADATA_ROTATION_KEY);
+        SecretKey newKey = rotationKey;
+        if (wrappedKey == null) {
+            newKey = generateVaultKey();
+            wrappedKey = wrapVaultKey(newKey);
+            // persisted before anything is encrypted with it
+            if (!metadata.setMetadata(METADATA_ROTATION_CHECKPOINT, null) || !metadata.setMetadata(METADATA_ROTATION_KEY, wrappedKey)) {
+                throw new IOException("Key rotation could not be started, the storage could not be written");
+            }
+        } else if (newKey == null) {
+            newKey = unwrapVaultKey(wrappedKey);
+        }
+        if (rotationKey != newKey) {
+            // waits for operations still encrypting with the retired key, so their values are listed below
+            lockStripes(ALL_STRIPES, true);
+            rotationKey = newKey;
+            unlockStripes(ALL_STRIPES, true);
+        }
+        setRotationStarted();
+
+        final byte[] checkpointBytes = metadata.getMetadata(METADATA_ROTATION_CHECKPOINT);
+        final String checkpoint = checkpointBytes == null ? null : new String(checkpointBytes, "UTF-8");
+        final List<String> names = new ArrayList<String>();
+        for (String name : storage.getCredentialNames()) {
+            if (checkpoint == null || STRIPE_ORDER.compare(name, checkpoint) > 0) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names, STRIPE_ORDER);
+
+        int rotated = 0;
+        long lastCheckpointMillis = clock.elapsedMillis();
+        for (int i = 0, end; i < names.size(); i = end) {
+            end = getBatchEnd(names, i, Integer.MAX_VALUE);
+            rotated += rotateStripe(retiredKey, newKey, names.subList(i, end));
+            final long now = clock.elapsedMillis();
+            if (now - lastCheckpointMillis >= ROTATION_CHECKPOINT_INTERVAL_MILLIS) {
+                if (!metadata.setMetadata(METADATA_ROTATION_CHECKPOINT, names.get(end - 1).getBytes("UTF-8"))) {
+                    throw new IOException("Key rotation checkpoint could not be written");
+                }
+                lastCheckpointMillis = now;
+            }
+        }
+        completeKeyRotation(newKey, wrappedKey);
+        LOGGER.info("Vault key rotated, " + rotated + " credentials re-encrypted");
+        return rotated;
+    }
+
+    /**
+     * @return True if the storage can hold metadata, also when it only forwards it to a wrapped storage
+     */
+    private static boolean supportsMetadata(VaultStorage storage) {
+        if (storage instanceof CachingVaultStorage) {
+            return ((CachingVaultStorage) storage).supportsMetadata();
+        }
+        return storage instanceof MetadataVaultStorage;
+    }
+
+    /**
+     * Allow credential streams to be written again, with the new key if the rotation got that far.
+     */
+    private void setRotationStarted() {
+        synchronized (blobLock) {
+            rotationStarting = false;
+        }
+    }
+
+    /**
+     * Re-encrypt the named credentials with the new key, unless they are already. Batches of at most
+     * {@link #ROTATION_BATCH_SIZE} credentials are read and re-encrypted without holding a lock. The
+     * stripe's write lock is only taken to check that the stored values are still the ones read, and to
+     * write the batch.
+     *
+     * @param names Credential names of a single lock stripe
+     * @return The number of re-encrypted credentials
+     */
+    private int rotateStripe(SecretKey retiredKey, SecretKey newKey, List<String> names) throws IOException {
+        final int[] stripes = getStripes(names);
+        int rotatedCount = 0;
+        int i = 0;
+        while (i < names.size()) {
+            final Map<String, byte[]> read = new LinkedHashMap<String, byte[]>();
+            final Map<String, byte[]> rotated = new LinkedHashMap<String, byte[]>();
+            for (int batchBytes = 0; i < names.size() && rotated.size() < ROTATION_BATCH_SIZE && batchBytes < ROTATION_BATCH_BYTES; i++) {
+                final String name = names.get(i);
+                final byte[] encrypted = readRecord(name);
+                if (encrypted == null) {
+                    continue;
+                }
+                batchBytes += encrypted.length;
+                try {
+                    // written since the rotation started, or by an interrupted run after its last checkpoint
+                    if (RecordEnvelope.isEncryptedWith(newKey, encrypted)) {
+                        continue;
+                    }
+                    final byte[] value = RecordEnvelope.decrypt(retiredKey, encrypted);
+                    try {
+                        rotated.put(name, RecordEnvelope.encrypt(newKey, value));
+                        read.put(name, encrypted);
+                    } finally {
+                        Arrays.fill(value, (byte) 0);
+                    }
+                } catch (GeneralSecurityException e) {
+                    // unreadable with either key or in an unsupported format, leave it as it is
+                    LOGGER.log(Level.WARNING, "Credential " + name + " could not be re-encrypted with the new vault key", e);
+                }
+            }
+            if (rotated.isEmpty()) {
+                continue;
+            }
+            lockStripes(stripes, true);
+            try {
+                // changed or removed since it was read, the new value is already written with the new key
+                for (Map.Entry<String, byte[]> entry : read.entrySet()) {
+                    if (!Arrays.equals(entry.getValue(), readRecord(entry.getKey()))) {
+                        rotated.remove(entry.getKey());
+                    }
+                }
+                if (!rotated.isEmpty()) {
+                    writeRotated(rotated);
+                    rotatedCount += rotated.size();
+                }
+            } finally {
+                unlockStripes(stripes, true);
+            }
+        }
+        return rotatedCount;
+    }
+
+    private byte[] readRecord(String name) {
+        final long start = VaultMetrics.start();
+        final byte[] encrypted = storage.getCredential(name);
+        VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, encrypted == null ? 0 : encrypted.length);
+        return encrypted;
+    }
+
+    private void writeRotated(Map<String, byte[]> rotated) throws IOException {
+        final long start = VaultMetrics.start();
+        try {
+            if (storage instanceof BatchVaultStorage) {
+                if (!((BatchVaultStorage) storage).setCredentials(rotated)) {
+                    throw new IOException("Re-encrypted credentials could not be written to storage");
+                }
+            } else {
+                for (Map.Entry<String, byte[]> entry : rotated.entrySet()) {
+                    storage.setCredential(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            if (start != 0) {
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_WRITE, start, getTotalLength(rotated));
+            }
+        }
+    }
+
+    /**
+     * Store the new key as the vault key, and switch the unlocked session (if any) over to it. The
+     * retired key is still used while the key is written, which is why the new one is only made the
+     * only key afterwards, while all credential locks are held.
+     */
+    private void completeKeyRotation(SecretKey newKey, byte[] wrappedKey) {
+        synchronized (KEY_CREATION_LOCK) {
+            storage.setKey(wrappedKey);
+        }
+        VaultSession retired = null;
+        lockStripes(ALL_STRIPES, true);
+        try {
+            synchronized (sessionLock) {
+                keyVersion++;
+                final VaultSession current = session;
+                if (current != null && current.isOpen()) {
+                    session = new VaultSession(newKey, current.getIdleTimeoutMillis(), current.getGeneration(), clock);
+                    retired = current;
+                }
+            }
+            rotationKey = null;
+        } finally {
+            unlockStripes(ALL_STRIPES, true);
+        }
+        if (retired != null) {
+            retired.close();
+        }
+        // if this fails, the next rotation finds nothing left to do
+        final MetadataVaultStorage metadata = (MetadataVaultStorage) storage;
+        if (!metadata.setMetadata(METADATA_ROTATION_KEY, null) || !metadata.setMetadata(METADATA_ROTATION_CHECKPOINT, null)) {
+            LOGGER.warning("Key rotation state could not be removed from storage");
+        }
+    }
+
+    private ReentrantReadWriteLock getLock(String name) {
+        return credentialLocks[getStripe(name)];
+    }
+
+    private static int getStripe(String name) {
+        int h = name == null ? 0 : name.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12) ^ (h >>> 7) ^ (h >>> 4); // spread the bits like HashMap
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * @return The indices of the lock stripes of the named credentials, in ascending order
+     */
+    private static int[] getStripes(Collection<String> names) {
+        final boolean[] used = new boolean[LOCK_STRIPES];
+        int count = 0;
+        for (String name : names) {
+            final int stripe = getStripe(name);
+            if (!used[stripe]) {
+                used[stripe] = true;
+                count++;
+            }
+        }
+        final int[] stripes = new int[count];
+        for (int i = 0, j = 0; i < LOCK_STRIPES; i++) {
+            if (used[i]) {
+                stripes[j++] = i;
+            }
+        }
+        return stripes;
+    }
+
+    /**
+     * Lock the stripes in ascending order, so concurrent batch operations can't deadlock.
+     */
+    private void lockStripes(int[] stripes, boolean write) {
+        for (int stripe : stripes) {
+            (write ? credentialLocks[stripe].writeLock() : credentialLocks[stripe].readLock()).lock();
+        }
+    }
+
+    private void unlockStripes(int[] stripes, boolean write) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            (write ? credentialLocks[stripes[i]].writeLock() : credentialLocks[stripes[i]].readLock()).unlock();
+        }
+    }
+
+    /**
+     * @return The plaintext cache, or null if it is not enabled
+     */
+    private PlaintextCache getPlaintextCache() {
+        final PlaintextCache cache = plaintextCache;
+        if (cache != null) {
+            cache.checkGeneration(generation.get());
+        }
+        return cache;
+    }
+
+    private void invalidateCached(String name) {
+        final PlaintextCache cache = plaintextCache;
+        if (cache != null) {
+            cache.invalidate(name);
+        }
+    }
+
+    private void invalidateCached(Collection<String> names) {
+        final PlaintextCache cache = plaintextCache;
+        if (cache != null) {
+            cache.invalidate(names);
+        }
+    }
+
+    /**
+     * @return The session of the unlocked vault, or null if the vault is locked
+     */
+    private VaultSession getCurrentSession() {
+        final VaultSession current = session;
+        if (current != null && current.getGeneration() != generation.get()) {
+            // the vault was reset since unlocking, the session key is gone for good
+            lock();
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Encrypt or decrypt the value (see {@link RecordEnvelope}), using the vault key.
+     */
+    private byte[] crypt(final int mode, final byte[] value) throws GeneralSecurityException, IOException {
+        return withVaultKey(new KeyOperation<byte[]>() {
+            @Override
+            public byte[] run(SecretKey key) throws GeneralSecurityException {
+                return crypt(mode, key, value);
+            }
+        });
+    }
+
+    /**
+     * Encrypt or decrypt all values, unwrapping the vault key at most once.
+     */
+    private Map<String, byte[]> cryptAll(final int mode, final Map<String, byte[]> values) throws GeneralSecurityException, IOException {
+        return withVaultKey(new KeyOperation<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> run(SecretKey key) throws GeneralSecurityException {
+                final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>(values.size() * 2);
+                for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                    result.put(entry.getKey(), crypt(mode, key, entry.getValue()));
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * @return The encrypted value of the named credential, or null if it does not exist. Backed by the
+     * calling thread's scratch buffer if the storage supports it.
+     */
+    private ByteBuffer readEncrypted(String name) {
+        final long start = VaultMetrics.start();
+        if (!(storage instanceof ByteBufferVaultStorage)) {
+            final byte[] value = storage.getCredential(name);
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, value == null ? 0 : value.length);
+            return value == null ? null : ByteBuffer.wrap(value);
+        }
+        int capacity = MIN_SCRATCH_BUFFER_SIZE;
+        while (true) {
+            final ByteBuffer buffer = getScratchBuffer(ENCRYPTED_SCRATCH, capacity);
+            final int length = ((ByteBufferVaultStorage) storage).getCredential(name, buffer);
+            if (length < 0) {
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, 0);
+                return null;
+            }
+            if (length <= buffer.capacity()) {
+                buffer.flip();
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_READ, start, length);
+                return buffer;
+            }
+            capacity = length; // larger than the buffer, retry with one that fits
+        }
+    }
+
+    /**
+     * Decrypt the value into the buffer, going through the scratch buffer if the cipher needs more
+     * room than the buffer has (the decrypted value is shorter than the encrypted one).
+     */
+    private int decrypt(SecretKey key, ByteBuffer encrypted, ByteBuffer dst) throws GeneralSecurityException {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_DECRYPT);
+        try {
+            return decryptInto(key, encrypted, dst);
+        } finally {
+            VaultTracing.end(tracer);
+        }
+    }
+
+    private int decryptInto(SecretKey key, ByteBuffer encrypted, ByteBuffer dst) throws GeneralSecurityException {
+        final long start = VaultMetrics.start();
+        final SecretKey newKey = rotationKey;
+        final int encryptedLength = encrypted.remaining();
+        final int outputSize = RecordEnvelope.getMaxValueLength(encrypted);
+        if (outputSize <= dst.remaining()) {
+            final int length = newKey == null ? RecordEnvelope.decrypt(key, encrypted, dst) : RecordEnvelope.decrypt(newKey, key, encrypted, dst);
+            VaultMetrics.record(VaultMetrics.Phase.DECRYPT, start, encryptedLength);
+            return length;
+        }
+        final ByteBuffer decrypted = getScratchBuffer(DECRYPTED_SCRATCH, outputSize);
+        try {
+            final int length = newKey == null ? RecordEnvelope.decrypt(key, encrypted, decrypted) : RecordEnvelope.decrypt(newKey, key, encrypted, decrypted);
+            if (length > dst.remaining()) {
+                throw new BufferOverflowException();
+            }
+            decrypted.flip();
+            dst.put(decrypted);
+            VaultMetrics.record(VaultMetrics.Phase.DECRYPT, start, encryptedLength);
+            return length;
+        } finally {
+            Arrays.fill(decrypted.array(), 0, decrypted.limit(), (byte) 0);
+        }
+    }
+
+    /**
+     * @return The calling thread's buffer, cleared and with at least the given capacity
+     */
+    private static ByteBuffer getScratchBuffer(ThreadLocal<ByteBuffer> scratch, int capacity) {
+        ByteBuffer buffer = scratch.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            final int size = Math.max(capacity, buffer == null ? MIN_SCRATCH_BUFFER_SIZE : buffer.capacity() * 2);
+            buffer = ByteBuffer.allocate(size);
+            scratch.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param key The vault key, which is retired if a key rotation is pending
+     */
+    private byte[] crypt(int mode, SecretKey key, byte[] value) throws GeneralSecurityException {
+        final boolean encrypt = mode == Cipher.ENCRYPT_MODE;
+        final VaultTracer tracer = VaultTracing.begin(encrypt ? VaultTracing.SECTION_ENCRYPT : VaultTracing.SECTION_DECRYPT);
+        try {
+            final long start = VaultMetrics.start();
+            final SecretKey newKey = rotationKey;
+            final byte[] result;
+            if (encrypt) {
+                result = RecordEnvelope.encrypt(newKey == null ? key : newKey, value);
+            } else {
+                result = newKey == null ? RecordEnvelope.decrypt(key, value) : RecordEnvelope.decrypt(newKey, key, value);
+            }
+            VaultMetrics.record(encrypt ? VaultMetrics.Phase.ENCRYPT : VaultMetrics.Phase.DECRYPT, start, value.length);
+            return result;
+        } finally {
+            VaultTracing.end(tracer);
+        }
+    }
+
+    private static long getTotalLength(Map<String, byte[]> values) {
+        long length = 0;
+        for (byte[] value : values.values()) {
+            length += value.length;
+        }
+        return length;
+    }
+}
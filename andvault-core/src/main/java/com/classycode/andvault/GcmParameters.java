@@ -0,0 +1,59 @@
+package com.classycode.andvault;
+
+import java.lang.reflect.Constructor;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Creates parameters for AES/GCM/NoPadding ciphers with a 128 bit authentication tag.
+ * <p/>
+ * {@code GCMParameterSpec} is only available from API level 19. On older devices the providers
+ * accept an {@link IvParameterSpec} for GCM and use the default 128 bit tag.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class GcmParameters {
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * Length of the authentication tag appended to the ciphertext, in bytes.
+     */
+    static final int TAG_LENGTH = 16;
+
+    /**
+     * Recommended IV length for GCM, in bytes.
+     */
+    static final int IV_LENGTH = 12;
+
+    private static final Constructor<? extends AlgorithmParameterSpec> GCM_SPEC_CONSTRUCTOR = findGcmSpecConstructor();
+
+    private GcmParameters() {
+    }
+
+    /**
+     * @param iv The IV, must never be used twice with the same key for encryption
+     * @return The parameters for initializing the cipher
+     */
+    static AlgorithmParameterSpec create(byte[] iv) {
+        if (GCM_SPEC_CONSTRUCTOR != null) {
+            try {
+                return GCM_SPEC_CONSTRUCTOR.newInstance(TAG_LENGTH * 8, iv);
+            } catch (Exception e) {
+                // fall through to the legacy parameters
+            }
+        }
+        return new IvParameterSpec(iv);
+    }
+
+    private static Constructor<? extends AlgorithmParameterSpec> findGcmSpecConstructor() {
+        try {
+            return Class.forName("javax.crypto.spec.GCMParameterSpec")
+                    .asSubclass(AlgorithmParameterSpec.class)
+                    .getConstructor(int.class, byte[].class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
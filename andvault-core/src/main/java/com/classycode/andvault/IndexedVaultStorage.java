@@ -0,0 +1,26 @@
+package com.classycode.andvault;
+
+import java.util.List;
+
+/**
+ * A {@link VaultStorage} that maintains a sorted index of the credential names, so names can be listed
+ * by prefix and page by page without reading the stored values.
+ * <p/>
+ * Implementing this interface is optional, {@link CoreVault} falls back to filtering and sorting the result
+ * of {@link VaultStorage#getCredentialNames()} for storages that don't implement it.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface IndexedVaultStorage extends VaultStorage {
+
+    /**
+     * Return a page of the names of the stored credentials starting with the given prefix, in
+     * lexicographic order. Pass the last name of a page as startAfter to get the next page.
+     *
+     * @param prefix     The prefix of the names, the empty string for all names
+     * @param startAfter Only return names following this one, or null to start with the first matching name
+     * @param limit      The maximum number of names to return, must be positive
+     * @return The names, at most limit. Fewer names than limit means there are no more.
+     */
+    List<String> getCredentialNames(String prefix, String startAfter, int limit);
+}
@@ -0,0 +1,31 @@
+package com.classycode.andvault;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Protects the symmetric vault key at rest by wrapping (encrypting) it with a key held elsewhere,
+ * e.g. a key pair in the Android KeyStore (see {@code VaultKeyWrapper}). The wrapped key can be
+ * stored safely in an untrusted {@link VaultStorage}.
+ * <p/>
+ * Implementations must be thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface KeyWrapper {
+
+    /**
+     * @param key The key to wrap
+     * @return The wrapped key, to be recovered with {@link #unwrap(byte[])}
+     * @throws GeneralSecurityException The key could not be wrapped
+     */
+    byte[] wrap(SecretKey key) throws GeneralSecurityException;
+
+    /**
+     * @param wrappedKey A key as returned by {@link #wrap(SecretKey)}
+     * @return The original key
+     * @throws GeneralSecurityException The key could not be unwrapped, e.g. because the wrapping key is gone
+     */
+    SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException;
+}
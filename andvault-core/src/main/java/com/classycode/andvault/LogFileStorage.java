@@ -0,0 +1,771 @@
+package com.classycode.andvault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link VaultStorage} implementation backed by an append-only log file. Every change is appended
+ * as a checksummed record and synced to disk, so the cost of a write only depends on the size of the
+ * change, not on the size of the vault. Removed credentials are recorded as tombstones. Metadata (see
+ * {@link MetadataVaultStorage}) is kept in the same log, every change of it is synced like any other.
+ * <p/>
+ * An in-memory index of record positions is rebuilt when the file is opened; values are read from
+ * the file on demand. A record that was only partially written (e.g. because the process died) is
+ * detected by its checksum and discarded on open.
+ * <p/>
+ * Overwritten and removed values remain in the file as garbage until the log is compacted, which
+ * happens in the background once the garbage exceeds the configured threshold, or explicitly with
+ * {@link #compact()}.
+ * <p/>
+ * Thread safe. Reads run concurrently, writes are serialized.
+ * <p/>
+ * File format: an 8 byte header (magic, format version), followed by records. A record consists of
+ * the payload length (4 bytes), the payload and a CRC32 of the payload (4 bytes). The payload holds
+ * the number of entries (4 bytes) followed by the entries, each consisting of an operation (1 byte),
+ * the name length (2 bytes), the value length (4 bytes), the UTF-8 encoded name and the value. All
+ * entries of a record are applied atomically. Logs containing metadata entries can't be opened by
+ * versions of the library that don't support metadata.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class LogFileStorage implements BatchVaultStorage, ByteBufferVaultStorage, MetadataVaultStorage, Closeable {
+
+    /**
+     * Default fraction of the file that needs to be garbage before it is compacted.
+     */
+    public static final double DEFAULT_COMPACTION_GARBAGE_RATIO = 0.5;
+
+    /**
+     * Default minimum amount of garbage (in bytes) before the file is compacted.
+     */
+    public static final long DEFAULT_COMPACTION_MIN_GARBAGE_BYTES = 64 * 1024;
+
+    private static final int MAGIC = 0x41564c47; // "AVLG"
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Payload length and CRC of a record, plus the entry count in the payload.
+     */
+    private static final int RECORD_OVERHEAD = 12;
+
+    /**
+     * Operation, name length and value length of an entry.
+     */
+    private static final int ENTRY_OVERHEAD = 7;
+
+    /**
+     * Upper bound for the payload length, anything larger is treated as corruption.
+     */
+    private static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+
+    private static final byte OP_PUT = 1;
+
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte OP_SET_KEY = 3;
+
+    private static final byte OP_PUT_METADATA = 4;
+
+    private static final byte OP_REMOVE_METADATA = 5;
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(
+            new VaultExecutors.NamedThreadFactory("andvault-log-compactor"));
+
+    private final File file;
+
+    private final double compactionGarbageRatio;
+
+    private final long compactionMinGarbageBytes;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes compactions.
+     */
+    private final Object compactionLock = new Object();
+
+    // the following fields are guarded by lock
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private LogIndex index;
+
+    private long end;
+
+    /**
+     * Incremented when the log is reset or closed, so a running compaction notices it.
+     */
+    private int generation;
+
+    private boolean compactionScheduled;
+
+    /**
+     * Open the log file, creating it if it does not exist. Uses the default compaction thresholds.
+     *
+     * @param file The log file, e.g. in the application's files directory
+     * @throws IOException The file could not be opened or is not a vault log file
+     */
+    public LogFileStorage(File file) throws IOException {
+        this(file, DEFAULT_COMPACTION_GARBAGE_RATIO, DEFAULT_COMPACTION_MIN_GARBAGE_BYTES);
+    }
+
+    /**
+     * Open the log file, creating it if it does not exist.
+     *
+     * @param file                      The log file, e.g. in the application's files directory
+     * @param compactionGarbageRatio    Fraction (0..1) of the file that needs to be garbage before it is compacted
+     * @param compactionMinGarbageBytes Minimum amount of garbage (in bytes) before the file is compacted
+     * @throws IOException The file could not be opened or is not a vault log file
+     */
+    public LogFileStorage(File file, double compactionGarbageRatio, long compactionMinGarbageBytes) throws IOException {
+        if (compactionGarbageRatio < 0 || compactionGarbageRatio > 1) {
+            throw new IllegalArgumentException("Compaction garbage ratio must be between 0 and 1");
+        }
+        this.file = file;
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        this.compactionMinGarbageBytes = compactionMinGarbageBytes;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                writeHeader(channel);
+            } else {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                    throw new IOException("Not a vault log file: " + file);
+                }
+            }
+            index = new LogIndex();
+            final long size = channel.size();
+            end = scan(channel, HEADER_SIZE, size, index);
+            if (end < size) {
+                // discard a partially written record at the end of the log
+                channel.truncate(end);
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The log file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The size of the log file in bytes.
+     */
+    public long getFileSize() {
+        lock.readLock().lock();
+        try {
+            return end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes in the log file occupied by overwritten or removed values.
+     */
+    public long getGarbageBytes() {
+        lock.readLock().lock();
+        try {
+            return index.garbageBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getCredentialNames() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<String>(index.credentials.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getCredential(String name) {
+        lock.readLock().lock();
+        try {
+            final Location location = index.credentials.get(name);
+            return location == null ? null : read(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the value from the file straight into the buffer.
+     */
+    @Override
+    public int getCredential(String name, ByteBuffer dst) {
+        lock.readLock().lock();
+        try {
+            final Location location = index.credentials.get(name);
+            if (location == null) {
+                return -1;
+            }
+            if (location.length <= dst.remaining()) {
+                final int limit = dst.limit();
+                dst.limit(dst.position() + location.length);
+                try {
+                    readFully(channel, dst, location.offset);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Reading from vault log failed", e);
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+            return location.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getCredentials(Collection<String> names) {
+        final Map<String, byte[]> credentials = new LinkedHashMap<String, byte[]>(names.size() * 2);
+        lock.readLock().lock();
+        try {
+            for (String name : names) {
+                final Location location = index.credentials.get(name);
+                if (location != null) {
+                    credentials.put(name, read(location));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return credentials;
+    }
+
+    @Override
+    public void setCredential(String name, byte[] value) {
+        checkCredentialName(name);
+        if (!append(Collections.singletonList(new Entry(OP_PUT, name, value)))) {
+            throw new IllegalStateException("Writing to vault log failed");
+        }
+    }
+
+    @Override
+    public void setCredential(String name, ByteBuffer value) {
+        final byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        setCredential(name, bytes);
+    }
+
+    @Override
+    public boolean setCredentials(Map<String, byte[]> values) {
+        final List<Entry> entries = new ArrayList<Entry>(values.size());
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            checkCredentialName(value.getKey());
+            entries.add(new Entry(OP_PUT, value.getKey(), value.getValue()));
+        }
+        return entries.isEmpty() || append(entries);
+    }
+
+    @Override
+    public void removeCredential(String name) {
+        lock.readLock().lock();
+        try {
+            if (!index.credentials.containsKey(name)) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!append(Collections.singletonList(new Entry(OP_REMOVE, name, null)))) {
+            throw new IllegalStateException("Writing to vault log failed");
+        }
+    }
+
+    @Override
+    public boolean removeCredentials(Collection<String> names) {
+        final List<Entry> entries = new ArrayList<Entry>(names.size());
+        lock.readLock().lock();
+        try {
+            for (String name : names) {
+                // no tombstones for credentials that don't exist, they would only be garbage
+                if (index.credentials.containsKey(name)) {
+                    entries.add(new Entry(OP_REMOVE, name, null));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entries.isEmpty() || append(entries);
+    }
+
+    @Override
+    public void setKey(byte[] key) {
+        if (!append(Collections.singletonList(new Entry(OP_SET_KEY, "", key)))) {
+            throw new IllegalStateException("Writing to vault log failed");
+        }
+    }
+
+    @Override
+    public byte[] getKey() {
+        lock.readLock().lock();
+        try {
+            return index.key == null ? null : read(index.key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getMetadata(String name) {
+        lock.readLock().lock();
+        try {
+            final Location location = index.metadata.get(name);
+            return location == null ? null : read(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean setMetadata(String name, byte[] value) {
+        if (value == null) {
+            lock.readLock().lock();
+            try {
+                if (!index.metadata.containsKey(name)) {
+                    return true;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return append(Collections.singletonList(new Entry(OP_REMOVE_METADATA, name, null)));
+        }
+        return append(Collections.singletonList(new Entry(OP_PUT_METADATA, name, value)));
+    }
+
+    @Override
+    public void reset() {
+        lock.writeLock().lock();
+        try {
+            generation++;
+            channel.truncate(HEADER_SIZE);
+            channel.force(true);
+            end = HEADER_SIZE;
+            index = new LogIndex();
+        } catch (IOException e) {
+            throw new IllegalStateException("Resetting vault log failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close the log file. The storage can not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            generation++;
+            raf.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the log file so it only contains the current values. Writes are only blocked while
+     * records appended during the compaction are copied over and the new file is swapped in.
+     *
+     * @throws IOException The compacted file could not be written, the current file remains in use
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            final Map<String, Location> liveCredentials;
+            final Map<String, Location> liveMetadata;
+            final Location liveKey;
+            final long snapshotEnd;
+            final int snapshotGeneration;
+            final FileChannel source;
+            lock.readLock().lock();
+            try {
+                liveCredentials = new HashMap<String, Location>(index.credentials);
+                liveMetadata = new HashMap<String, Location>(index.metadata);
+                liveKey = index.key;
+                snapshotEnd = end;
+                snapshotGeneration = generation;
+                source = channel;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // existing records are never modified, so they can be copied without holding the lock
+            final File compactFile = new File(file.getPath() + ".compact");
+            final RandomAccessFile compactRaf = new RandomAccessFile(compactFile, "rw");
+            boolean swapped = false;
+            try {
+                final FileChannel target = compactRaf.getChannel();
+                target.truncate(0);
+                writeHeader(target);
+                final LogIndex compactIndex = new LogIndex();
+                long position = HEADER_SIZE;
+                for (Map.Entry<String, Location> credential : liveCredentials.entrySet()) {
+                    final Entry entry = new Entry(OP_PUT, credential.getKey(), read(source, credential.getValue()));
+                    position = write(target, position, Collections.singletonList(entry), compactIndex);
+                }
+                for (Map.Entry<String, Location> metadata : liveMetadata.entrySet()) {
+                    final Entry entry = new Entry(OP_PUT_METADATA, metadata.getKey(), read(source, metadata.getValue()));
+                    position = write(target, position, Collections.singletonList(entry), compactIndex);
+                }
+                if (liveKey != null) {
+                    position = write(target, position, Collections.singletonList(new Entry(OP_SET_KEY, "", read(source, liveKey))), compactIndex);
+                }
+                target.force(true);
+
+                lock.writeLock().lock();
+                try {
+                    if (generation != snapshotGeneration) {
+                        return; // reset or closed in the meantime
+                    }
+                    if (end > snapshotEnd) {
+                        // copy the records appended during the compaction verbatim
+                        final long tailLength = end - snapshotEnd;
+                        target.position(position);
+                        long transferred = 0;
+                        while (transferred < tailLength) {
+                            transferred += channel.transferTo(snapshotEnd + transferred, tailLength - transferred, target);
+                        }
+                        position = scan(target, position, position + tailLength, compactIndex);
+                        target.force(true);
+                    }
+                    if (!compactFile.renameTo(file)) {
+                        throw new IOException("Could not replace " + file + " with compacted log");
+                    }
+                    raf.close();
+                    raf = compactRaf;
+                    channel = target;
+                    index = compactIndex;
+                    end = position;
+                    swapped = true;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                if (!swapped) {
+                    compactRaf.close();
+                    compactFile.delete();
+                }
+            }
+        }
+    }
+
+    private static void checkCredentialName(String name) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Credential name must not be null or empty");
+        }
+    }
+
+    /**
+     * Append the entries as one record and sync it to disk. The index and the end of the log are only
+     * updated once the record is on disk, so a failed write leaves them unchanged.
+     *
+     * @return True if the record was written
+     */
+    private boolean append(List<Entry> entries) {
+        lock.writeLock().lock();
+        try {
+            final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+            final long start = VaultMetrics.start();
+            final long position = end;
+            try {
+                final ByteBuffer record = encode(entries);
+                writeFully(channel, record, position);
+                channel.force(false);
+                apply(record, position, index);
+                end = position + record.limit();
+                VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, end - position);
+            } catch (IOException e) {
+                try {
+                    // drop the partial record, so later appends are not lost behind it
+                    channel.truncate(position);
+                } catch (IOException ignored) {
+                    // will be discarded when the log is opened the next time
+                }
+                return false;
+            } finally {
+                VaultTracing.end(tracer);
+            }
+            if (!compactionScheduled && needsCompaction()) {
+                compactionScheduled = true;
+                final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_COMPACTION);
+                COMPACTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact();
+                        } catch (IOException e) {
+                            // the log keeps working uncompacted, compaction is tried again after the next write
+                        } finally {
+                            lock.writeLock().lock();
+                            compactionScheduled = false;
+                            lock.writeLock().unlock();
+                            VaultTracing.endAsync(VaultTracing.SECTION_COMPACTION, traceCookie);
+                        }
+                    }
+                });
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return index.garbageBytes >= compactionMinGarbageBytes && index.garbageBytes >= compactionGarbageRatio * end;
+    }
+
+    private byte[] read(Location location) {
+        try {
+            return read(channel, location);
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading from vault log failed", e);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, Location location) throws IOException {
+        final ByteBuffer value = ByteBuffer.allocate(location.length);
+        readFully(channel, value, location.offset);
+        return value.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        writeFully(channel, header, 0);
+        channel.force(true);
+    }
+
+    /**
+     * Write the entries as one record at the given position and apply them to the index.
+     *
+     * @return The position after the record
+     */
+    private static long write(FileChannel channel, long position, List<Entry> entries, LogIndex index) throws IOException {
+        final ByteBuffer record = encode(entries);
+        writeFully(channel, record, position);
+        apply(record, position, index);
+        return position + record.limit();
+    }
+
+    /**
+     * @return The entries as one record, including length and checksum, ready to be written
+     */
+    private static ByteBuffer encode(List<Entry> entries) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // payload length, filled in below
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeByte(entry.op);
+            out.writeShort(entry.name.length);
+            out.writeInt(entry.value == null ? 0 : entry.value.length);
+            out.write(entry.name);
+            if (entry.value != null) {
+                out.write(entry.value);
+            }
+        }
+        final byte[] record = bytes.toByteArray();
+        final int payloadLength = record.length - 4;
+        final CRC32 crc = new CRC32();
+        crc.update(record, 4, payloadLength);
+        final ByteBuffer buffer = ByteBuffer.allocate(record.length + 4);
+        buffer.put(record).putInt((int) crc.getValue()).putInt(0, payloadLength).flip();
+        return buffer;
+    }
+
+    /**
+     * Read records between start and limit and apply them to the index. Stops at the first record
+     * that is incomplete or fails the checksum.
+     *
+     * @return The position after the last valid record
+     */
+    private static long scan(FileChannel channel, long start, long limit, LogIndex index) throws IOException {
+        long position = start;
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (position + 4 <= limit) {
+            lengthBuffer.clear();
+            readFully(channel, lengthBuffer, position);
+            final int payloadLength = lengthBuffer.getInt(0);
+            if (payloadLength < 4 || payloadLength > MAX_PAYLOAD_SIZE || position + payloadLength + 8 > limit) {
+                break;
+            }
+            final ByteBuffer record = ByteBuffer.allocate(payloadLength + 8);
+            readFully(channel, record, position);
+            final CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, payloadLength);
+            if (record.getInt(payloadLength + 4) != (int) crc.getValue()) {
+                break;
+            }
+            apply(record, position, index);
+            position += record.limit();
+        }
+        return position;
+    }
+
+    /**
+     * Apply the entries of a complete record, located at the given file position, to the index.
+     */
+    private static void apply(ByteBuffer record, long position, LogIndex index) throws IOException {
+        final int count = record.getInt(4);
+        int offset = 8;
+        for (int i = 0; i < count; i++) {
+            final byte op = record.get(offset);
+            final int nameLength = record.getShort(offset + 1) & 0xffff;
+            final int valueLength = record.getInt(offset + 3);
+            final String name = new String(record.array(), offset + ENTRY_OVERHEAD, nameLength, "UTF-8");
+            // attribute the record overhead to its first entry
+            final int entrySize = ENTRY_OVERHEAD + nameLength + valueLength + (i == 0 ? RECORD_OVERHEAD : 0);
+            final Location location = new Location(position + offset + ENTRY_OVERHEAD + nameLength, valueLength, entrySize);
+            index.apply(op, name, location);
+            offset += ENTRY_OVERHEAD + nameLength + valueLength;
+        }
+    }
+
+    /**
+     * Position of a value in the log file.
+     */
+    private static final class Location {
+
+        final long offset;
+
+        final int length;
+
+        /**
+         * Number of bytes the entry occupies in the file, including overhead.
+         */
+        final int entrySize;
+
+        Location(long offset, int length, int entrySize) {
+            this.offset = offset;
+            this.length = length;
+            this.entrySize = entrySize;
+        }
+    }
+
+    /**
+     * The current values in the log file, by position.
+     */
+    private static final class LogIndex {
+
+        final Map<String, Location> credentials = new HashMap<String, Location>();
+
+        final Map<String, Location> metadata = new HashMap<String, Location>();
+
+        Location key;
+
+        long garbageBytes;
+
+        void apply(byte op, String name, Location location) throws IOException {
+            final Location previous;
+            switch (op) {
+                case OP_PUT:
+                    previous = credentials.put(name, location);
+                    break;
+                case OP_REMOVE:
+                    previous = credentials.remove(name);
+                    garbageBytes += location.entrySize; // tombstones are only needed until the next compaction
+                    break;
+                case OP_SET_KEY:
+                    previous = key;
+                    key = location;
+                    break;
+                case OP_PUT_METADATA:
+                    previous = metadata.put(name, location);
+                    break;
+                case OP_REMOVE_METADATA:
+                    previous = metadata.remove(name);
+                    garbageBytes += location.entrySize;
+                    break;
+                default:
+                    throw new IOException("Unknown vault log operation " + op);
+            }
+            if (previous != null) {
+                garbageBytes += previous.entrySize;
+            }
+        }
+    }
+
+    /**
+     * A change to be written to the log.
+     */
+    private static final class Entry {
+
+        final byte op;
+
+        final byte[] name;
+
+        final byte[] value;
+
+        Entry(byte op, String name, byte[] value) {
+            this.op = op;
+            try {
+                this.name = name.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException(e); // should never happen
+            }
+            if (this.name.length > 0xffff) {
+                throw new IllegalArgumentException("Credential name is too long");
+            }
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.classycode.andvault;
+
+/**
+ * A {@link VaultStorage} that can also hold small named values about the vault itself (metadata),
+ * like the progress of a key rotation (see {@link CoreVault#rotateKey()}). Metadata is not listed with
+ * the credentials and is removed by {@link #reset()}.
+ * <p/>
+ * Implementing this interface is optional, but required for key rotation.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface MetadataVaultStorage extends VaultStorage {
+
+    /**
+     * @param name The name of the value
+     * @return The stored value, or null if there is none
+     */
+    byte[] getMetadata(String name);
+
+    /**
+     * Store or remove a value. Like the vault key, metadata is written synchronously, after any buffered
+     * credential writes.
+     *
+     * @param name  The name of the value
+     * @param value The value, or null to remove it
+     * @return True if the change was written to persistent storage
+     */
+    boolean setMetadata(String name, byte[] value);
+}
@@ -0,0 +1,225 @@
+package com.classycode.andvault;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of decrypted credential values, bounded by the number of entries and their total
+ * size. The least recently used entries are evicted first, entries expire after a fixed time to live.
+ * <p/>
+ * The cache keeps its own copies of the values and hands out copies, so callers can't modify or wipe
+ * the cached values. Values are overwritten with zeros when they leave the cache.
+ * <p/>
+ * To avoid caching a value that was replaced while it was being read, a value read from storage is
+ * only added if the cache was not invalidated since the read started (see {@link #getVersion()}).
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class PlaintextCache {
+
+    private static final class Entry {
+
+        final byte[] value;
+
+        final long expiresAtMillis;
+
+        Entry(byte[] value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final long ttlMillis;
+
+    private final VaultClock clock;
+
+    // the following fields are guarded by this
+
+    /**
+     * In access order, the least recently used entry first.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long bytes;
+
+    private long version;
+
+    private int generation;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * @param maxEntries The maximum number of cached values
+     * @param maxBytes   The maximum total size of the cached values in bytes
+     * @param ttlMillis  The time after which a cached value expires, in milliseconds
+     * @param generation The vault generation the cached values belong to, see {@link #checkGeneration(int)}
+     * @param clock      The clock measuring the time to live
+     */
+    PlaintextCache(int maxEntries, long maxBytes, long ttlMillis, int generation, VaultClock clock) {
+        if (maxEntries <= 0 || maxBytes <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Cache limits and time to live must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.generation = generation;
+        this.clock = clock;
+    }
+
+    /**
+     * Drop all values if the vault was reset since they were cached.
+     */
+    synchronized void checkGeneration(int currentGeneration) {
+        if (generation != currentGeneration) {
+            generation = currentGeneration;
+            clear();
+        }
+    }
+
+    /**
+     * @return The current version of the cache, to be passed to {@link #put(String, byte[], long)}
+     * for a value read after this call.
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return A copy of the cached value, or null if it is not cached
+     */
+    synchronized byte[] get(String name) {
+        final Entry entry = lookup(name);
+        return entry == null ? null : entry.value.clone();
+    }
+
+    /**
+     * Copy the cached value into the buffer.
+     *
+     * @return The length of the value, or -1 if it is not cached
+     * @throws BufferOverflowException The value is longer than the remaining bytes of the buffer, the buffer is left untouched
+     */
+    synchronized int get(String name, ByteBuffer dst) {
+        final Entry entry = lookup(name);
+        if (entry == null) {
+            return -1;
+        }
+        if (entry.value.length > dst.remaining()) {
+            throw new BufferOverflowException();
+        }
+        dst.put(entry.value);
+        return entry.value.length;
+    }
+
+    /**
+     * Cache a copy of the value, unless the cache was invalidated since the given version.
+     */
+    synchronized void put(String name, byte[] value, long readVersion) {
+        if (readVersion != version || value.length > maxBytes) {
+            return;
+        }
+        final Entry previous = entries.put(name, new Entry(value.clone(), clock.elapsedMillis() + ttlMillis));
+        if (previous != null) {
+            discard(previous);
+        }
+        bytes += value.length;
+        evict();
+    }
+
+    /**
+     * Drop the cached value of the named credential.
+     */
+    synchronized void invalidate(String name) {
+        version++;
+        final Entry entry = entries.remove(name);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Drop the cached values of the named credentials.
+     */
+    synchronized void invalidate(Collection<String> names) {
+        version++;
+        for (String name : names) {
+            final Entry entry = entries.remove(name);
+            if (entry != null) {
+                discard(entry);
+            }
+        }
+    }
+
+    /**
+     * Drop all cached values.
+     */
+    synchronized void clear() {
+        version++;
+        for (Entry entry : entries.values()) {
+            discard(entry);
+        }
+        entries.clear();
+    }
+
+    synchronized PlaintextCacheStats getStats() {
+        evict(); // expired entries are otherwise only dropped when accessed or on the next put
+        return new PlaintextCacheStats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    private Entry lookup(String name) {
+        final Entry entry = entries.get(name);
+        if (entry != null && entry.expiresAtMillis - clock.elapsedMillis() <= 0) {
+            entries.remove(name);
+            discard(entry);
+            evictions++;
+            misses++;
+            VaultMetrics.cacheMiss(VaultMetrics.Cache.PLAINTEXT);
+            return null;
+        }
+        if (entry == null) {
+            misses++;
+            VaultMetrics.cacheMiss(VaultMetrics.Cache.PLAINTEXT);
+        } else {
+            hits++;
+            VaultMetrics.cacheHit(VaultMetrics.Cache.PLAINTEXT);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop expired entries, then least recently used ones until the cache is within its bounds.
+     */
+    private void evict() {
+        final long now = clock.elapsedMillis();
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            final boolean overLimit = entries.size() > maxEntries || bytes > maxBytes;
+            if (!overLimit && entry.expiresAtMillis - now > 0) {
+                continue;
+            }
+            iterator.remove();
+            discard(entry);
+            evictions++;
+        }
+    }
+
+    private void discard(Entry entry) {
+        bytes -= entry.value.length;
+        Arrays.fill(entry.value, (byte) 0);
+    }
+}
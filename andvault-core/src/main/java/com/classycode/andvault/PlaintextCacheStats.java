@@ -0,0 +1,76 @@
+package com.classycode.andvault;
+
+/**
+ * Snapshot of the usage statistics of a vault's plaintext cache, see {@link CoreVault#getPlaintextCacheStats()}.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public final class PlaintextCacheStats {
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final int entryCount;
+
+    private final long byteCount;
+
+    PlaintextCacheStats(long hits, long misses, long evictions, int entryCount, long byteCount) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entryCount = entryCount;
+        this.byteCount = byteCount;
+    }
+
+    /**
+     * @return The number of reads that were served from the cache.
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return The number of reads that had to go to the storage.
+     */
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return The fraction (0..1) of reads that were served from the cache.
+     */
+    public double getHitRatio() {
+        final long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    /**
+     * @return The number of entries that were dropped because the cache was full or they had expired.
+     */
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of cached credentials.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return The total size of the cached values in bytes.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", hitRatio=" + getHitRatio() + ", evictions=" + evictions
+                + ", entries=" + entryCount + ", bytes=" + byteCount;
+    }
+}
@@ -0,0 +1,214 @@
+package com.classycode.andvault;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A {@link VaultStorage} implementation backed by a {@link Properties} file, a stand-in for the
+ * {@code SharedPrefsStorage} on the JVM. Like {@code SharedPreferences}, the file is loaded into memory
+ * on first access and rewritten as a whole on every change, with the values Base64 encoded, so the
+ * cost of reads and writes is comparable.
+ * <p/>
+ * Every write replaces the file atomically: the new contents are written to a temporary file, synced
+ * and renamed over the old file.
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class PropertiesFileStorage implements BatchVaultStorage, MetadataVaultStorage {
+
+    private static final String PROPERTY_KEY = "key";
+
+    private static final String PROPERTY_PREFIX_CREDENTIAL = "credential_";
+
+    private static final String PROPERTY_PREFIX_METADATA = "metadata_";
+
+    private final File file;
+
+    // guarded by this
+
+    /**
+     * The file contents, loaded on first access.
+     */
+    private Properties properties;
+
+    /**
+     * @param file The properties file, created on the first write if it does not exist
+     */
+    public PropertiesFileStorage(File file) {
+        this.file = file;
+    }
+
+    private static void checkCredentialName(String name) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Credential name must not be null or empty");
+        }
+    }
+
+    @Override
+    public synchronized List<String> getCredentialNames() {
+        final List<String> names = new ArrayList<String>();
+        for (String property : getProperties().stringPropertyNames()) {
+            if (property.startsWith(PROPERTY_PREFIX_CREDENTIAL)) {
+                names.add(property.substring(PROPERTY_PREFIX_CREDENTIAL.length()));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public synchronized byte[] getCredential(String name) {
+        return getBytes(PROPERTY_PREFIX_CREDENTIAL + name);
+    }
+
+    @Override
+    public void setCredential(String name, byte[] value) {
+        checkCredentialName(name);
+        write(Collections.singletonMap(PROPERTY_PREFIX_CREDENTIAL + name, Base64Codec.encode(value)));
+    }
+
+    @Override
+    public void removeCredential(String name) {
+        write(Collections.singletonMap(PROPERTY_PREFIX_CREDENTIAL + name, (String) null));
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> getCredentials(Collection<String> names) {
+        final Map<String, byte[]> credentials = new LinkedHashMap<String, byte[]>(names.size() * 2);
+        for (String name : names) {
+            final byte[] value = getBytes(PROPERTY_PREFIX_CREDENTIAL + name);
+            if (value != null) {
+                credentials.put(name, value);
+            }
+        }
+        return credentials;
+    }
+
+    @Override
+    public boolean setCredentials(Map<String, byte[]> values) {
+        final Map<String, String> changes = new LinkedHashMap<String, String>(values.size() * 2);
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            checkCredentialName(entry.getKey());
+            changes.put(PROPERTY_PREFIX_CREDENTIAL + entry.getKey(), Base64Codec.encode(entry.getValue()));
+        }
+        return write(changes);
+    }
+
+    @Override
+    public boolean removeCredentials(Collection<String> names) {
+        final Map<String, String> changes = new LinkedHashMap<String, String>(names.size() * 2);
+        for (String name : names) {
+            changes.put(PROPERTY_PREFIX_CREDENTIAL + name, null);
+        }
+        return write(changes);
+    }
+
+    @Override
+    public void setKey(byte[] key) {
+        if (!write(Collections.singletonMap(PROPERTY_KEY, Base64Codec.encode(key)))) {
+            throw new IllegalStateException("Vault key could not be written to " + file);
+        }
+    }
+
+    @Override
+    public synchronized byte[] getKey() {
+        return getBytes(PROPERTY_KEY);
+    }
+
+    @Override
+    public synchronized byte[] getMetadata(String name) {
+        return getBytes(PROPERTY_PREFIX_METADATA + name);
+    }
+
+    @Override
+    public boolean setMetadata(String name, byte[] value) {
+        return write(Collections.singletonMap(PROPERTY_PREFIX_METADATA + name, value == null ? null : Base64Codec.encode(value)));
+    }
+
+    @Override
+    public synchronized void reset() {
+        properties = new Properties();
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("Vault file could not be deleted: " + file);
+        }
+    }
+
+    private byte[] getBytes(String property) {
+        final String encoded = getProperties().getProperty(property);
+        return encoded == null ? null : Base64Codec.decode(encoded);
+    }
+
+    private Properties getProperties() {
+        if (properties == null) {
+            final Properties loaded = new Properties();
+            try {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    loaded.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (FileNotFoundException e) {
+                // nothing stored yet
+            } catch (IOException e) {
+                throw new IllegalStateException("Vault file could not be read: " + file, e);
+            }
+            properties = loaded;
+        }
+        return properties;
+    }
+
+    /**
+     * Apply the changes and rewrite the file. The in-memory state is only changed if the file was
+     * written successfully.
+     *
+     * @param changes New values by property, a null value removes the property
+     * @return True if the changes were written to disk
+     */
+    private synchronized boolean write(Map<String, String> changes) {
+        final Properties updated = new Properties();
+        updated.putAll(getProperties());
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                updated.remove(change.getKey());
+            } else {
+                updated.setProperty(change.getKey(), change.getValue());
+            }
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+        final long start = VaultMetrics.start();
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                updated.store(out, null);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return false;
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, 0);
+            VaultTracing.end(tracer);
+        }
+        properties = updated;
+        return true;
+    }
+}
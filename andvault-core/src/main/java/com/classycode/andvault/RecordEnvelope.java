@@ -0,0 +1,263 @@
+package com.classycode.andvault;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * The binary format of encrypted credential values ("records") in the {@link VaultStorage}:
+ * <pre>
+ * offset  length  field
+ * 0       4       magic, "AVRC"
+ * 4       1       format version, 1
+ * 5       1       algorithm, 1 = AES/GCM/NoPadding with a 128 bit tag
+ * 6       1       flags, reserved, must be 0
+ * 7       12      IV
+ * 19      n + 16  ciphertext and authentication tag
+ * </pre>
+ * Records written before the envelope was introduced are raw output of the "AES" cipher
+ * (AES/ECB/PKCS5Padding) without a header ("legacy" records). They are still read, and are rewritten in
+ * the current format by the vault (see {@link CoreVault#migrateRecords()}).
+ * <p/>
+ * A record starting with the magic number is always read as an envelope: unknown versions, algorithms
+ * or flags (e.g. of a newer library version) are rejected with an {@link UnsupportedRecordException}, and
+ * a record failing authentication is never decrypted any other way. A legacy record starts with the
+ * magic number by chance with a probability of 2^-32, it is then rejected as well.
+ * <p/>
+ * Thread safe, each thread uses its own pooled ciphers.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class RecordEnvelope {
+
+    /**
+     * Thrown for records in an envelope this version of the library can't read. The record is left as it is.
+     */
+    static final class UnsupportedRecordException extends GeneralSecurityException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedRecordException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int MAGIC = 0x41565243; // "AVRC"
+
+    private static final int MAGIC_LENGTH = 4;
+
+    private static final byte VERSION_1 = 1;
+
+    private static final byte ALGORITHM_AES_GCM = 1;
+
+    private static final int IV_OFFSET = MAGIC_LENGTH + 3;
+
+    static final int HEADER_LENGTH = IV_OFFSET + GcmParameters.IV_LENGTH;
+
+    private static final CipherPool CIPHERS = CipherPool.create("vault-data", GcmParameters.TRANSFORMATION);
+
+    private static final CipherPool LEGACY_CIPHERS = CipherPool.create("vault-data-legacy", "AES");
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private RecordEnvelope() {
+    }
+
+    /**
+     * @return The length of the record holding a value of the given length.
+     */
+    static int getRecordLength(int valueLength) {
+        return HEADER_LENGTH + valueLength + GcmParameters.TAG_LENGTH;
+    }
+
+    /**
+     * @return True if the record is a legacy record that should be rewritten in the current format
+     */
+    static boolean isLegacy(byte[] record) {
+        return isLegacy(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * @param record The record, from its position to its limit. The buffer is not modified.
+     */
+    static boolean isLegacy(ByteBuffer record) {
+        return record.remaining() < MAGIC_LENGTH || record.getInt(record.position()) != MAGIC;
+    }
+
+    static byte[] encrypt(SecretKey key, byte[] value) throws GeneralSecurityException {
+        final byte[] record = new byte[getRecordLength(value.length)];
+        final Cipher cipher = initEncrypt(key, record);
+        cipher.doFinal(value, 0, value.length, record, HEADER_LENGTH);
+        return record;
+    }
+
+    /**
+     * Encrypt the remaining bytes of src into a record, written to dst at its position.
+     *
+     * @param dst The buffer, with at least {@link #getRecordLength(int)} bytes remaining
+     * @return The length of the record
+     */
+    static int encrypt(SecretKey key, ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        final byte[] header = new byte[HEADER_LENGTH];
+        final Cipher cipher = initEncrypt(key, header);
+        dst.put(header);
+        return HEADER_LENGTH + cipher.doFinal(src, dst);
+    }
+
+    static byte[] decrypt(SecretKey key, byte[] record) throws GeneralSecurityException {
+        return decrypt(key, null, record);
+    }
+
+    /**
+     * Decrypt a record written with either of two keys, while the vault key is rotated.
+     *
+     * @param key        The key current records are written with
+     * @param retiredKey The key the record may have been written with instead, or null. Legacy records
+     *                   are always decrypted with it, as they were written before the current key existed.
+     * @throws UnsupportedRecordException The record is in an envelope this version can't read
+     * @throws BadPaddingException        The record could not be authenticated
+     */
+    static byte[] decrypt(SecretKey key, SecretKey retiredKey, byte[] record) throws GeneralSecurityException {
+        if (isLegacy(record)) {
+            final Cipher cipher = LEGACY_CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, retiredKey != null ? retiredKey : key);
+            return cipher.doFinal(record);
+        }
+        checkHeader(ByteBuffer.wrap(record));
+        if (retiredKey != null) {
+            try {
+                return decryptCurrent(key, record);
+            } catch (BadPaddingException e) {
+                return decryptCurrent(retiredKey, record);
+            }
+        }
+        return decryptCurrent(key, record);
+    }
+
+    /**
+     * @return True if the record is in the current format and was written with the given key
+     * @throws UnsupportedRecordException The record is in an envelope this version can't read
+     */
+    static boolean isEncryptedWith(SecretKey key, byte[] record) throws GeneralSecurityException {
+        if (isLegacy(record)) {
+            return false;
+        }
+        checkHeader(ByteBuffer.wrap(record));
+        try {
+            final byte[] value = decryptCurrent(key, record);
+            Arrays.fill(value, (byte) 0);
+            return true;
+        } catch (BadPaddingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The maximum length of the value decrypted from the record, at least its actual length.
+     */
+    static int getMaxValueLength(ByteBuffer record) {
+        // legacy: the padding is removed, the value is shorter than the record
+        return isLegacy(record) ? record.remaining() : Math.max(0, record.remaining() - HEADER_LENGTH - GcmParameters.TAG_LENGTH);
+    }
+
+    static int decrypt(SecretKey key, ByteBuffer record, ByteBuffer dst) throws GeneralSecurityException {
+        return decrypt(key, null, record, dst);
+    }
+
+    /**
+     * Decrypt the record from its position to its limit into dst, advancing both positions.
+     *
+     * @param key        The key current records are written with
+     * @param retiredKey The key the record may have been written with instead, or null, see {@link #decrypt(SecretKey, SecretKey, byte[])}
+     * @param dst        The buffer, with at least {@link #getMaxValueLength(ByteBuffer)} bytes remaining
+     * @return The length of the value
+     */
+    static int decrypt(SecretKey key, SecretKey retiredKey, ByteBuffer record, ByteBuffer dst) throws GeneralSecurityException {
+        if (isLegacy(record)) {
+            final Cipher cipher = LEGACY_CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, retiredKey != null ? retiredKey : key);
+            return cipher.doFinal(record, dst);
+        }
+        checkHeader(record);
+        if (retiredKey != null) {
+            try {
+                return decryptCurrent(key, record, dst);
+            } catch (BadPaddingException e) {
+                return decryptCurrent(retiredKey, record, dst);
+            }
+        }
+        return decryptCurrent(key, record, dst);
+    }
+
+    /**
+     * @param record A record starting with the magic number, from its position to its limit
+     * @throws UnsupportedRecordException The header is truncated, or names an unknown version, algorithm or flags
+     */
+    private static void checkHeader(ByteBuffer record) throws UnsupportedRecordException {
+        final int p = record.position();
+        if (record.remaining() < HEADER_LENGTH + GcmParameters.TAG_LENGTH) {
+            throw new UnsupportedRecordException("Truncated vault record");
+        }
+        final int version = record.get(p + MAGIC_LENGTH) & 0xff;
+        if (version != VERSION_1) {
+            throw new UnsupportedRecordException("Unsupported vault record version " + version);
+        }
+        final int algorithm = record.get(p + MAGIC_LENGTH + 1) & 0xff;
+        if (algorithm != ALGORITHM_AES_GCM) {
+            throw new UnsupportedRecordException("Unsupported vault record algorithm " + algorithm);
+        }
+        final int flags = record.get(p + MAGIC_LENGTH + 2) & 0xff;
+        if (flags != 0) {
+            throw new UnsupportedRecordException("Unsupported vault record flags " + flags);
+        }
+    }
+
+    private static byte[] decryptCurrent(SecretKey key, byte[] record) throws GeneralSecurityException {
+        final Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, GcmParameters.create(getIv(ByteBuffer.wrap(record))));
+        return cipher.doFinal(record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+    }
+
+    /**
+     * Leaves the positions of both buffers untouched if the record can't be authenticated.
+     */
+    private static int decryptCurrent(SecretKey key, ByteBuffer record, ByteBuffer dst) throws GeneralSecurityException {
+        final int recordPosition = record.position();
+        final int dstPosition = dst.position();
+        try {
+            final Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, GcmParameters.create(getIv(record)));
+            record.position(recordPosition + HEADER_LENGTH);
+            return cipher.doFinal(record, dst);
+        } catch (BadPaddingException e) {
+            record.position(recordPosition);
+            dst.position(dstPosition);
+            throw e;
+        }
+    }
+
+    /**
+     * Write the header with a new random IV and initialize a cipher for encrypting with it.
+     */
+    private static Cipher initEncrypt(SecretKey key, byte[] record) throws GeneralSecurityException {
+        final byte[] iv = new byte[GcmParameters.IV_LENGTH];
+        random.nextBytes(iv);
+        ByteBuffer.wrap(record).putInt(MAGIC).put(VERSION_1).put(ALGORITHM_AES_GCM).put((byte) 0).put(iv);
+        final Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, GcmParameters.create(iv));
+        return cipher;
+    }
+
+    private static byte[] getIv(ByteBuffer record) {
+        final byte[] iv = new byte[GcmParameters.IV_LENGTH];
+        final ByteBuffer header = record.duplicate();
+        header.position(record.position() + IV_OFFSET);
+        header.get(iv);
+        return iv;
+    }
+}
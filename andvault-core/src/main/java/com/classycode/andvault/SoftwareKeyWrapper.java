@@ -0,0 +1,64 @@
+package com.classycode.andvault;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * A {@link KeyWrapper} using an RSA key pair held in memory, wrapping keys the same way as the Android
+ * KeyStore based {@code VaultKeyWrapper}. The private key is not protected in any way, so this is only
+ * meant as a stand-in for tests and benchmarks on the JVM.
+ * <p/>
+ * Thread safe, each thread uses its own pooled cipher.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class SoftwareKeyWrapper implements KeyWrapper {
+
+    private static final String CIPHER_AES = "AES";
+
+    private static final String CIPHER_RSA = "RSA/ECB/PKCS1Padding";
+
+    private static final int RSA_KEY_SIZE = 2048;
+
+    private static final CipherPool WRAP_CIPHERS = CipherPool.create("software-key-wrap", CIPHER_RSA);
+
+    private static final CipherPool UNWRAP_CIPHERS = CipherPool.create("software-key-unwrap", CIPHER_RSA);
+
+    private final KeyPair keyPair;
+
+    /**
+     * Create a wrapper with a newly generated 2048 bit RSA key pair.
+     *
+     * @throws GeneralSecurityException The key pair could not be generated
+     */
+    public SoftwareKeyWrapper() throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(RSA_KEY_SIZE);
+        this.keyPair = generator.generateKeyPair();
+    }
+
+    /**
+     * @param keyPair The RSA key pair to wrap keys with
+     */
+    public SoftwareKeyWrapper(KeyPair keyPair) {
+        this.keyPair = keyPair;
+    }
+
+    @Override
+    public byte[] wrap(SecretKey key) throws GeneralSecurityException {
+        final Cipher cipher = WRAP_CIPHERS.get();
+        cipher.init(Cipher.WRAP_MODE, keyPair.getPublic());
+        return cipher.wrap(key);
+    }
+
+    @Override
+    public SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+        final Cipher cipher = UNWRAP_CIPHERS.get();
+        cipher.init(Cipher.UNWRAP_MODE, keyPair.getPrivate());
+        return (SecretKey) cipher.unwrap(wrappedKey, CIPHER_AES, Cipher.SECRET_KEY);
+    }
+}
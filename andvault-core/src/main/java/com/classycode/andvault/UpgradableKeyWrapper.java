@@ -0,0 +1,19 @@
+package com.classycode.andvault;
+
+/**
+ * A {@link KeyWrapper} that can still unwrap keys wrapped with an older scheme, e.g. with a different
+ * kind of wrapping key. When the vault unwraps a key that {@link #isOutdated(byte[])}, it wraps it again
+ * with {@link #wrap(javax.crypto.SecretKey)} and replaces the stored key, so the vault migrates to the
+ * current scheme on first use. The vault key itself does not change, the stored credentials remain
+ * readable.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface UpgradableKeyWrapper extends KeyWrapper {
+
+    /**
+     * @param wrappedKey A key that was unwrapped successfully
+     * @return True if the key was wrapped with an older scheme than {@link #wrap(javax.crypto.SecretKey)} uses
+     */
+    boolean isOutdated(byte[] wrappedKey);
+}
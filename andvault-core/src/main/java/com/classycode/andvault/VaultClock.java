@@ -0,0 +1,25 @@
+package com.classycode.andvault;
+
+/**
+ * A monotonic clock used to measure time spans, e.g. the idle time of an unlocked {@link VaultSession}.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+interface VaultClock {
+
+    /**
+     * Based on {@link System#nanoTime()}. Note that on Android this clock stops while the device is in
+     * deep sleep, the Android binding uses the elapsed realtime instead.
+     */
+    VaultClock SYSTEM = new VaultClock() {
+        @Override
+        public long elapsedMillis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * @return Milliseconds since some fixed but arbitrary point in time.
+     */
+    long elapsedMillis();
+}
@@ -0,0 +1,100 @@
+package com.classycode.andvault;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors owned by the library, used to move keystore and storage I/O off the calling thread.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class VaultExecutors {
+
+    /**
+     * Maximum number of operations waiting for a thread, further submissions are rejected.
+     */
+    private static final int MAX_QUEUED_OPERATIONS = 256;
+
+    private static final int IO_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService io;
+
+    private static ExecutorService serial;
+
+    private static ExecutorService background;
+
+    private VaultExecutors() {
+    }
+
+    /**
+     * @return The bounded background executor for vault I/O. Its threads are daemon threads and
+     * time out when idle.
+     */
+    static synchronized ExecutorService io() {
+        if (io == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_QUEUED_OPERATIONS), new NamedThreadFactory("andvault-io"));
+            executor.allowCoreThreadTimeOut(true);
+            io = executor;
+        }
+        return io;
+    }
+
+    /**
+     * @return A bounded background executor running one task at a time, in submission order.
+     */
+    static synchronized ExecutorService serial() {
+        if (serial == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_QUEUED_OPERATIONS), new NamedThreadFactory("andvault-serial"));
+            executor.allowCoreThreadTimeOut(true);
+            serial = executor;
+        }
+        return serial;
+    }
+
+    /**
+     * @return A bounded background executor for maintenance work that must not compete with the app,
+     * running one task at a time on a thread with the lowest priority.
+     */
+    static synchronized ExecutorService background() {
+        if (background == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_QUEUED_OPERATIONS),
+                    new NamedThreadFactory("andvault-background", Thread.MIN_PRIORITY));
+            executor.allowCoreThreadTimeOut(true);
+            background = executor;
+        }
+        return background;
+    }
+
+    static final class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final String name;
+
+        private final int priority;
+
+        NamedThreadFactory(String name) {
+            this(name, Thread.NORM_PRIORITY);
+        }
+
+        NamedThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.classycode.andvault;
+
+/**
+ * Registry of the process-wide {@link VaultMetricsListener}, which the vault, the key wrappers and the
+ * storages report their timings to.
+ * <p/>
+ * Without a listener, reporting costs a volatile read and a branch per phase: the clock is not even
+ * read.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public final class VaultMetrics {
+
+    /**
+     * The measured phases of vault operations.
+     */
+    public enum Phase {
+        /**
+         * Loading the master keypair from the platform keystore, including generating it on first use.
+         */
+        KEYSTORE_LOAD,
+        /**
+         * Generating a key, e.g. the vault key on first use or the master keypair in the platform keystore.
+         */
+        KEY_GENERATION,
+        /**
+         * Wrapping the vault key with the {@link KeyWrapper}.
+         */
+        KEY_WRAP,
+        /**
+         * Unwrapping the vault key with the {@link KeyWrapper}.
+         */
+        KEY_UNWRAP,
+        /**
+         * Encrypting credential values with the vault key, bytes is the size of the plaintext.
+         */
+        ENCRYPT,
+        /**
+         * Decrypting credential values with the vault key, bytes is the size of the ciphertext.
+         */
+        DECRYPT,
+        /**
+         * Reading encrypted credentials from the {@link VaultStorage}, as seen by the vault.
+         */
+        STORAGE_READ,
+        /**
+         * Writing or removing encrypted credentials through the {@link VaultStorage}, as seen by the vault.
+         */
+        STORAGE_WRITE,
+        /**
+         * Persisting changes to disk inside a storage implementation, e.g. committing a file or transaction.
+         */
+        STORAGE_COMMIT
+    }
+
+    /**
+     * The caches reporting hits and misses.
+     */
+    public enum Cache {
+        /**
+         * The in-memory vault key of an unlocked vault, see {@link CoreVault#unlock(long)}. A miss unwraps the key.
+         */
+        KEY,
+        /**
+         * The cache of decrypted values, see {@link CoreVault#enablePlaintextCache(int, long, long)}.
+         */
+        PLAINTEXT,
+        /**
+         * The cache of encrypted values of a {@link CachingVaultStorage}.
+         */
+        STORAGE
+    }
+
+    private static volatile VaultMetricsListener listener;
+
+    private VaultMetrics() {
+    }
+
+    /**
+     * @param metricsListener The listener receiving the metrics of all vaults in this process, or null to stop reporting
+     */
+    public static void setListener(VaultMetricsListener metricsListener) {
+        listener = metricsListener;
+    }
+
+    /**
+     * @return The registered listener, or null if there is none
+     */
+    public static VaultMetricsListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Start timing a phase.
+     *
+     * @return The start time to pass to {@link #record(Phase, long, long)}, or 0 if no listener is registered
+     */
+    static long start() {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Report a phase started with {@link #start()}. Does nothing if no listener was registered when the
+     * phase started.
+     */
+    static void record(Phase phase, long start, long bytes) {
+        final VaultMetricsListener current = listener;
+        if (current != null && start != 0) {
+            current.onPhase(phase, System.nanoTime() - start, bytes);
+        }
+    }
+
+    static void cacheHit(Cache cache) {
+        final VaultMetricsListener current = listener;
+        if (current != null) {
+            current.onCacheHit(cache);
+        }
+    }
+
+    static void cacheMiss(Cache cache) {
+        final VaultMetricsListener current = listener;
+        if (current != null) {
+            current.onCacheMiss(cache);
+        }
+    }
+}
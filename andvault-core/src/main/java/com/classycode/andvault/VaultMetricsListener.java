@@ -0,0 +1,33 @@
+package com.classycode.andvault;
+
+/**
+ * Receives timings and sizes of the phases of vault operations, and the hits and misses of the vault's
+ * caches. Register a listener with {@link VaultMetrics#setListener(VaultMetricsListener)}, e.g. a
+ * {@link VaultMetricsRecorder}.
+ * <p/>
+ * The methods are called on the threads doing the work, sometimes while holding locks, so they must
+ * be thread safe, return quickly and must not throw or call back into the vault.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface VaultMetricsListener {
+
+    /**
+     * A phase of a vault operation completed (or failed).
+     *
+     * @param phase         The phase
+     * @param durationNanos The time the phase took, in nanoseconds
+     * @param bytes         The number of bytes processed, e.g. the size of the encrypted value, or 0 if not applicable
+     */
+    void onPhase(VaultMetrics.Phase phase, long durationNanos, long bytes);
+
+    /**
+     * A lookup in one of the vault's caches was answered from memory.
+     */
+    void onCacheHit(VaultMetrics.Cache cache);
+
+    /**
+     * A lookup in one of the vault's caches had to fall back to the slower path.
+     */
+    void onCacheMiss(VaultMetrics.Cache cache);
+}
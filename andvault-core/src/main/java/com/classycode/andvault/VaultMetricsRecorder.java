@@ -0,0 +1,128 @@
+package com.classycode.andvault;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link VaultMetricsListener} aggregating the reported metrics in memory: per phase a count, the
+ * total and maximum duration, the total bytes and a histogram of the durations; per cache the hits
+ * and misses. Use {@link #snapshot()} to read and export them.
+ * <p/>
+ * The histograms have fixed buckets with exponentially growing bounds: the first bucket counts
+ * durations below 1 microsecond, bucket i (1 &lt;= i &lt; {@link #BUCKET_COUNT} - 1) the ones from 2^(i-1)
+ * up to 2^i microseconds, the last bucket everything longer. Recording never allocates or locks, the counters are
+ * atomic.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class VaultMetricsRecorder implements VaultMetricsListener {
+
+    /**
+     * Number of histogram buckets per phase, the last bucket counts durations of 2^30 microseconds (about 18 minutes) and longer.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private static final VaultMetrics.Phase[] PHASES = VaultMetrics.Phase.values();
+
+    private static final VaultMetrics.Cache[] CACHES = VaultMetrics.Cache.values();
+
+    private final AtomicLongArray counts = new AtomicLongArray(PHASES.length);
+
+    private final AtomicLongArray totalNanos = new AtomicLongArray(PHASES.length);
+
+    private final AtomicLongArray totalBytes = new AtomicLongArray(PHASES.length);
+
+    private final AtomicLongArray maxNanos = new AtomicLongArray(PHASES.length);
+
+    /**
+     * The histogram buckets of all phases, bucket i of a phase at phase.ordinal() * BUCKET_COUNT + i.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(PHASES.length * BUCKET_COUNT);
+
+    private final AtomicLongArray cacheHits = new AtomicLongArray(CACHES.length);
+
+    private final AtomicLongArray cacheMisses = new AtomicLongArray(CACHES.length);
+
+    private final AtomicLong startedAtMillis = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @return The upper bound (exclusive) of the histogram bucket in nanoseconds, {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getBucketUpperBoundNanos(int bucket) {
+        if (bucket < 0 || bucket >= BUCKET_COUNT) {
+            throw new IllegalArgumentException("No such bucket: " + bucket);
+        }
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) * 1000L;
+    }
+
+    static int getBucket(long durationNanos) {
+        final long micros = durationNanos / 1000L;
+        return Math.min(64 - Long.numberOfLeadingZeros(Math.max(micros, 0)), BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public void onPhase(VaultMetrics.Phase phase, long durationNanos, long bytes) {
+        final int i = phase.ordinal();
+        counts.incrementAndGet(i);
+        totalNanos.addAndGet(i, durationNanos);
+        totalBytes.addAndGet(i, bytes);
+        buckets.incrementAndGet(i * BUCKET_COUNT + getBucket(durationNanos));
+        long max = maxNanos.get(i);
+        while (durationNanos > max && !maxNanos.compareAndSet(i, max, durationNanos)) {
+            max = maxNanos.get(i);
+        }
+    }
+
+    @Override
+    public void onCacheHit(VaultMetrics.Cache cache) {
+        cacheHits.incrementAndGet(cache.ordinal());
+    }
+
+    @Override
+    public void onCacheMiss(VaultMetrics.Cache cache) {
+        cacheMisses.incrementAndGet(cache.ordinal());
+    }
+
+    /**
+     * Copy the current values. The counters are read one after the other, metrics recorded concurrently
+     * may be partially included.
+     */
+    public VaultMetricsSnapshot snapshot() {
+        final VaultMetricsSnapshot.PhaseStats[] phases = new VaultMetricsSnapshot.PhaseStats[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            final long[] histogram = new long[BUCKET_COUNT];
+            for (int j = 0; j < BUCKET_COUNT; j++) {
+                histogram[j] = buckets.get(i * BUCKET_COUNT + j);
+            }
+            phases[i] = new VaultMetricsSnapshot.PhaseStats(PHASES[i], counts.get(i), totalNanos.get(i),
+                    totalBytes.get(i), maxNanos.get(i), histogram);
+        }
+        final long[] hits = new long[CACHES.length];
+        final long[] misses = new long[CACHES.length];
+        for (int i = 0; i < CACHES.length; i++) {
+            hits[i] = cacheHits.get(i);
+            misses[i] = cacheMisses.get(i);
+        }
+        return new VaultMetricsSnapshot(startedAtMillis.get(), System.currentTimeMillis(), phases, hits, misses);
+    }
+
+    /**
+     * Set all values back to zero, e.g. after exporting a {@link #snapshot()}.
+     */
+    public void reset() {
+        startedAtMillis.set(System.currentTimeMillis());
+        for (int i = 0; i < PHASES.length; i++) {
+            counts.set(i, 0);
+            totalNanos.set(i, 0);
+            totalBytes.set(i, 0);
+            maxNanos.set(i, 0);
+        }
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        for (int i = 0; i < CACHES.length; i++) {
+            cacheHits.set(i, 0);
+            cacheMisses.set(i, 0);
+        }
+    }
+}
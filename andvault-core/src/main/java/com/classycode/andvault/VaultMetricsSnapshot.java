@@ -0,0 +1,178 @@
+package com.classycode.andvault;
+
+/**
+ * Snapshot of the metrics aggregated by a {@link VaultMetricsRecorder}.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public final class VaultMetricsSnapshot {
+
+    /**
+     * The aggregated timings of one phase.
+     */
+    public static final class PhaseStats {
+
+        private final VaultMetrics.Phase phase;
+
+        private final long count;
+
+        private final long totalNanos;
+
+        private final long totalBytes;
+
+        private final long maxNanos;
+
+        private final long[] histogram;
+
+        PhaseStats(VaultMetrics.Phase phase, long count, long totalNanos, long totalBytes, long maxNanos, long[] histogram) {
+            this.phase = phase;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.totalBytes = totalBytes;
+            this.maxNanos = maxNanos;
+            this.histogram = histogram;
+        }
+
+        public VaultMetrics.Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return The number of times the phase was reported.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * @return The histogram of the durations, see {@link VaultMetricsRecorder#getBucketUpperBoundNanos(int)} for the bucket bounds.
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * Estimate a percentile from the histogram: the upper bound of the bucket holding it, capped
+         * at the maximum duration.
+         *
+         * @param percentile The percentile, between 0 and 100, e.g. 99
+         * @return The estimated duration in nanoseconds, or 0 if the phase was not reported
+         */
+        public long getPercentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            long total = 0;
+            for (long bucketCount : histogram) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return Math.min(VaultMetricsRecorder.getBucketUpperBoundNanos(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return phase + ": count=" + count + ", meanNanos=" + getMeanNanos() + ", p50Nanos=" + getPercentileNanos(50)
+                    + ", p99Nanos=" + getPercentileNanos(99) + ", maxNanos=" + maxNanos + ", bytes=" + totalBytes;
+        }
+    }
+
+    private final long startedAtMillis;
+
+    private final long takenAtMillis;
+
+    private final PhaseStats[] phases;
+
+    private final long[] cacheHits;
+
+    private final long[] cacheMisses;
+
+    VaultMetricsSnapshot(long startedAtMillis, long takenAtMillis, PhaseStats[] phases, long[] cacheHits, long[] cacheMisses) {
+        this.startedAtMillis = startedAtMillis;
+        this.takenAtMillis = takenAtMillis;
+        this.phases = phases;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    /**
+     * @return The wall clock time the recorder was created or last reset, in milliseconds since the epoch.
+     */
+    public long getStartedAtMillis() {
+        return startedAtMillis;
+    }
+
+    /**
+     * @return The wall clock time the snapshot was taken, in milliseconds since the epoch.
+     */
+    public long getTakenAtMillis() {
+        return takenAtMillis;
+    }
+
+    public PhaseStats getPhaseStats(VaultMetrics.Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    public long getCacheHitCount(VaultMetrics.Cache cache) {
+        return cacheHits[cache.ordinal()];
+    }
+
+    public long getCacheMissCount(VaultMetrics.Cache cache) {
+        return cacheMisses[cache.ordinal()];
+    }
+
+    /**
+     * @return The fraction (0..1) of lookups in the cache that were hits.
+     */
+    public double getCacheHitRate(VaultMetrics.Cache cache) {
+        final long hits = getCacheHitCount(cache);
+        final long lookups = hits + getCacheMissCount(cache);
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return One line per reported phase and used cache.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (PhaseStats stats : phases) {
+            if (stats.getCount() > 0) {
+                builder.append(stats).append('\n');
+            }
+        }
+        for (VaultMetrics.Cache cache : VaultMetrics.Cache.values()) {
+            if (getCacheHitCount(cache) + getCacheMissCount(cache) > 0) {
+                builder.append(cache).append(" cache: hits=").append(getCacheHitCount(cache))
+                        .append(", misses=").append(getCacheMissCount(cache)).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.classycode.andvault;
+
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A symmetric vault key whose key material can be overwritten once it is no longer needed.
+ * {@link javax.crypto.spec.SecretKeySpec} keeps a private copy of the key bytes that can not be
+ * cleared, which is why the unlocked session uses this class instead.
+ * <p/>
+ * Only the copy held by this object is overwritten by {@link #wipe()}. The copies returned by
+ * {@link #getEncoded()}, e.g. to a cipher provider initializing a cipher, belong to the caller and may
+ * remain in memory until they are garbage collected.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class VaultSecretKey implements SecretKey {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String algorithm;
+
+    private final byte[] key;
+
+    private volatile boolean wiped;
+
+    /**
+     * @param key       The raw key material. The array is copied, the caller should wipe its own copy.
+     * @param algorithm The key algorithm, e.g. "AES"
+     */
+    VaultSecretKey(byte[] key, String algorithm) {
+        this.key = key.clone();
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public String getFormat() {
+        return "RAW";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+        if (wiped) {
+            throw new IllegalStateException("Key material has been wiped");
+        }
+        return key.clone();
+    }
+
+    /**
+     * Overwrite the key material. Any further use of the key fails.
+     */
+    void wipe() {
+        wiped = true;
+        Arrays.fill(key, (byte) 0);
+    }
+
+    boolean isWiped() {
+        return wiped;
+    }
+}
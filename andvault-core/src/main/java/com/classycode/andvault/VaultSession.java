@@ -0,0 +1,173 @@
+package com.classycode.andvault;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * An unlocked vault session, holding the unwrapped vault key in memory so it does not need to be
+ * unwrapped through the {@link KeyWrapper} for every operation.
+ * <p/>
+ * The session ends when {@link #close()} is called or when it has not been used for longer than
+ * the idle timeout. The key material held by the session is wiped when the session ends, and the
+ * pooled ciphers initialized with it are marked as retired, to be scrubbed on their thread's next use
+ * (see {@link CipherPool#clearAll()}); callers that are still using the key (between {@link #acquire()}
+ * and {@link #release()}) delay this until they are done.
+ * Copies of the key made by the cipher provider are not under the library's control, see
+ * {@link VaultSecretKey}.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class VaultSession {
+
+    private static final ScheduledExecutorService EXPIRY_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "andvault-session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final VaultSecretKey key;
+
+    private final long idleTimeoutMillis;
+
+    private final int generation;
+
+    private final VaultClock clock;
+
+    private long lastAccessMillis;
+
+    private int users;
+
+    private boolean closed;
+
+    private ScheduledFuture<?> expiryTask;
+
+    /**
+     * @param key               The unwrapped vault key. Its key material is copied.
+     * @param idleTimeoutMillis Idle timeout in milliseconds, or 0 if the session should only end on {@link #close()}
+     * @param generation        The vault generation the key belongs to, see {@link #getGeneration()}
+     * @param clock             The clock measuring the idle time
+     */
+    VaultSession(SecretKey key, long idleTimeoutMillis, int generation, VaultClock clock) {
+        final byte[] raw = key.getEncoded();
+        this.key = new VaultSecretKey(raw, key.getAlgorithm());
+        Arrays.fill(raw, (byte) 0);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.generation = generation;
+        this.clock = clock;
+        this.lastAccessMillis = clock.elapsedMillis();
+        scheduleExpiry(idleTimeoutMillis);
+    }
+
+    /**
+     * @return The generation of the vault (see {@link CoreVault#newGeneration()}) the session key belongs to.
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return The idle timeout in milliseconds, or 0 if the session only ends on {@link #close()}.
+     */
+    long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Obtain the session key. Every successful call must be paired with a call to {@link #release()}.
+     *
+     * @return The vault key, or null if the session has ended
+     */
+    synchronized SecretKey acquire() {
+        if (closed) {
+            return null;
+        }
+        final long now = clock.elapsedMillis();
+        if (isIdle(now)) {
+            close();
+            return null;
+        }
+        lastAccessMillis = now;
+        users++;
+        return key;
+    }
+
+    /**
+     * Signal that the key obtained from {@link #acquire()} is no longer in use.
+     */
+    synchronized void release() {
+        users--;
+        if (closed && users == 0) {
+            wipe();
+        }
+    }
+
+    /**
+     * @return True if the session has not ended yet.
+     */
+    synchronized boolean isOpen() {
+        if (!closed && isIdle(clock.elapsedMillis())) {
+            close();
+        }
+        return !closed;
+    }
+
+    /**
+     * End the session and wipe the key material.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (expiryTask != null) {
+            expiryTask.cancel(false);
+            expiryTask = null;
+        }
+        if (users == 0) {
+            wipe();
+        }
+    }
+
+    private void wipe() {
+        key.wipe();
+        CipherPool.clearAll();
+    }
+
+    private boolean isIdle(long now) {
+        return idleTimeoutMillis > 0 && now - lastAccessMillis >= idleTimeoutMillis;
+    }
+
+    private void scheduleExpiry(long delayMillis) {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        expiryTask = EXPIRY_TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkExpiry();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void checkExpiry() {
+        if (closed) {
+            return;
+        }
+        final long idleMillis = clock.elapsedMillis() - lastAccessMillis;
+        if (idleMillis >= idleTimeoutMillis) {
+            close();
+        } else {
+            // the session was used in the meantime, check again when the remaining idle time has passed
+            scheduleExpiry(idleTimeoutMillis - idleMillis);
+        }
+    }
+}
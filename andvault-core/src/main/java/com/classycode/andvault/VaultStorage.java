@@ -4,7 +4,7 @@ import java.util.List;
 
 /**
  * Storage for encrypted credentials and vault key. You probably don't need to care about this as
- * {@link SharedPrefsStorage} should be fine for you.
+ * {@code SharedPrefsStorage} should be fine for you.
  * <p/>
  * The storage does not need to have an encryption or obfuscation component, as it only stores
  * encrypted values to begin with.
@@ -43,7 +43,7 @@ public interface VaultStorage {
 
     /**
      * Store the wrapped encryption key. It is safe to store this key, as it is wrapped (encrypted)
-     * with a key in the Android Keystore.
+     * with a key held by a {@link KeyWrapper}, e.g. in the Android Keystore.
      *
      * @param key The wrapped (encrypted) key.
      */
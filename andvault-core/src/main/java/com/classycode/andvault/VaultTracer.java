@@ -0,0 +1,41 @@
+package com.classycode.andvault;
+
+/**
+ * Emits trace sections around the expensive phases of vault operations, e.g. into the platform's
+ * system trace. Register a tracer with {@link VaultTracing#setTracer(VaultTracer)}.
+ * <p/>
+ * Synchronous sections are nested and begin and end on the same thread. Asynchronous sections cover
+ * work handed to a background thread, from being scheduled until it completes; they are identified
+ * by their name and a cookie unique among the sections of that name in progress.
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface VaultTracer {
+
+    /**
+     * Begin a section on the calling thread.
+     *
+     * @param name The name of the section, at most 127 characters
+     */
+    void beginSection(String name);
+
+    /**
+     * End the section most recently begun on the calling thread.
+     */
+    void endSection();
+
+    /**
+     * Begin an asynchronous section.
+     *
+     * @param name   The name of the section, at most 127 characters
+     * @param cookie Identifies the section when it is ended
+     */
+    void beginAsyncSection(String name, int cookie);
+
+    /**
+     * End an asynchronous section, possibly on another thread than the one it was begun on.
+     */
+    void endAsyncSection(String name, int cookie);
+}
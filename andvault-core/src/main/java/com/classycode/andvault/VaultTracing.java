@@ -0,0 +1,142 @@
+package com.classycode.andvault;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the process-wide {@link VaultTracer}, and the names of the sections the vault, the key
+ * wrappers and the storages emit. Tracing is off until a tracer is set; while it is off, every
+ * section costs a volatile read and a branch.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public final class VaultTracing {
+
+    /**
+     * Creating a {@code VaultKeyWrapper}, which loads the master keypair from the Android KeyStore on first use.
+     */
+    public static final String SECTION_KEY_WRAPPER_INIT = "andvault:VaultKeyWrapper";
+
+    public static final String SECTION_GENERATE_KEY_PAIR = "andvault:generateKeyPair";
+
+    /**
+     * Generating the AES key in the Android KeyStore, see {@code KeyStoreAesKeyWrapper}.
+     */
+    public static final String SECTION_GENERATE_KEYSTORE_KEY = "andvault:generateKeyStoreKey";
+
+    public static final String SECTION_GENERATE_VAULT_KEY = "andvault:generateVaultKey";
+
+    public static final String SECTION_KEY_WRAP = "andvault:wrap";
+
+    public static final String SECTION_KEY_UNWRAP = "andvault:unwrap";
+
+    public static final String SECTION_ENCRYPT = "andvault:encrypt";
+
+    public static final String SECTION_DECRYPT = "andvault:decrypt";
+
+    /**
+     * Persisting changes inside a storage implementation, e.g. a {@code SharedPreferences} commit.
+     */
+    public static final String SECTION_COMMIT = "andvault:commit";
+
+    /**
+     * Asynchronous: the background initialization of a vault created with {@code Vault.warmUpAsync()}.
+     */
+    public static final String SECTION_WARM_UP = "andvault:warmUp";
+
+    /**
+     * Asynchronous: compacting a {@link LogFileStorage}.
+     */
+    public static final String SECTION_COMPACTION = "andvault:compaction";
+
+    /**
+     * Asynchronous: writing back the buffered changes of a {@link CachingVaultStorage}.
+     */
+    public static final String SECTION_WRITE_BACK = "andvault:writeBack";
+
+    /**
+     * Asynchronous: an operation of an {@code AsyncVault}, from being queued until its result is delivered.
+     */
+    public static final String SECTION_ASYNC_OPERATION = "andvault:asyncOperation";
+
+    /**
+     * Asynchronous: rewriting credentials stored in a legacy record format, see {@link CoreVault#migrateRecords()}.
+     */
+    public static final String SECTION_RECORD_MIGRATION = "andvault:recordMigration";
+
+    /**
+     * Asynchronous: re-encrypting the credentials with a new vault key, see {@link CoreVault#rotateKey()}.
+     */
+    public static final String SECTION_KEY_ROTATION = "andvault:keyRotation";
+
+    private static final AtomicInteger nextCookie = new AtomicInteger();
+
+    private static volatile VaultTracer tracer;
+
+    private VaultTracing() {
+    }
+
+    /**
+     * @param vaultTracer The tracer receiving the sections of all vaults in this process, or null to stop tracing
+     */
+    public static void setTracer(VaultTracer vaultTracer) {
+        tracer = vaultTracer;
+    }
+
+    /**
+     * @return The registered tracer, or null if tracing is off
+     */
+    public static VaultTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Begin a section on the calling thread.
+     *
+     * @return The tracer to pass to {@link #end(VaultTracer)}, or null if tracing is off
+     */
+    static VaultTracer begin(String name) {
+        final VaultTracer current = tracer;
+        if (current != null) {
+            current.beginSection(name);
+        }
+        return current;
+    }
+
+    /**
+     * End a section begun with {@link #begin(String)}, with the tracer it was begun with.
+     */
+    static void end(VaultTracer sectionTracer) {
+        if (sectionTracer != null) {
+            sectionTracer.endSection();
+        }
+    }
+
+    /**
+     * Begin an asynchronous section.
+     *
+     * @return The cookie to pass to {@link #endAsync(String, int)}, or 0 if tracing is off
+     */
+    static int beginAsync(String name) {
+        final VaultTracer current = tracer;
+        if (current == null) {
+            return 0;
+        }
+        int cookie;
+        do {
+            cookie = nextCookie.incrementAndGet();
+        } while (cookie == 0);
+        current.beginAsyncSection(name, cookie);
+        return cookie;
+    }
+
+    /**
+     * End an asynchronous section begun with {@link #beginAsync(String)}. Does nothing if tracing was
+     * off when it began.
+     */
+    static void endAsync(String name, int cookie) {
+        final VaultTracer current = tracer;
+        if (current != null && cookie != 0) {
+            current.endAsyncSection(name, cookie);
+        }
+    }
+}
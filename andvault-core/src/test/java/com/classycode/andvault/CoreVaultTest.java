@@ -0,0 +1,453 @@
+package com.classycode.andvault;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class CoreVaultTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SoftwareKeyWrapper keyWrapper;
+
+    private File storageFile;
+
+    private File blobDirectory;
+
+    @Before
+    public void setup() throws Exception {
+        keyWrapper = new SoftwareKeyWrapper();
+        storageFile = new File(folder.getRoot(), "vault.properties");
+        blobDirectory = new File(folder.getRoot(), "blobs");
+    }
+
+    private CoreVault openVault() throws VaultException {
+        return new CoreVault(keyWrapper, new PropertiesFileStorage(storageFile), blobDirectory);
+    }
+
+    @Test
+    public void testStoreCredential() throws Exception {
+        byte[] value = "some value".getBytes("UTF-8");
+        CoreVault vault = openVault();
+        vault.storeCredential("cred", value);
+        Assert.assertTrue(vault.getCredentialNames().contains("cred"));
+        Assert.assertArrayEquals(value, vault.getCredential("cred"));
+
+        // values are encrypted at rest and readable after reopening
+        Assert.assertFalse(Arrays.equals(value, new PropertiesFileStorage(storageFile).getCredential("cred")));
+        Assert.assertArrayEquals(value, openVault().getCredential("cred"));
+    }
+
+    @Test
+    public void testStoreCredentials() throws Exception {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("cred1", "value 1".getBytes("UTF-8"));
+        values.put("cred2", "value 2".getBytes("UTF-8"));
+        CoreVault vault = openVault();
+        vault.storeCredentials(values);
+        Map<String, byte[]> loaded = vault.getCredentials(values.keySet());
+        Assert.assertArrayEquals(values.get("cred1"), loaded.get("cred1"));
+        Assert.assertArrayEquals(values.get("cred2"), loaded.get("cred2"));
+        vault.removeCredentials(values.keySet());
+        Assert.assertEquals(0, vault.getCredentialNames().size());
+    }
+
+    @Test
+    public void testCredentialBuffer() throws Exception {
+        byte[] value = "some value".getBytes("UTF-8");
+        CoreVault vault = openVault();
+        vault.storeCredential("cred", ByteBuffer.wrap(value));
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        Assert.assertEquals(value.length, vault.getCredential("cred", buffer));
+        buffer.flip();
+        byte[] loaded = new byte[buffer.remaining()];
+        buffer.get(loaded);
+        Assert.assertArrayEquals(value, loaded);
+    }
+
+    @Test
+    public void testUnlockedVaultUsesSessionKey() throws Exception {
+        CoreVault vault = openVault();
+        vault.unlock(0);
+        try {
+            vault.storeCredential("cred", new byte[]{1, 2, 3});
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, vault.getCredential("cred"));
+            Assert.assertEquals(2, vault.getKeyCacheHitCount());
+        } finally {
+            vault.lock();
+        }
+    }
+
+    @Test
+    public void testLockRetiresPooledCiphers() throws Exception {
+        CoreVault vault = openVault();
+        vault.unlock(0);
+        vault.storeCredential("cred", new byte[]{1, 2, 3});
+        int sizeBefore = getCipherPoolSize("vault-data");
+        vault.lock();
+
+        // the cipher that held the session key's schedule is replaced on next use
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, vault.getCredential("cred"));
+        Assert.assertEquals(sizeBefore + 1, getCipherPoolSize("vault-data"));
+    }
+
+    private static int getCipherPoolSize(String name) {
+        for (CipherPoolStats stats : CipherPool.getAllStats()) {
+            if (stats.getName().equals(name)) {
+                return stats.getSize();
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    @Test(expected = VaultException.class)
+    public void testDifferentKeyWrapperCanNotOpenVault() throws Exception {
+        openVault().storeCredential("cred", new byte[]{1, 2, 3});
+        new CoreVault(new SoftwareKeyWrapper(), new PropertiesFileStorage(storageFile), blobDirectory);
+    }
+
+    @Test
+    public void testOutdatedWrappedKeyIsMigrated() throws Exception {
+        byte[] value = "some value".getBytes("UTF-8");
+        openVault().storeCredential("cred", value);
+        final byte[] legacyKey = new PropertiesFileStorage(storageFile).getKey();
+
+        // wraps with a new key, marking the wrapped keys with a leading zero byte
+        final SoftwareKeyWrapper newKeyWrapper = new SoftwareKeyWrapper();
+        UpgradableKeyWrapper upgradingKeyWrapper = new UpgradableKeyWrapper() {
+            @Override
+            public boolean isOutdated(byte[] wrappedKey) {
+                return wrappedKey.length == legacyKey.length;
+            }
+
+            @Override
+            public byte[] wrap(SecretKey key) throws GeneralSecurityException {
+                byte[] wrapped = newKeyWrapper.wrap(key);
+                byte[] marked = new byte[wrapped.length + 1];
+                System.arraycopy(wrapped, 0, marked, 1, wrapped.length);
+                return marked;
+            }
+
+            @Override
+            public SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+                if (isOutdated(wrappedKey)) {
+                    return keyWrapper.unwrap(wrappedKey);
+                }
+                return newKeyWrapper.unwrap(Arrays.copyOfRange(wrappedKey, 1, wrappedKey.length));
+            }
+        };
+        CoreVault vault = new CoreVault(upgradingKeyWrapper, new PropertiesFileStorage(storageFile), blobDirectory);
+        byte[] migratedKey = new PropertiesFileStorage(storageFile).getKey();
+        Assert.assertEquals(legacyKey.length + 1, migratedKey.length);
+        Assert.assertArrayEquals(value, vault.getCredential("cred"));
+        Assert.assertArrayEquals(migratedKey, new PropertiesFileStorage(storageFile).getKey());
+    }
+
+    @Test
+    public void testLegacyRecordsAreMigrated() throws Exception {
+        byte[] value = "some value".getBytes("UTF-8");
+        openVault().storeCredential("new", value);
+        PropertiesFileStorage storage = new PropertiesFileStorage(storageFile);
+        Assert.assertFalse(RecordEnvelope.isLegacy(storage.getCredential("new")));
+        Assert.assertEquals(RecordEnvelope.getRecordLength(value.length), storage.getCredential("new").length);
+
+        // records written before the envelope was introduced
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, keyWrapper.unwrap(storage.getKey()));
+        storage.setCredential("legacy1", cipher.doFinal(value));
+        storage.setCredential("legacy2", cipher.doFinal(value));
+        Assert.assertTrue(RecordEnvelope.isLegacy(storage.getCredential("legacy1")));
+
+        CoreVault vault = openVault();
+        Assert.assertArrayEquals(value, vault.getCredential("legacy1"));
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        Assert.assertEquals(value.length, vault.getCredential("legacy2", buffer));
+        vault.migrateRecords().get();
+
+        storage = new PropertiesFileStorage(storageFile);
+        Assert.assertFalse(RecordEnvelope.isLegacy(storage.getCredential("legacy1")));
+        Assert.assertFalse(RecordEnvelope.isLegacy(storage.getCredential("legacy2")));
+        Assert.assertArrayEquals(value, openVault().getCredential("legacy1"));
+        Assert.assertArrayEquals(value, openVault().getCredential("legacy2"));
+    }
+
+    @Test
+    public void testTamperedAndUnsupportedRecordsAreRejected() throws Exception {
+        openVault().storeCredential("cred", "some value".getBytes("UTF-8"));
+        PropertiesFileStorage storage = new PropertiesFileStorage(storageFile);
+        byte[] record = storage.getCredential("cred");
+
+        byte[] tampered = record.clone();
+        tampered[tampered.length - 1] ^= 1;
+        storage.setCredential("cred", tampered);
+        try {
+            openVault().getCredential("cred");
+            Assert.fail("tampered record was decrypted");
+        } catch (VaultException e) {
+            // expected, not read as a legacy record
+        }
+        Assert.assertFalse(RecordEnvelope.isLegacy(tampered));
+
+        byte[] newer = record.clone();
+        newer[4] = 2;
+        storage.setCredential("cred", newer);
+        try {
+            RecordEnvelope.decrypt(keyWrapper.unwrap(storage.getKey()), newer);
+            Assert.fail("record with unknown version was decrypted");
+        } catch (RecordEnvelope.UnsupportedRecordException e) {
+            // expected
+        }
+        try {
+            openVault().getCredential("cred");
+            Assert.fail("record with unknown version was decrypted");
+        } catch (VaultException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRotateKey() throws Exception {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; i++) {
+            values.put("cred" + i, ("value " + i).getBytes("UTF-8"));
+        }
+        CoreVault vault = openVault();
+        vault.storeCredentials(values);
+        byte[] retiredKey = new PropertiesFileStorage(storageFile).getKey();
+
+        Assert.assertEquals(100, vault.rotateKey().get().intValue());
+        PropertiesFileStorage storage = new PropertiesFileStorage(storageFile);
+        Assert.assertFalse(Arrays.equals(retiredKey, storage.getKey()));
+        Assert.assertNull(storage.getMetadata("rotation_key"));
+        Assert.assertArrayEquals(values.get("cred42"), vault.getCredential("cred42"));
+        Map<String, byte[]> loaded = openVault().getCredentials(values.keySet());
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            Assert.assertArrayEquals(entry.getValue(), loaded.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testRotateKeyRejectsCredentialStreams() throws Exception {
+        CoreVault vault = openVault();
+        OutputStream out = vault.openCredentialOutputStream("stream");
+        out.write("some value".getBytes("UTF-8"));
+        try {
+            vault.rotateKey();
+            Assert.fail("Rotation should have been rejected while a stream is written");
+        } catch (VaultException e) {
+            // expected
+        }
+        out.close();
+        try {
+            vault.rotateKey();
+            Assert.fail("Rotation should have been rejected while a stream is stored");
+        } catch (VaultException e) {
+            // expected
+        }
+        vault.removeCredentialStream("stream");
+        vault.rotateKey().get();
+
+        // written with the new key
+        out = vault.openCredentialOutputStream("stream");
+        out.write("some value".getBytes("UTF-8"));
+        out.close();
+        Assert.assertEquals("some value".length(), openVault().readCredential("stream", 0, ByteBuffer.allocate(64)));
+    }
+
+    @Test
+    public void testCredentialStreamsOutliveSession() throws Exception {
+        byte[] value = "some value".getBytes("UTF-8");
+        CoreVault vault = openVault();
+        vault.unlock(0);
+        OutputStream out = vault.openCredentialOutputStream("stream");
+        vault.lock();
+        out.write(value);
+        out.close();
+
+        vault.unlock(0);
+        InputStream in = vault.openCredentialInputStream("stream");
+        vault.lock();
+        byte[] read = new byte[64];
+        Assert.assertEquals(value.length, in.read(read));
+        in.close();
+        Assert.assertArrayEquals(value, Arrays.copyOf(read, value.length));
+        try {
+            in.read(read);
+            Assert.fail("Closed stream should not be readable");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRotateKeyRequiresMetadataBehindCache() throws Exception {
+        // a plain storage, without metadata support
+        final Map<String, byte[]> credentials = new HashMap<String, byte[]>();
+        VaultStorage plainStorage = new VaultStorage() {
+            private byte[] key;
+
+            @Override
+            public List<String> getCredentialNames() {
+                return new ArrayList<String>(credentials.keySet());
+            }
+
+            @Override
+            public byte[] getCredential(String name) {
+                return credentials.get(name);
+            }
+
+            @Override
+            public void setCredential(String name, byte[] value) {
+                credentials.put(name, value);
+            }
+
+            @Override
+            public void removeCredential(String name) {
+                credentials.remove(name);
+            }
+
+            @Override
+            public void setKey(byte[] key) {
+                this.key = key;
+            }
+
+            @Override
+            public byte[] getKey() {
+                return key;
+            }
+
+            @Override
+            public void reset() {
+                credentials.clear();
+                key = null;
+            }
+        };
+        CachingVaultStorage cachingStorage = new CachingVaultStorage(plainStorage, 64 * 1024);
+        Assert.assertFalse(cachingStorage.supportsMetadata());
+        CoreVault vault = new CoreVault(keyWrapper, cachingStorage, blobDirectory);
+        try {
+            vault.rotateKey();
+            Assert.fail("Rotation should have been rejected without metadata support");
+        } catch (VaultException e) {
+            // expected
+        }
+
+        // streams can still be written
+        OutputStream out = vault.openCredentialOutputStream("stream");
+        out.write("some value".getBytes("UTF-8"));
+        out.close();
+        Assert.assertEquals("some value".length(), vault.readCredential("stream", 0, ByteBuffer.allocate(64)));
+    }
+
+    @Test
+    public void testKeyRotationKeepsConcurrentWrites() throws Exception {
+        openVault().storeCredential("cred", "old value".getBytes("UTF-8"));
+
+        // the credential is overwritten right after the rotation has read it
+        final CoreVault[] vaultHolder = new CoreVault[1];
+        PropertiesFileStorage racingStorage = new PropertiesFileStorage(storageFile) {
+            private boolean overwritten;
+
+            @Override
+            public byte[] getCredential(String name) {
+                byte[] value = super.getCredential(name);
+                if (!overwritten && Thread.currentThread().getName().startsWith("andvault-background")) {
+                    overwritten = true;
+                    try {
+                        vaultHolder[0].storeCredential(name, "new value".getBytes("UTF-8"));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return value;
+            }
+        };
+        CoreVault vault = new CoreVault(keyWrapper, racingStorage, blobDirectory);
+        vaultHolder[0] = vault;
+        Assert.assertEquals(Integer.valueOf(0), vault.rotateKey().get());
+        Assert.assertArrayEquals("new value".getBytes("UTF-8"), vault.getCredential("cred"));
+        Assert.assertArrayEquals("new value".getBytes("UTF-8"), openVault().getCredential("cred"));
+    }
+
+    @Test
+    public void testInterruptedKeyRotationIsResumed() throws Exception {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; i++) {
+            values.put("cred" + i, ("value " + i).getBytes("UTF-8"));
+        }
+        openVault().storeCredentials(values);
+        byte[] retiredKey = new PropertiesFileStorage(storageFile).getKey();
+
+        // fails after re-encrypting the first few batches
+        PropertiesFileStorage failingStorage = new PropertiesFileStorage(storageFile) {
+            private int batches;
+
+            @Override
+            public boolean setCredentials(Map<String, byte[]> values) {
+                return ++batches <= 3 && super.setCredentials(values);
+            }
+        };
+        CoreVault vault = new CoreVault(keyWrapper, failingStorage, blobDirectory);
+        try {
+            vault.rotateKey().get();
+            Assert.fail("Rotation should have failed");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertNotNull(failingStorage.getMetadata("rotation_key"));
+        Assert.assertArrayEquals(retiredKey, failingStorage.getKey());
+
+        // both keys are in use until the rotation is complete
+        Map<String, byte[]> loaded = vault.getCredentials(values.keySet());
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            Assert.assertArrayEquals(entry.getValue(), loaded.get(entry.getKey()));
+        }
+        vault.storeCredential("new", "new value".getBytes("UTF-8"));
+
+        // opening the vault again resumes the rotation
+        CoreVault reopened = openVault();
+        reopened.rotateKey().get();
+        PropertiesFileStorage storage = new PropertiesFileStorage(storageFile);
+        Assert.assertFalse(Arrays.equals(retiredKey, storage.getKey()));
+        Assert.assertNull(storage.getMetadata("rotation_key"));
+        Assert.assertArrayEquals("new value".getBytes("UTF-8"), openVault().getCredential("new"));
+        loaded = openVault().getCredentials(values.keySet());
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            Assert.assertArrayEquals(entry.getValue(), loaded.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testPropertiesFileStorage() {
+        PropertiesFileStorage storage = new PropertiesFileStorage(storageFile);
+        storage.setKey(new byte[]{1, 2, 3, 4});
+        storage.setCredential("some name", new byte[]{5, 6, 7});
+        PropertiesFileStorage reopened = new PropertiesFileStorage(storageFile);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4}, reopened.getKey());
+        Assert.assertArrayEquals(new byte[]{5, 6, 7}, reopened.getCredential("some name"));
+        reopened.reset();
+        Assert.assertNull(new PropertiesFileStorage(storageFile).getKey());
+    }
+}
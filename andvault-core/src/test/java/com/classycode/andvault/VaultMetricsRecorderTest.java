@@ -0,0 +1,87 @@
+package com.classycode.andvault;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class VaultMetricsRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void removeListener() {
+        VaultMetrics.setListener(null);
+    }
+
+    @Test
+    public void testHistogram() {
+        VaultMetricsRecorder recorder = new VaultMetricsRecorder();
+        for (int i = 0; i < 99; i++) {
+            recorder.onPhase(VaultMetrics.Phase.DECRYPT, 3000, 48); // 3us, bucket [2us, 4us)
+        }
+        recorder.onPhase(VaultMetrics.Phase.DECRYPT, 5000000, 48); // 5ms
+
+        VaultMetricsSnapshot.PhaseStats stats = recorder.snapshot().getPhaseStats(VaultMetrics.Phase.DECRYPT);
+        Assert.assertEquals(100, stats.getCount());
+        Assert.assertEquals(4800, stats.getTotalBytes());
+        Assert.assertEquals(5000000, stats.getMaxNanos());
+        Assert.assertEquals(99, stats.getHistogram()[2]);
+        Assert.assertEquals(4000, stats.getPercentileNanos(50));
+        Assert.assertEquals(4000, stats.getPercentileNanos(99));
+        Assert.assertEquals(5000000, stats.getPercentileNanos(100));
+        Assert.assertEquals(0, recorder.snapshot().getPhaseStats(VaultMetrics.Phase.ENCRYPT).getCount());
+
+        recorder.reset();
+        Assert.assertEquals(0, recorder.snapshot().getPhaseStats(VaultMetrics.Phase.DECRYPT).getCount());
+    }
+
+    @Test
+    public void testBuckets() {
+        Assert.assertEquals(0, VaultMetricsRecorder.getBucket(999));
+        Assert.assertEquals(1, VaultMetricsRecorder.getBucket(1000));
+        Assert.assertEquals(1, VaultMetricsRecorder.getBucket(1999));
+        Assert.assertEquals(2, VaultMetricsRecorder.getBucket(2000));
+        Assert.assertEquals(VaultMetricsRecorder.BUCKET_COUNT - 1, VaultMetricsRecorder.getBucket(Long.MAX_VALUE));
+        for (int i = 0; i < VaultMetricsRecorder.BUCKET_COUNT - 1; i++) {
+            long upperBound = VaultMetricsRecorder.getBucketUpperBoundNanos(i);
+            Assert.assertEquals(i, VaultMetricsRecorder.getBucket(upperBound - 1));
+            Assert.assertEquals(i + 1, VaultMetricsRecorder.getBucket(upperBound));
+        }
+    }
+
+    @Test
+    public void testVaultPhasesAreReported() throws Exception {
+        VaultMetricsRecorder recorder = new VaultMetricsRecorder();
+        VaultMetrics.setListener(recorder);
+        CoreVault vault = new CoreVault(new SoftwareKeyWrapper(),
+                new PropertiesFileStorage(new File(folder.getRoot(), "vault.properties")), new File(folder.getRoot(), "blobs"));
+        vault.storeCredential("cred", "value".getBytes("UTF-8"));
+        vault.unlock(0);
+        vault.getCredential("cred");
+        vault.getCredential("cred");
+
+        VaultMetricsSnapshot snapshot = recorder.snapshot();
+        Assert.assertEquals(1, snapshot.getPhaseStats(VaultMetrics.Phase.KEY_GENERATION).getCount());
+        Assert.assertEquals(1, snapshot.getPhaseStats(VaultMetrics.Phase.KEY_WRAP).getCount());
+        Assert.assertEquals(2, snapshot.getPhaseStats(VaultMetrics.Phase.KEY_UNWRAP).getCount());
+        Assert.assertEquals(1, snapshot.getPhaseStats(VaultMetrics.Phase.ENCRYPT).getCount());
+        Assert.assertEquals(2, snapshot.getPhaseStats(VaultMetrics.Phase.DECRYPT).getCount());
+        Assert.assertEquals(1, snapshot.getPhaseStats(VaultMetrics.Phase.STORAGE_WRITE).getCount());
+        Assert.assertEquals(2, snapshot.getPhaseStats(VaultMetrics.Phase.STORAGE_READ).getCount());
+        Assert.assertEquals(2, snapshot.getPhaseStats(VaultMetrics.Phase.STORAGE_COMMIT).getCount()); // key and credential
+        Assert.assertEquals(2, snapshot.getCacheHitCount(VaultMetrics.Cache.KEY));
+        Assert.assertEquals(2, snapshot.getCacheMissCount(VaultMetrics.Cache.KEY)); // store and unlock
+
+        VaultMetrics.setListener(null);
+        vault.getCredential("cred");
+        Assert.assertEquals(2, recorder.snapshot().getPhaseStats(VaultMetrics.Phase.DECRYPT).getCount());
+    }
+}
@@ -0,0 +1,106 @@
+package com.classycode.andvault;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class VaultTracingTest {
+
+    /**
+     * Records the sections of all threads, checking that synchronous ones are properly nested.
+     */
+    private static class RecordingTracer implements VaultTracer {
+
+        final List<String> sections = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<String> asyncEvents = Collections.synchronizedList(new ArrayList<String>());
+
+        private final ThreadLocal<List<String>> open = new ThreadLocal<List<String>>() {
+            @Override
+            protected List<String> initialValue() {
+                return new ArrayList<String>();
+            }
+        };
+
+        @Override
+        public void beginSection(String name) {
+            open.get().add(name);
+            sections.add(name);
+        }
+
+        @Override
+        public void endSection() {
+            final List<String> stack = open.get();
+            Assert.assertFalse("Section ended without being begun", stack.isEmpty());
+            stack.remove(stack.size() - 1);
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            asyncEvents.add("begin " + name + " " + cookie);
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            asyncEvents.add("end " + name + " " + cookie);
+        }
+
+        boolean isBalanced() {
+            return open.get().isEmpty();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void removeTracer() {
+        VaultTracing.setTracer(null);
+    }
+
+    private CoreVault openVault(boolean warmUpAsync) throws Exception {
+        return new CoreVault(new SoftwareKeyWrapper(), new PropertiesFileStorage(new File(folder.getRoot(), "vault.properties")),
+                new File(folder.getRoot(), "blobs"), warmUpAsync, VaultClock.SYSTEM);
+    }
+
+    @Test
+    public void testSectionsAreBalanced() throws Exception {
+        RecordingTracer tracer = new RecordingTracer();
+        VaultTracing.setTracer(tracer);
+        CoreVault vault = openVault(false);
+        vault.storeCredential("cred", "value".getBytes("UTF-8"));
+        Assert.assertArrayEquals("value".getBytes("UTF-8"), vault.getCredential("cred"));
+        Assert.assertTrue(tracer.isBalanced());
+        Assert.assertEquals(Arrays.asList(VaultTracing.SECTION_GENERATE_VAULT_KEY, VaultTracing.SECTION_KEY_WRAP,
+                VaultTracing.SECTION_COMMIT, // the key
+                VaultTracing.SECTION_KEY_UNWRAP, VaultTracing.SECTION_ENCRYPT, VaultTracing.SECTION_COMMIT,
+                VaultTracing.SECTION_KEY_UNWRAP, VaultTracing.SECTION_DECRYPT), tracer.sections);
+
+        VaultTracing.setTracer(null);
+        vault.getCredential("cred");
+        Assert.assertEquals(8, tracer.sections.size());
+    }
+
+    @Test
+    public void testAsyncSections() throws Exception {
+        RecordingTracer tracer = new RecordingTracer();
+        VaultTracing.setTracer(tracer);
+        CoreVault vault = openVault(true);
+        vault.unlock(0); // waits for the warm-up
+        Assert.assertEquals(2, tracer.asyncEvents.size());
+        String begin = tracer.asyncEvents.get(0);
+        Assert.assertTrue(begin.startsWith("begin " + VaultTracing.SECTION_WARM_UP));
+        Assert.assertEquals(begin.replace("begin", "end"), tracer.asyncEvents.get(1));
+    }
+}
@@ -13,6 +13,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
+import com.classycode.andvault.VaultCallback;
 import com.classycode.andvault.VaultException;
 
 /**
@@ -60,22 +61,32 @@ public class CredentialFragment extends Fragment {
         credentialValueLabel.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                try {
-                    String value = ((MainActivity) getActivity()).getVault().getStringCredential(getCredentialName());
-                    credentialValueLabel.setText(value);
-
-                    // clear label after a couple of seconds
-                    new Handler().postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (isResumed()) {
-                                credentialValueLabel.setText(R.string.value_hidden);
+                ((MainActivity) getActivity()).getAsyncVault().getStringCredential(getCredentialName(), new VaultCallback<String>() {
+                    @Override
+                    public void onSuccess(String value) {
+                        if (!isResumed()) {
+                            return;
+                        }
+                        credentialValueLabel.setText(value);
+
+                        // clear label after a couple of seconds
+                        new Handler().postDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (isResumed()) {
+                                    credentialValueLabel.setText(R.string.value_hidden);
+                                }
                             }
+                        }, 2500);
+                    }
+
+                    @Override
+                    public void onError(VaultException e) {
+                        if (isResumed()) {
+                            ((MainActivity) getActivity()).showErrorDialog(e.getMessage());
                         }
-                    }, 2500);
-                } catch (VaultException e) {
-                    ((MainActivity) getActivity()).showErrorDialog(e.getMessage());
-                }
+                    }
+                });
             }
         });
 
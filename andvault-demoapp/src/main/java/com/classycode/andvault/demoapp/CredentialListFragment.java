@@ -21,6 +21,7 @@ import android.widget.TextView;
 import java.util.List;
 
 import com.classycode.andvault.Vault;
+import com.classycode.andvault.VaultCallback;
 import com.classycode.andvault.VaultException;
 
 /**
@@ -166,14 +167,23 @@ public class CredentialListFragment extends ListFragment {
                 final String name = nameField.getText().toString().trim();
                 nameField.setText("");
                 if (!name.isEmpty()) {
-                    try {
-                        final String value = valueField.getText().toString();
-                        valueField.setText("");
-                        getVault().storeStringCredential(name, value);
-                    } catch (VaultException e) {
-                        ((MainActivity) getActivity()).showErrorDialog(e.getMessage());
-                    }
-                    refreshCredentials();
+                    final String value = valueField.getText().toString();
+                    valueField.setText("");
+                    ((MainActivity) getActivity()).getAsyncVault().storeStringCredential(name, value, new VaultCallback<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {
+                            if (isResumed()) {
+                                refreshCredentials();
+                            }
+                        }
+
+                        @Override
+                        public void onError(VaultException e) {
+                            if (isResumed()) {
+                                ((MainActivity) getActivity()).showErrorDialog(e.getMessage());
+                            }
+                        }
+                    });
                     dialog.dismiss();
                 }
             }
@@ -6,7 +6,9 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 
+import com.classycode.andvault.AsyncVault;
 import com.classycode.andvault.Vault;
+import com.classycode.andvault.VaultCallback;
 import com.classycode.andvault.VaultException;
 
 public class MainActivity extends AppCompatActivity implements CredentialListFragment.CredentialListFragmentListener, CredentialFragment.CredentialFragmentListener {
@@ -15,6 +17,8 @@ public class MainActivity extends AppCompatActivity implements CredentialListFra
 
     private Vault vault;
 
+    private AsyncVault asyncVault;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -39,9 +43,11 @@ public class MainActivity extends AppCompatActivity implements CredentialListFra
                     throw new IllegalStateException("Vault re-initialization failed", e1);
                 }
             }
+            asyncVault = new AsyncVault(vault);
         } else {
             showErrorDialog(getString(R.string.error_device_not_protected));
             vault = null;
+            asyncVault = null;
         }
     }
 
@@ -49,6 +55,10 @@ public class MainActivity extends AppCompatActivity implements CredentialListFra
         return vault;
     }
 
+    AsyncVault getAsyncVault() {
+        return asyncVault;
+    }
+
     @Override
     public void onCredentialSelected(String name) {
         getSupportFragmentManager().beginTransaction().replace(R.id.fragment_container,
@@ -57,8 +67,17 @@ public class MainActivity extends AppCompatActivity implements CredentialListFra
 
     @Override
     public void onDeleteCredential(String name) {
-        getVault().removeCredential(name);
-        getSupportFragmentManager().popBackStack();
+        getAsyncVault().removeCredential(name, new VaultCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                getSupportFragmentManager().popBackStack();
+            }
+
+            @Override
+            public void onError(VaultException e) {
+                showErrorDialog(e.getMessage());
+            }
+        });
     }
 
     void showErrorDialog(String msg) {
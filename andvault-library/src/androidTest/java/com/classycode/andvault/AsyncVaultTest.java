@@ -0,0 +1,93 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.RequiresDevice;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+@RequiresDevice // actually, requires a lock screen. restrict to real device as we currently can't set this up on the CI server
+public class AsyncVaultTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private AsyncVault asyncVault;
+
+    @Before
+    public void setup() throws VaultException {
+        Context context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "AsyncVaultTest");
+        Vault.reset(context);
+        asyncVault = new AsyncVault(new Vault(context), DIRECT_EXECUTOR);
+    }
+
+    @Test
+    public void testReadSeesPendingWrite() throws Exception {
+        asyncVault.storeStringCredential("cred", "some value", null);
+        Assert.assertEquals("some value", asyncVault.getStringCredential("cred", null).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCallbackIsDelivered() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> results = new ArrayList<String>();
+        asyncVault.storeStringCredential("cred", "some value", null).get(5, TimeUnit.SECONDS);
+        asyncVault.getStringCredential("cred", new VaultCallback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                results.add(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(VaultException e) {
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("some value", results.get(0));
+    }
+
+    @Test
+    public void testConcurrentReadsReturnOwnCopies() throws Exception {
+        asyncVault.storeStringCredential("cred", "some value", null).get(5, TimeUnit.SECONDS);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(asyncVault.getCredential("cred", null));
+        }
+        byte[] first = futures.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<byte[]> future : futures.subList(1, futures.size())) {
+            byte[] value = future.get(5, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(first, value);
+            Assert.assertNotSame(first, value);
+        }
+    }
+
+    @Test
+    public void testInexistentCredentialIsNull() throws Exception {
+        Assert.assertNull(asyncVault.getCredential("inexistent", null).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,128 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class CachingVaultStorageTest {
+
+    private SharedPrefsStorage delegate;
+
+    @Before
+    public void setupStorage() {
+        Context context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "CachingVaultStorageTest");
+        delegate = new SharedPrefsStorage(context);
+        delegate.reset();
+    }
+
+    @Test
+    public void testStoreCredential() throws UnsupportedEncodingException {
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 64 * 1024);
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+        Assert.assertArrayEquals(value, delegate.getCredential("some name"));
+        Assert.assertEquals(1, storage.getHitCount());
+        Assert.assertEquals(0, storage.getMissCount());
+    }
+
+    @Test
+    public void testMissingCredentialIsCached() {
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 64 * 1024);
+        Assert.assertNull(storage.getCredential("inexistent"));
+        Assert.assertNull(storage.getCredential("inexistent"));
+        Assert.assertEquals(1, storage.getMissCount());
+        Assert.assertEquals(1, storage.getHitCount());
+    }
+
+    @Test
+    public void testCredentialNamesAreMaintained() throws UnsupportedEncodingException {
+        delegate.setCredential("existing", "value".getBytes("UTF-8"));
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 64 * 1024);
+        Assert.assertEquals(Arrays.asList("existing"), storage.getCredentialNames());
+        storage.setCredential("new", "value".getBytes("UTF-8"));
+        storage.removeCredential("existing");
+        Assert.assertEquals(Arrays.asList("new"), storage.getCredentialNames());
+        // names known not to exist are answered without asking the delegate
+        Assert.assertNull(storage.getCredential("existing"));
+        Assert.assertEquals(0, storage.getMissCount());
+    }
+
+    @Test
+    public void testCredentialNamesArePaged() throws UnsupportedEncodingException {
+        delegate.setCredential("a1", "value".getBytes("UTF-8"));
+        delegate.setCredential("a2", "value".getBytes("UTF-8"));
+        delegate.setCredential("b1", "value".getBytes("UTF-8"));
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 64 * 1024,
+                CachingVaultStorage.WriteMode.WRITE_BACK, 60 * 1000);
+        Assert.assertEquals(Arrays.asList("a1", "a2"), storage.getCredentialNames("a", null, 10));
+
+        // buffered changes are listed before they reach the wrapped storage
+        storage.setCredential("a3", "value".getBytes("UTF-8"));
+        storage.removeCredential("a1");
+        Assert.assertEquals(Arrays.asList("a2"), storage.getCredentialNames("a", null, 1));
+        Assert.assertEquals(Arrays.asList("a3"), storage.getCredentialNames("a", "a2", 10));
+        storage.flush();
+        Assert.assertEquals(Arrays.asList("a2", "a3"), storage.getCredentialNames("a", null, 10));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 1024);
+        for (int i = 0; i < 100; i++) {
+            storage.setCredential("cred" + i, new byte[100]);
+        }
+        Assert.assertTrue(storage.getCachedBytes() <= 1024);
+        Assert.assertEquals(100, delegate.getCredentialNames().size());
+        Assert.assertNotNull(storage.getCredential("cred0"));
+    }
+
+    @Test
+    public void testWriteBack() throws UnsupportedEncodingException {
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 64 * 1024, CachingVaultStorage.WriteMode.WRITE_BACK, 60000);
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("cred1", "value 1".getBytes("UTF-8"));
+        values.put("cred2", "value 2".getBytes("UTF-8"));
+        Assert.assertTrue(storage.setCredentials(values));
+        Assert.assertArrayEquals(values.get("cred1"), storage.getCredential("cred1"));
+        Assert.assertNull(delegate.getCredential("cred1"));
+
+        storage.flush();
+        Assert.assertArrayEquals(values.get("cred1"), delegate.getCredential("cred1"));
+        Assert.assertArrayEquals(values.get("cred2"), delegate.getCredential("cred2"));
+
+        storage.removeCredential("cred1");
+        Assert.assertNull(storage.getCredential("cred1"));
+        storage.flush();
+        Assert.assertNull(delegate.getCredential("cred1"));
+    }
+
+    @Test
+    public void testReset() throws UnsupportedEncodingException {
+        CachingVaultStorage storage = new CachingVaultStorage(delegate, 64 * 1024);
+        storage.setKey("this is a key".getBytes("UTF-8"));
+        storage.setCredential("cred", "value".getBytes("UTF-8"));
+        storage.reset();
+        Assert.assertNull(storage.getKey());
+        Assert.assertNull(storage.getCredential("cred"));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertEquals(0, delegate.getCredentialNames().size());
+    }
+}
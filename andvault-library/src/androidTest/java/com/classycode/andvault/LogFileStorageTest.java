@@ -0,0 +1,174 @@
+package com.classycode.andvault;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class LogFileStorageTest {
+
+    private File file;
+
+    private LogFileStorage storage;
+
+    @Before
+    public void setupStorage() throws IOException {
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "LogFileStorageTest.log");
+        file.delete();
+        storage = new LogFileStorage(file);
+    }
+
+    @After
+    public void closeStorage() throws IOException {
+        storage.close();
+        file.delete();
+    }
+
+    @Test
+    public void testStorageIsInitiallyEmpty() {
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertNull(storage.getKey());
+    }
+
+    @Test
+    public void testStoreLoadKey() throws UnsupportedEncodingException {
+        byte[] key = "this is a key".getBytes("UTF-8");
+        storage.setKey(key);
+        Assert.assertArrayEquals(key, storage.getKey());
+    }
+
+    @Test
+    public void testStoreLoadMetadata() throws IOException {
+        byte[] value = "some metadata".getBytes("UTF-8");
+        Assert.assertTrue(storage.setMetadata("some name", value));
+        Assert.assertArrayEquals(value, storage.getMetadata("some name"));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertTrue(storage.setMetadata("some name", null));
+        Assert.assertNull(storage.getMetadata("some name"));
+
+        // survives compaction and reopening
+        storage.setMetadata("some name", value);
+        storage.compact();
+        storage.close();
+        storage = new LogFileStorage(file);
+        Assert.assertArrayEquals(value, storage.getMetadata("some name"));
+        storage.reset();
+        Assert.assertNull(storage.getMetadata("some name"));
+    }
+
+    @Test
+    public void testStoreCredential() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        Assert.assertTrue(storage.getCredentialNames().contains("some name"));
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+    }
+
+    @Test
+    public void testRemoveCredential() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        storage.removeCredential("some name");
+        Assert.assertFalse(storage.getCredentialNames().contains("some name"));
+        Assert.assertNull(storage.getCredential("some name"));
+    }
+
+    @Test
+    public void testStoreRemoveCredentials() throws UnsupportedEncodingException {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("name 1", "value 1".getBytes("UTF-8"));
+        values.put("name 2", "value 2".getBytes("UTF-8"));
+        Assert.assertTrue(storage.setCredentials(values));
+        Assert.assertEquals(2, storage.getCredentials(Arrays.asList("name 1", "name 2", "inexistent")).size());
+        Assert.assertTrue(storage.removeCredentials(Arrays.asList("name 1", "name 2")));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+    }
+
+    @Test
+    public void testRemovingUnknownCredentialsWritesNothing() throws UnsupportedEncodingException {
+        storage.setCredential("some name", "this is an encrypted value".getBytes("UTF-8"));
+        long size = storage.getFileSize();
+        Assert.assertTrue(storage.removeCredentials(Arrays.asList("inexistent 1", "inexistent 2")));
+        Assert.assertEquals(size, storage.getFileSize());
+        Assert.assertEquals(0, storage.getGarbageBytes());
+    }
+
+    @Test
+    public void testIndexIsRebuiltOnOpen() throws IOException {
+        byte[] key = "this is a key".getBytes("UTF-8");
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setKey(key);
+        storage.setCredential("some name", "old value".getBytes("UTF-8"));
+        storage.setCredential("some name", value);
+        storage.setCredential("other name", value);
+        storage.removeCredential("other name");
+        storage.close();
+
+        storage = new LogFileStorage(file);
+        Assert.assertArrayEquals(key, storage.getKey());
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+        Assert.assertEquals(Arrays.asList("some name"), storage.getCredentialNames());
+    }
+
+    @Test
+    public void testPartialRecordIsDiscarded() throws IOException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        storage.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        raf.seek(length);
+        raf.write(new byte[]{0, 0, 0, 42, 0, 0, 0, 1, 1});
+        raf.close();
+
+        storage = new LogFileStorage(file);
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+        Assert.assertEquals(length, storage.getFileSize());
+        storage.setCredential("other name", value);
+        Assert.assertArrayEquals(value, storage.getCredential("other name"));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        for (int i = 0; i < 100; i++) {
+            storage.setCredential("some name", value);
+        }
+        storage.setCredential("other name", value);
+        storage.removeCredential("other name");
+        long sizeBefore = storage.getFileSize();
+        storage.compact();
+        Assert.assertEquals(0, storage.getGarbageBytes());
+        Assert.assertTrue(storage.getFileSize() < sizeBefore);
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+        Assert.assertEquals(1, storage.getCredentialNames().size());
+    }
+
+    @Test
+    public void testReset() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        storage.reset();
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertNull(storage.getKey());
+    }
+}
@@ -0,0 +1,142 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class SQLiteStorageTest {
+
+    private static final String DATABASE_NAME = "SQLiteStorageTest.db";
+
+    private Context context;
+
+    private SQLiteStorage storage;
+
+    @Before
+    public void setupStorage() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        storage = new SQLiteStorage(context, DATABASE_NAME);
+    }
+
+    @After
+    public void closeStorage() {
+        storage.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testStorageIsInitiallyEmpty() {
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertNull(storage.getKey());
+    }
+
+    @Test
+    public void testStoreLoadKey() throws UnsupportedEncodingException {
+        byte[] key = "this is a key".getBytes("UTF-8");
+        storage.setKey(key);
+        Assert.assertArrayEquals(key, storage.getKey());
+    }
+
+    @Test
+    public void testStoreLoadMetadata() throws UnsupportedEncodingException {
+        byte[] value = "some metadata".getBytes("UTF-8");
+        Assert.assertTrue(storage.setMetadata("some name", value));
+        Assert.assertArrayEquals(value, storage.getMetadata("some name"));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertTrue(storage.setMetadata("some name", null));
+        Assert.assertNull(storage.getMetadata("some name"));
+        storage.setMetadata("some name", value);
+        storage.reset();
+        Assert.assertNull(storage.getMetadata("some name"));
+    }
+
+    @Test
+    public void testStoreCredential() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        storage.setCredential("some name", value);
+        Assert.assertEquals(Arrays.asList("some name"), storage.getCredentialNames());
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+    }
+
+    @Test
+    public void testRemoveCredential() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        storage.removeCredential("some name");
+        Assert.assertFalse(storage.getCredentialNames().contains("some name"));
+        Assert.assertNull(storage.getCredential("some name"));
+    }
+
+    @Test
+    public void testStoreRemoveCredentials() throws UnsupportedEncodingException {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("name 1", "value 1".getBytes("UTF-8"));
+        values.put("name 2", "value 2".getBytes("UTF-8"));
+        Assert.assertTrue(storage.setCredentials(values));
+        Map<String, byte[]> loaded = storage.getCredentials(Arrays.asList("name 1", "name 2", "inexistent"));
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertArrayEquals(values.get("name 2"), loaded.get("name 2"));
+        Assert.assertTrue(storage.removeCredentials(Arrays.asList("name 1", "name 2")));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+    }
+
+    @Test
+    public void testValuesSurviveReopen() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setKey(value);
+        storage.setCredential("some name", value);
+        storage.close();
+        storage = new SQLiteStorage(context, DATABASE_NAME);
+        Assert.assertArrayEquals(value, storage.getKey());
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+    }
+
+    @Test
+    public void testReset() throws UnsupportedEncodingException {
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        storage.setCredential("some name", value);
+        storage.reset();
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertNull(storage.getKey());
+    }
+
+    @Test
+    public void testCredentialNamesByPrefix() {
+        for (String name : new String[]{"acct/2/refresh", "acct/1/refresh", "acct/1/access", "acct/10/access", "other"}) {
+            storage.setCredential(name, new byte[]{1});
+        }
+        Assert.assertEquals(Arrays.asList("acct/1/access", "acct/1/refresh"), storage.getCredentialNames("acct/1/", null, 100));
+        Assert.assertEquals(Arrays.asList("acct/1/access", "acct/1/refresh", "acct/10/access", "acct/2/refresh"),
+                storage.getCredentialNames("acct/", null, 100));
+
+        // page through the names
+        Assert.assertEquals(Arrays.asList("acct/1/access", "acct/1/refresh"), storage.getCredentialNames("acct/", null, 2));
+        Assert.assertEquals(Arrays.asList("acct/10/access", "acct/2/refresh"), storage.getCredentialNames("acct/", "acct/1/refresh", 2));
+        Assert.assertEquals(0, storage.getCredentialNames("acct/", "acct/2/refresh", 2).size());
+
+        // the index follows writes
+        storage.removeCredential("acct/1/access");
+        storage.setCredential("acct/1/id", new byte[]{1});
+        Assert.assertEquals(Arrays.asList("acct/1/id", "acct/1/refresh"), storage.getCredentialNames("acct/1/", null, 100));
+        Assert.assertEquals(0, storage.getCredentialNames("none/", null, 100).size());
+    }
+}
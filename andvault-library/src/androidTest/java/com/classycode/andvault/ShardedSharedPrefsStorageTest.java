@@ -0,0 +1,113 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class ShardedSharedPrefsStorageTest {
+
+    private Context context;
+
+    private ShardedSharedPrefsStorage storage;
+
+    @Before
+    public void setupStorage() {
+        context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "ShardedSharedPrefsStorageTest");
+        storage = new ShardedSharedPrefsStorage(context, 4, SharedPrefsStorage.Durability.SYNC);
+        storage.reset();
+        new SharedPrefsStorage(context).reset();
+    }
+
+    @Test
+    public void testStoreCredentials() throws UnsupportedEncodingException {
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 20; i++) {
+            names.add("cred" + i);
+            storage.setCredential("cred" + i, ("value " + i).getBytes("UTF-8"));
+        }
+        Assert.assertEquals(names, new HashSet<String>(storage.getCredentialNames()));
+        for (int i = 0; i < 20; i++) {
+            Assert.assertArrayEquals(("value " + i).getBytes("UTF-8"), storage.getCredential("cred" + i));
+        }
+        storage.removeCredential("cred0");
+        Assert.assertNull(storage.getCredential("cred0"));
+        Assert.assertEquals(19, storage.getCredentialNames().size());
+    }
+
+    @Test
+    public void testCredentialNamesByPrefixAcrossShards() {
+        for (String name : new String[]{"acct/2", "acct/1", "acct/3", "other"}) {
+            storage.setCredential(name, new byte[]{1});
+        }
+        Assert.assertEquals(Arrays.asList("acct/1", "acct/2"), storage.getCredentialNames("acct/", null, 2));
+        Assert.assertEquals(Arrays.asList("acct/3"), storage.getCredentialNames("acct/", "acct/2", 2));
+    }
+
+    @Test
+    public void testShardCountIsFixed() throws UnsupportedEncodingException {
+        storage.setCredential("cred", "value".getBytes("UTF-8"));
+        ShardedSharedPrefsStorage reopened = new ShardedSharedPrefsStorage(context, 16, SharedPrefsStorage.Durability.SYNC);
+        Assert.assertEquals(4, reopened.getShardCount());
+        Assert.assertArrayEquals("value".getBytes("UTF-8"), reopened.getCredential("cred"));
+    }
+
+    @Test
+    public void testReset() throws UnsupportedEncodingException {
+        storage.setKey("this is a key".getBytes("UTF-8"));
+        storage.setCredential("cred", "value".getBytes("UTF-8"));
+        storage.reset();
+        Assert.assertNull(storage.getKey());
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+    }
+
+    @Test
+    public void testMigrateFromSharedPrefsStorage() throws UnsupportedEncodingException {
+        SharedPrefsStorage legacy = new SharedPrefsStorage(context);
+        byte[] key = "this is a key".getBytes("UTF-8");
+        legacy.setKey(key);
+        legacy.setCredential("cred1", "value 1".getBytes("UTF-8"));
+        legacy.setCredential("cred2", "value 2".getBytes("UTF-8"));
+
+        Assert.assertTrue(storage.migrateFrom(legacy));
+        Assert.assertArrayEquals(key, storage.getKey());
+        Assert.assertArrayEquals("value 1".getBytes("UTF-8"), storage.getCredential("cred1"));
+        Assert.assertArrayEquals("value 2".getBytes("UTF-8"), storage.getCredential("cred2"));
+        Assert.assertNull(legacy.getKey());
+        Assert.assertEquals(0, legacy.getCredentialNames().size());
+
+        // nothing left to migrate
+        Assert.assertFalse(storage.migrateFrom(legacy));
+    }
+
+    @Test
+    public void testMigrateFromStorageWithPendingKeyRotation() throws UnsupportedEncodingException {
+        SharedPrefsStorage legacy = new SharedPrefsStorage(context);
+        legacy.setKey("this is a key".getBytes("UTF-8"));
+        legacy.setCredential("cred", "value".getBytes("UTF-8"));
+        legacy.setMetadata("rotation_key", "this is the new key".getBytes("UTF-8"));
+        legacy.setMetadata("rotation_checkpoint", "cred".getBytes("UTF-8"));
+
+        Assert.assertTrue(storage.migrateFrom(legacy));
+        Assert.assertArrayEquals("this is the new key".getBytes("UTF-8"), storage.getMetadata("rotation_key"));
+        Assert.assertArrayEquals("cred".getBytes("UTF-8"), storage.getMetadata("rotation_checkpoint"));
+        Assert.assertNull(legacy.getMetadata("rotation_key"));
+        Assert.assertNull(legacy.getMetadata("rotation_checkpoint"));
+    }
+}
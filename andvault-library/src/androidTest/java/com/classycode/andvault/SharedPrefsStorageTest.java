@@ -12,6 +12,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Alex Suzuki, Classy Code GmbH, 2015
@@ -43,6 +50,19 @@ public class SharedPrefsStorageTest {
         Assert.assertArrayEquals(key, storage.getKey());
     }
 
+    @Test
+    public void testStoreLoadMetadata() throws UnsupportedEncodingException {
+        byte[] value = "some metadata".getBytes("UTF-8");
+        Assert.assertTrue(storage.setMetadata("some name", value));
+        Assert.assertArrayEquals(value, storage.getMetadata("some name"));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+        Assert.assertTrue(storage.setMetadata("some name", null));
+        Assert.assertNull(storage.getMetadata("some name"));
+        storage.setMetadata("some name", value);
+        storage.reset();
+        Assert.assertNull(storage.getMetadata("some name"));
+    }
+
     @Test
     public void testStoreCredential() throws UnsupportedEncodingException {
         byte[] value = "this is an encrypted value".getBytes("UTF-8");
@@ -61,6 +81,84 @@ public class SharedPrefsStorageTest {
         Assert.assertNull(storage.getCredential("some name"));
     }
 
+    @Test
+    public void testStoreRemoveCredentials() throws UnsupportedEncodingException {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("name 1", "value 1".getBytes("UTF-8"));
+        values.put("name 2", "value 2".getBytes("UTF-8"));
+        Assert.assertTrue(storage.setCredentials(values));
+        Assert.assertEquals(2, storage.getCredentialNames().size());
+
+        Map<String, byte[]> loaded = storage.getCredentials(Arrays.asList("name 1", "name 2", "inexistent"));
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertArrayEquals(values.get("name 1"), loaded.get("name 1"));
+        Assert.assertArrayEquals(values.get("name 2"), loaded.get("name 2"));
+
+        Assert.assertTrue(storage.removeCredentials(Arrays.asList("name 1", "name 2")));
+        Assert.assertEquals(0, storage.getCredentialNames().size());
+    }
+
+    @Test
+    public void testStoreLoadCredentialBuffer() throws UnsupportedEncodingException {
+        for (int length = 0; length < 40; length++) {
+            byte[] value = new byte[length];
+            Arrays.fill(value, (byte) length);
+            storage.setCredential("cred", ByteBuffer.wrap(value));
+            Assert.assertArrayEquals(value, storage.getCredential("cred"));
+
+            ByteBuffer dst = ByteBuffer.allocateDirect(length);
+            Assert.assertEquals(length, storage.getCredential("cred", dst));
+            Assert.assertEquals(length, dst.position());
+            dst.flip();
+            byte[] loaded = new byte[length];
+            dst.get(loaded);
+            Assert.assertArrayEquals(value, loaded);
+        }
+
+        ByteBuffer tooSmall = ByteBuffer.allocate(10);
+        Assert.assertEquals(39, storage.getCredential("cred", tooSmall));
+        Assert.assertEquals(0, tooSmall.position());
+        Assert.assertEquals(-1, storage.getCredential("inexistent", tooSmall));
+    }
+
+    @Test
+    public void testAsyncWritesAreVisibleImmediately() throws UnsupportedEncodingException {
+        SharedPrefsStorage asyncStorage = new SharedPrefsStorage(context, SharedPrefsStorage.Durability.ASYNC);
+        byte[] value = "this is an encrypted value".getBytes("UTF-8");
+        asyncStorage.setCredential("some name", value);
+        Assert.assertArrayEquals(value, asyncStorage.getCredential("some name"));
+        asyncStorage.flush();
+        Assert.assertArrayEquals(value, storage.getCredential("some name"));
+    }
+
+    @Test
+    public void testGroupCommitOfConcurrentWrites() throws Exception {
+        final SharedPrefsStorage groupStorage = new SharedPrefsStorage(context, SharedPrefsStorage.Durability.GROUP_COMMIT, 50);
+        final int writers = 8;
+        final CountDownLatch done = new CountDownLatch(writers);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < writers; i++) {
+            final String name = "name " + i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        groupStorage.setCredential(name, name.getBytes("UTF-8"));
+                        if (groupStorage.getCredential(name) == null) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (UnsupportedEncodingException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(writers, storage.getCredentialNames().size());
+    }
 
     @Test
     public void testReset() throws UnsupportedEncodingException {
@@ -70,4 +168,26 @@ public class SharedPrefsStorageTest {
         Assert.assertEquals(0, storage.getCredentialNames().size());
         Assert.assertNull(storage.getKey());
     }
+
+    @Test
+    public void testCredentialNamesByPrefix() {
+        storage.reset();
+        for (String name : new String[]{"acct/2/refresh", "acct/1/refresh", "acct/1/access", "acct/10/access", "other"}) {
+            storage.setCredential(name, new byte[]{1});
+        }
+        Assert.assertEquals(Arrays.asList("acct/1/access", "acct/1/refresh"), storage.getCredentialNames("acct/1/", null, 100));
+        Assert.assertEquals(Arrays.asList("acct/1/access", "acct/1/refresh", "acct/10/access", "acct/2/refresh"),
+                storage.getCredentialNames("acct/", null, 100));
+
+        // page through the names
+        Assert.assertEquals(Arrays.asList("acct/1/access", "acct/1/refresh"), storage.getCredentialNames("acct/", null, 2));
+        Assert.assertEquals(Arrays.asList("acct/10/access", "acct/2/refresh"), storage.getCredentialNames("acct/", "acct/1/refresh", 2));
+        Assert.assertEquals(0, storage.getCredentialNames("acct/", "acct/2/refresh", 2).size());
+
+        // the index follows writes
+        storage.removeCredential("acct/1/access");
+        storage.setCredential("acct/1/id", new byte[]{1});
+        Assert.assertEquals(Arrays.asList("acct/1/id", "acct/1/refresh"), storage.getCredentialNames("acct/1/", null, 100));
+        Assert.assertEquals(0, storage.getCredentialNames("none/", null, 100).size());
+    }
 }
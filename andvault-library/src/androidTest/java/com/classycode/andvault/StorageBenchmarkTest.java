@@ -0,0 +1,108 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the write and read cost of the {@link VaultStorage} implementations as the vault grows.
+ * Results are written to logcat (tag "StorageBenchmark").
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StorageBenchmarkTest {
+
+    private static final String TAG = "StorageBenchmark";
+
+    private static final int[] VAULT_SIZES = {10, 1000, 10000};
+
+    private static final int VALUE_SIZE = 64;
+
+    private static final int MEASURED_OPERATIONS = 50;
+
+    @Test
+    public void benchmarkSharedPrefsStorage() {
+        Context context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "StorageBenchmarkTest");
+        SharedPrefsStorage storage = new SharedPrefsStorage(context);
+        for (int size : VAULT_SIZES) {
+            storage.reset();
+            run("SharedPrefsStorage", storage, size);
+        }
+        storage.reset();
+    }
+
+    @Test
+    public void benchmarkLogFileStorage() throws IOException {
+        File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "StorageBenchmarkTest.log");
+        file.delete();
+        LogFileStorage storage = new LogFileStorage(file);
+        try {
+            for (int size : VAULT_SIZES) {
+                storage.reset();
+                run("LogFileStorage", storage, size);
+            }
+        } finally {
+            storage.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkSQLiteStorage() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase("StorageBenchmarkTest.db");
+        SQLiteStorage storage = new SQLiteStorage(context, "StorageBenchmarkTest.db");
+        try {
+            for (int size : VAULT_SIZES) {
+                storage.reset();
+                run("SQLiteStorage", storage, size);
+            }
+        } finally {
+            storage.close();
+            context.deleteDatabase("StorageBenchmarkTest.db");
+        }
+    }
+
+    private static void run(String storageName, BatchVaultStorage storage, int size) {
+        final Random random = new Random(size);
+        final Map<String, byte[]> values = new HashMap<String, byte[]>(size * 2);
+        for (int i = 0; i < size; i++) {
+            values.put("credential" + i, randomValue(random));
+        }
+        storage.setCredentials(values);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+            storage.setCredential("credential" + random.nextInt(size), randomValue(random));
+        }
+        final long writeMicros = (System.nanoTime() - start) / 1000 / MEASURED_OPERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+            storage.getCredential("credential" + random.nextInt(size));
+        }
+        final long readMicros = (System.nanoTime() - start) / 1000 / MEASURED_OPERATIONS;
+
+        Log.i(TAG, storageName + " with " + size + " credentials: write " + writeMicros + "us, read " + readMicros + "us");
+    }
+
+    private static byte[] randomValue(Random random) {
+        final byte[] value = new byte[VALUE_SIZE];
+        random.nextBytes(value);
+        return value;
+    }
+}
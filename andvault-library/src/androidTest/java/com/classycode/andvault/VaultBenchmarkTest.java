@@ -0,0 +1,225 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.RequiresDevice;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures the latency percentiles of the vault operations on the device, including the keystore costs
+ * that the JVM benchmarks can't show. Results are logged (tag "VaultBenchmark") and written as JSON to
+ * {@value #RESULTS_FILE} in the external files directory of the test app (or its files directory if
+ * there is no external storage), to be collected from device farm runs.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+@RequiresDevice // requires a lock screen, see VaultTest
+public class VaultBenchmarkTest {
+
+    private static final String TAG = "VaultBenchmark";
+
+    private static final String RESULTS_FILE = "andvault-benchmark.json";
+
+    private static final int[] VAULT_SIZES = {10, 100, 1000};
+
+    private static final int VALUE_SIZE = 64;
+
+    private static final int KEY_GENERATION_SAMPLES = 5;
+
+    private static final int UNWRAP_SAMPLES = 50;
+
+    private static final int OPERATION_SAMPLES = 200;
+
+    private static final int LIST_SAMPLES = 20;
+
+    /**
+     * Results of all benchmarks of the run, written when the class is done.
+     */
+    private static final JSONArray results = new JSONArray();
+
+    private Context context;
+
+    @Before
+    public void setup() {
+        context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "VaultBenchmarkTest");
+    }
+
+    @Test
+    public void benchmarkFirstUseKeyGeneration() throws Exception {
+        final long[] samples = new long[KEY_GENERATION_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            Vault.reset(context);
+            final long start = System.nanoTime();
+            new Vault(context); // generates the keystore key and the vault key
+            samples[i] = System.nanoTime() - start;
+        }
+        Vault.reset(context);
+        addResult("keyGeneration", 0, samples);
+    }
+
+    @Test
+    public void benchmarkKeyUnwrap() throws Exception {
+        Vault.reset(context);
+        // the wrapper the vault uses on this device
+        final KeyWrapper keyWrapper = KeyStoreAesKeyWrapper.isSupported()
+                ? new KeyStoreAesKeyWrapper() : new VaultKeyWrapper(context);
+        final byte[] raw = new byte[Vault.KEY_LENGTH];
+        new SecureRandom().nextBytes(raw);
+        final byte[] wrappedKey = keyWrapper.wrap(new SecretKeySpec(raw, "AES"));
+
+        final long[] samples = new long[UNWRAP_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            final long start = System.nanoTime();
+            final SecretKey key = keyWrapper.unwrap(wrappedKey);
+            samples[i] = System.nanoTime() - start;
+            if (!Arrays.equals(raw, key.getEncoded())) {
+                throw new IllegalStateException("Unwrapped key differs");
+            }
+        }
+        Vault.reset(context);
+        addResult("unwrap", 0, samples);
+    }
+
+    @Test
+    public void benchmarkOperations() throws Exception {
+        for (int size : VAULT_SIZES) {
+            Vault.reset(context);
+            final Vault vault = new Vault(context);
+            final Random random = new Random(size);
+            final Map<String, byte[]> values = new HashMap<String, byte[]>(size * 2);
+            for (int i = 0; i < size; i++) {
+                values.put("credential" + i, randomValue(random));
+            }
+            vault.storeCredentials(values);
+
+            // locked: every read unwraps the vault key through the keystore
+            long[] samples = new long[UNWRAP_SAMPLES];
+            for (int i = 0; i < samples.length; i++) {
+                final String name = "credential" + random.nextInt(size);
+                final long start = System.nanoTime();
+                vault.getCredential(name);
+                samples[i] = System.nanoTime() - start;
+            }
+            addResult("readLocked", size, samples);
+
+            vault.unlock(0);
+            try {
+                samples = new long[OPERATION_SAMPLES];
+                for (int i = 0; i < samples.length; i++) {
+                    final String name = "credential" + random.nextInt(size);
+                    final long start = System.nanoTime();
+                    vault.getCredential(name);
+                    samples[i] = System.nanoTime() - start;
+                }
+                addResult("read", size, samples);
+
+                samples = new long[OPERATION_SAMPLES];
+                for (int i = 0; i < samples.length; i++) {
+                    final String name = "credential" + random.nextInt(size);
+                    final byte[] value = randomValue(random);
+                    final long start = System.nanoTime();
+                    vault.storeCredential(name, value);
+                    samples[i] = System.nanoTime() - start;
+                }
+                addResult("write", size, samples);
+
+                samples = new long[LIST_SAMPLES];
+                for (int i = 0; i < samples.length; i++) {
+                    final long start = System.nanoTime();
+                    vault.getCredentialNames();
+                    samples[i] = System.nanoTime() - start;
+                }
+                addResult("list", size, samples);
+            } finally {
+                vault.lock();
+            }
+        }
+        Vault.reset(context);
+    }
+
+    @AfterClass
+    public static void writeResults() throws JSONException, IOException {
+        final JSONObject device = new JSONObject();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("sdkInt", Build.VERSION.SDK_INT);
+        device.put("release", Build.VERSION.RELEASE);
+
+        final JSONObject report = new JSONObject();
+        report.put("device", device);
+        report.put("hardwareBackedCredentialStorage", Vault.isHardwareBackedCredentialStorage());
+        report.put("keyWrapper", KeyStoreAesKeyWrapper.isSupported() ? "keystore-aes" : "keystore-rsa");
+        report.put("valueSize", VALUE_SIZE);
+        report.put("results", results);
+
+        final Context context = InstrumentationRegistry.getTargetContext();
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            directory = context.getFilesDir();
+        }
+        final File file = new File(directory, RESULTS_FILE);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Log.i(TAG, "Results written to " + file.getAbsolutePath());
+    }
+
+    private static synchronized void addResult(String operation, int vaultSize, long[] samplesNanos) throws JSONException {
+        final long[] sorted = samplesNanos.clone();
+        Arrays.sort(sorted);
+        final JSONObject result = new JSONObject();
+        result.put("operation", operation);
+        result.put("vaultSize", vaultSize);
+        result.put("samples", sorted.length);
+        result.put("p50Micros", percentile(sorted, 50) / 1000);
+        result.put("p90Micros", percentile(sorted, 90) / 1000);
+        result.put("p99Micros", percentile(sorted, 99) / 1000);
+        result.put("maxMicros", sorted[sorted.length - 1] / 1000);
+        results.put(result);
+        Log.i(TAG, result.toString());
+    }
+
+    /**
+     * @return The nearest-rank percentile of the sorted samples
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static byte[] randomValue(Random random) {
+        final byte[] value = new byte[VALUE_SIZE];
+        random.nextBytes(value);
+        return value;
+    }
+}
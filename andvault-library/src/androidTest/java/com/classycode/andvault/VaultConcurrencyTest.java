@@ -0,0 +1,153 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.RequiresDevice;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+@RequiresDevice // requires a lock screen, see VaultTest
+public class VaultConcurrencyTest {
+
+    private static final String TAG = VaultConcurrencyTest.class.getSimpleName();
+
+    private static final int THREADS = 8;
+
+    private Context context;
+
+    @Before
+    public void setup() throws VaultException {
+        context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "VaultConcurrencyTest");
+        Vault.reset(context);
+    }
+
+    @Test
+    public void testConcurrentFirstUseCreatesSingleKey() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                final String name = "cred" + i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        new Vault(context).storeCredential(name, name.getBytes("UTF-8"));
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // all credentials must have been encrypted with the same vault key
+        final Vault vault = new Vault(context);
+        for (int i = 0; i < THREADS; i++) {
+            Assert.assertArrayEquals(("cred" + i).getBytes("UTF-8"), vault.getCredential("cred" + i));
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final Vault vault = new Vault(context);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                final String name = "cred" + (i % 2); // two threads per credential
+                final byte[] value = new byte[64];
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 50; j++) {
+                            vault.storeCredential(name, value);
+                            Assert.assertArrayEquals(value, vault.getCredential(name));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadThroughputScales() throws Exception {
+        final Vault vault = new Vault(context);
+        for (int i = 0; i < THREADS; i++) {
+            vault.storeCredential("cred" + i, new byte[128]);
+        }
+        vault.unlock(0);
+        try {
+            final double single = measureReads(vault, 1);
+            final double multi = measureReads(vault, 4);
+            Log.i(TAG, "Read throughput: 1 thread " + single + " ops/s, 4 threads " + multi + " ops/s");
+            // reads of different credentials must not serialize, allow for slow or single core devices
+            Assert.assertTrue(multi > single * 0.8);
+        } finally {
+            vault.lock();
+        }
+    }
+
+    private static double measureReads(final Vault vault, int threads) throws Exception {
+        final int readsPerThread = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final String name = "cred" + i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int j = 0; j < readsPerThread; j++) {
+                            vault.getCredential(name);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            final long startNanos = System.nanoTime();
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get(120, TimeUnit.SECONDS);
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            return threads * readsPerThread * 1e9 / elapsedNanos;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -13,7 +13,22 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * @author Alex Suzuki, Classy Code GmbH, 2015
@@ -37,6 +52,16 @@ public class VaultTest {
         Assert.assertEquals(0, vault.getCredentialNames().size());
     }
 
+    @Test
+    public void testWarmUpAsync() throws VaultException, UnsupportedEncodingException {
+        byte[] value = "some value".getBytes("UTF-8");
+        Vault vault = Vault.warmUpAsync(context);
+        // waits for the warm-up to complete
+        vault.storeCredential("cred", value);
+        Assert.assertArrayEquals(value, vault.getCredential("cred"));
+        Assert.assertArrayEquals(value, new Vault(context).getCredential("cred"));
+    }
+
     @Test
     public void testInexistentCredentialGetReturnsNull() throws VaultException {
         Vault vault = new Vault(context);
@@ -62,6 +87,257 @@ public class VaultTest {
         Assert.assertFalse(vault.getCredentialNames().contains("cred"));
     }
 
+    @Test
+    public void testStoreCredentialBuffer() throws VaultException, UnsupportedEncodingException {
+        byte[] value = "some value".getBytes("UTF-8");
+        Vault vault = new Vault(context);
+        vault.storeCredential("cred", ByteBuffer.wrap(value));
+        Assert.assertArrayEquals(value, vault.getCredential("cred"));
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(value.length);
+        Assert.assertEquals(value.length, vault.getCredential("cred", dst));
+        dst.flip();
+        byte[] loaded = new byte[value.length];
+        dst.get(loaded);
+        Assert.assertArrayEquals(value, loaded);
+        Assert.assertEquals(-1, vault.getCredential("inexistent", dst));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testGetCredentialBufferTooSmall() throws VaultException, UnsupportedEncodingException {
+        Vault vault = new Vault(context);
+        vault.storeStringCredential("cred", "some value");
+        vault.getCredential("cred", ByteBuffer.allocate(4));
+    }
+
+    @Test
+    public void testPlaintextCache() throws VaultException, UnsupportedEncodingException {
+        Vault vault = new Vault(context);
+        vault.enablePlaintextCache(10, 1024, 60000);
+        vault.storeStringCredential("cred", "some value");
+        Assert.assertEquals("some value", vault.getStringCredential("cred"));
+        Assert.assertEquals("some value", vault.getStringCredential("cred"));
+        PlaintextCacheStats stats = vault.getPlaintextCacheStats();
+        Assert.assertEquals(1, stats.getHitCount());
+        Assert.assertEquals(1, stats.getMissCount());
+        Assert.assertEquals(1, stats.getEntryCount());
+        Assert.assertEquals("some value".length(), stats.getByteCount());
+
+        byte[] value = vault.getCredential("cred");
+        Arrays.fill(value, (byte) 0); // callers get copies
+        Assert.assertEquals("some value", vault.getStringCredential("cred"));
+
+        vault.storeStringCredential("cred", "other value");
+        Assert.assertEquals("other value", vault.getStringCredential("cred"));
+        vault.removeCredential("cred");
+        Assert.assertNull(vault.getCredential("cred"));
+
+        vault.storeStringCredential("cred", "some value");
+        vault.getCredential("cred");
+        Vault.reset(context);
+        Assert.assertEquals(0, vault.getPlaintextCacheStats().getEntryCount());
+    }
+
+    @Test
+    public void testPlaintextCacheEvictsLeastRecentlyUsed() throws VaultException, UnsupportedEncodingException {
+        Vault vault = new Vault(context);
+        vault.enablePlaintextCache(2, 1024, 60000);
+        for (int i = 0; i < 3; i++) {
+            vault.storeStringCredential("cred" + i, "value " + i);
+            vault.getCredential("cred" + i);
+        }
+        PlaintextCacheStats stats = vault.getPlaintextCacheStats();
+        Assert.assertEquals(2, stats.getEntryCount());
+        Assert.assertEquals(1, stats.getEvictionCount());
+    }
+
+    @Test
+    public void testStoreCredentialsUnwrapsKeyOnce() throws VaultException, UnsupportedEncodingException {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < 20; i++) {
+            values.put("cred" + i, ("value " + i).getBytes("UTF-8"));
+        }
+        Vault vault = new Vault(context);
+        long misses = vault.getKeyCacheMissCount();
+        vault.storeCredentials(values);
+        Assert.assertEquals(misses + 1, vault.getKeyCacheMissCount());
+
+        Map<String, byte[]> loaded = vault.getCredentials(values.keySet());
+        Assert.assertEquals(misses + 2, vault.getKeyCacheMissCount());
+        Assert.assertEquals(values.size(), loaded.size());
+        for (String name : values.keySet()) {
+            Assert.assertArrayEquals(values.get(name), loaded.get(name));
+        }
+
+        vault.removeCredentials(Arrays.asList("cred0", "cred1"));
+        Assert.assertEquals(values.size() - 2, vault.getCredentialNames().size());
+    }
+
+    @Test
+    public void testUnlockedVaultUsesCachedKey() throws VaultException, UnsupportedEncodingException {
+        byte[] value = "some value".getBytes("UTF-8");
+        Vault vault = new Vault(context);
+        vault.unlock(0);
+        Assert.assertTrue(vault.isUnlocked());
+        long misses = vault.getKeyCacheMissCount();
+        vault.storeCredential("cred", value);
+        Assert.assertArrayEquals(value, vault.getCredential("cred"));
+        Assert.assertEquals(2, vault.getKeyCacheHitCount());
+        Assert.assertEquals(misses, vault.getKeyCacheMissCount());
+    }
+
+    @Test
+    public void testLockedVaultUnwrapsKey() throws VaultException, UnsupportedEncodingException {
+        byte[] value = "some value".getBytes("UTF-8");
+        Vault vault = new Vault(context);
+        vault.unlock(0);
+        vault.lock();
+        Assert.assertFalse(vault.isUnlocked());
+        vault.storeCredential("cred", value);
+        Assert.assertArrayEquals(value, vault.getCredential("cred"));
+        Assert.assertEquals(0, vault.getKeyCacheHitCount());
+    }
+
+    @Test
+    public void testUnlockedVaultExpiresWhenIdle() throws VaultException, InterruptedException {
+        Vault vault = new Vault(context);
+        vault.unlock(100);
+        Thread.sleep(300);
+        Assert.assertFalse(vault.isUnlocked());
+    }
+
+    @Test
+    public void testResetLocksVault() throws VaultException {
+        Vault vault = new Vault(context);
+        vault.unlock(0);
+        Vault.reset(context);
+        Assert.assertFalse(vault.isUnlocked());
+    }
+
+    @Test
+    public void testMasterKeyLoadedOncePerProcess() throws VaultException, UnsupportedEncodingException {
+        Vault vault = new Vault(context);
+        VaultMetricsRecorder recorder = new VaultMetricsRecorder();
+        VaultMetrics.setListener(recorder);
+        try {
+            vault.storeCredential("cred", "some value".getBytes("UTF-8"));
+            vault.getCredential("cred");
+            new Vault(context).getCredential("cred");
+        } finally {
+            VaultMetrics.setListener(null);
+        }
+        Assert.assertEquals(0, recorder.snapshot().getPhaseStats(VaultMetrics.Phase.KEYSTORE_LOAD).getCount());
+        // the vault is locked: store, get, the second constructor and its get unwrap the vault key each
+        Assert.assertEquals(4, recorder.snapshot().getPhaseStats(VaultMetrics.Phase.KEY_UNWRAP).getCount());
+    }
+
+    @Test
+    public void testKeyStoreAesKeyIsUsedOnApi23() throws VaultException {
+        SharedPrefsStorage storage = new SharedPrefsStorage(context);
+        new Vault(context, storage);
+        Assert.assertEquals(KeyStoreAesKeyWrapper.isSupported(), KeyStoreAesKeyWrapper.isWrappedKey(storage.getKey()));
+    }
+
+    @Test
+    public void testKeyWrappedWithMasterKeyPairIsMigrated() throws Exception {
+        // a vault created before the device was updated to API 23
+        SharedPrefsStorage storage = new SharedPrefsStorage(context);
+        CoreVault legacyVault = new CoreVault(new VaultKeyWrapper(context), storage, new File(context.getFilesDir(), "blobs"));
+        legacyVault.storeStringCredential("cred", "some value");
+        byte[] legacyKey = storage.getKey();
+        Assert.assertFalse(KeyStoreAesKeyWrapper.isWrappedKey(legacyKey));
+
+        Vault vault = new Vault(context, storage);
+        Assert.assertEquals("some value", vault.getStringCredential("cred"));
+        Assert.assertEquals(KeyStoreAesKeyWrapper.isSupported(), !Arrays.equals(legacyKey, storage.getKey()));
+        Assert.assertEquals(KeyStoreAesKeyWrapper.isSupported(), KeyStoreAesKeyWrapper.isWrappedKey(storage.getKey()));
+        Assert.assertEquals("some value", new Vault(context, storage).getStringCredential("cred"));
+    }
+
+    @Test
+    public void testKeyPairIsReloadedWhenUnwrapFails() throws Exception {
+        VaultKeyWrapper keyWrapper = new VaultKeyWrapper(context);
+        int loadCount = VaultKeyWrapper.getMasterKeyLoadCount();
+        try {
+            // longer than the RSA modulus, rejected by the cipher with an IllegalBlockSizeException
+            keyWrapper.unwrap(new byte[1024]);
+            Assert.fail("Invalid wrapped key was unwrapped");
+        } catch (GeneralSecurityException e) {
+            // expected, after one reload and retry
+        }
+        Assert.assertEquals(loadCount + 1, VaultKeyWrapper.getMasterKeyLoadCount());
+
+        // the reloaded keypair works
+        SecretKey key = new SecretKeySpec(new byte[CoreVault.KEY_LENGTH], "AES");
+        Assert.assertArrayEquals(key.getEncoded(), keyWrapper.unwrap(keyWrapper.wrap(key)).getEncoded());
+    }
+
+    @Test
+    public void testCiphersAreReused() throws VaultException, UnsupportedEncodingException {
+        Vault vault = new Vault(context);
+        for (int i = 0; i < 10; i++) {
+            vault.storeCredential("cred" + i, "some value".getBytes("UTF-8"));
+            vault.getCredential("cred" + i);
+        }
+        for (CipherPoolStats stats : Vault.getCipherPoolStats()) {
+            if (stats.getName().equals("vault-data")) {
+                Assert.assertTrue(stats.getAcquisitions() >= 20);
+                Assert.assertTrue(stats.getReuseRate() > 0.5);
+                return;
+            }
+        }
+        Assert.fail("Data cipher pool not found");
+    }
+
+    @Test
+    public void testCredentialStream() throws VaultException, IOException {
+        byte[] value = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(value);
+        Vault vault = new Vault(context);
+        Assert.assertNull(vault.openCredentialInputStream("stream"));
+
+        OutputStream out = vault.openCredentialOutputStream("stream");
+        for (int offset = 0; offset < value.length; offset += 1000) {
+            out.write(value, offset, Math.min(1000, value.length - offset));
+        }
+        Assert.assertNull("value must not be visible before the stream is closed", vault.openCredentialInputStream("stream"));
+        out.close();
+
+        InputStream in = vault.openCredentialInputStream("stream");
+        ByteArrayOutputStream loaded = new ByteArrayOutputStream(value.length);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            loaded.write(buffer, 0, read);
+        }
+        in.close();
+        Assert.assertArrayEquals(value, loaded.toByteArray());
+
+        vault.removeCredentialStream("stream");
+        Assert.assertNull(vault.openCredentialInputStream("stream"));
+    }
+
+    @Test
+    public void testReadCredentialAtOffset() throws VaultException, IOException {
+        byte[] value = new byte[200 * 1024 + 5];
+        new Random(42).nextBytes(value);
+        Vault vault = new Vault(context);
+        OutputStream out = vault.openCredentialOutputStream("stream");
+        out.write(value);
+        out.close();
+
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            int offset = random.nextInt(value.length);
+            ByteBuffer dst = ByteBuffer.allocate(random.nextInt(8192) + 1);
+            int read = vault.readCredential("stream", offset, dst);
+            Assert.assertEquals(Math.min(dst.capacity(), value.length - offset), read);
+            Assert.assertArrayEquals(Arrays.copyOfRange(value, offset, offset + read), Arrays.copyOf(dst.array(), read));
+        }
+        Assert.assertEquals(-1, vault.readCredential("stream", value.length, ByteBuffer.allocate(10)));
+        Assert.assertEquals(-1, vault.readCredential("inexistent", 0, ByteBuffer.allocate(10)));
+    }
+
     @Test
     @RequiresDevice
     @Ignore
@@ -0,0 +1,93 @@
+package com.classycode.andvault;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Emits the vault's trace sections into the system trace using {@link Trace}, so they show up in
+ * systrace and Perfetto captures of the app. Enable it with {@link Vault#setTracingEnabled(boolean)}.
+ * <p/>
+ * Asynchronous sections use the platform's async trace events. Their API is public only since
+ * Android 10, on older versions the hidden methods are looked up reflectively; if neither is
+ * available, asynchronous sections are dropped.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class AndroidVaultTracer implements VaultTracer {
+
+    private static final String TAG = AndroidVaultTracer.class.getSimpleName();
+
+    static final AndroidVaultTracer INSTANCE = new AndroidVaultTracer();
+
+    /**
+     * Trace.TRACE_TAG_APP, hidden before Android 10.
+     */
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    /**
+     * Trace.beginAsyncSection(String, int) on Android 10+, otherwise Trace.asyncTraceBegin(long, String, int).
+     */
+    private final Method asyncBegin;
+
+    private final Method asyncEnd;
+
+    private final boolean publicAsyncApi;
+
+    private AndroidVaultTracer() {
+        Method begin = null;
+        Method end = null;
+        boolean publicApi = false;
+        try {
+            begin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+            end = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            publicApi = true;
+        } catch (NoSuchMethodException e) {
+            try {
+                begin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                end = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            } catch (NoSuchMethodException e2) {
+                Log.w(TAG, "Async trace sections are not supported on this device");
+            }
+        }
+        asyncBegin = begin;
+        asyncEnd = end;
+        publicAsyncApi = publicApi;
+    }
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        invoke(asyncBegin, name, cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        invoke(asyncEnd, name, cookie);
+    }
+
+    private void invoke(Method method, String name, int cookie) {
+        if (method == null) {
+            return;
+        }
+        try {
+            if (publicAsyncApi) {
+                method.invoke(null, name, cookie);
+            } else {
+                method.invoke(null, TRACE_TAG_APP, name, cookie);
+            }
+        } catch (Exception e) {
+            // tracing must never break the vault, the section is dropped
+        }
+    }
+}
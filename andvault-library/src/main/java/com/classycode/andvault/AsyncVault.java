@@ -0,0 +1,589 @@
+package com.classycode.andvault;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous access to a {@link Vault}. Operations run on a bounded background executor owned by
+ * the library, so keystore and storage I/O never happens on the calling (e.g. UI) thread. Results are
+ * returned as {@link Future}s and, optionally, delivered to a {@link VaultCallback} on the callback
+ * executor (the main thread by default).
+ * <p/>
+ * Reads run in parallel. Concurrent reads of the same credential are coalesced into a single vault
+ * access. Writes are applied one at a time in submission order, and a read of a credential that has
+ * a pending write sees the written value.
+ * <p/>
+ * Cancelling a {@link Future} suppresses its callback. A coalesced read is only cancelled once all
+ * of its callers have cancelled.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class AsyncVault {
+
+    /**
+     * Converts the raw credential value of a (shared) read for one caller.
+     */
+    private interface Conversion<T> {
+
+        T convert(byte[] value) throws VaultException;
+    }
+
+    private static final Conversion<byte[]> BYTES = new Conversion<byte[]>() {
+        @Override
+        public byte[] convert(byte[] value) {
+            return value == null ? null : value.clone();
+        }
+    };
+
+    private static final Conversion<String> UTF8_STRING = new Conversion<String>() {
+        @Override
+        public String convert(byte[] value) {
+            try {
+                return value == null ? null : new String(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException(e); // should never happen
+            }
+        }
+    };
+
+    private final Vault vault;
+
+    private final Executor callbackExecutor;
+
+    private final ExecutorService readExecutor;
+
+    private final ExecutorService writeExecutor;
+
+    private final Object lock = new Object();
+
+    /**
+     * Reads in progress by credential name, guarded by {@link #lock}.
+     */
+    private final Map<String, SharedRead> inFlightReads = new HashMap<String, SharedRead>();
+
+    /**
+     * Number of submitted, but not yet completed writes by credential name, guarded by {@link #lock}.
+     */
+    private final Map<String, Integer> pendingWrites = new HashMap<String, Integer>();
+
+    /**
+     * Create an asynchronous vault delivering callbacks on the Android main thread.
+     *
+     * @param vault The vault to access
+     */
+    public AsyncVault(Vault vault) {
+        this(vault, MainThreadExecutor.get());
+    }
+
+    /**
+     * Create an asynchronous vault delivering callbacks on the given executor.
+     *
+     * @param vault            The vault to access
+     * @param callbackExecutor The executor to run callbacks on
+     */
+    public AsyncVault(Vault vault, Executor callbackExecutor) {
+        this.vault = vault;
+        this.callbackExecutor = callbackExecutor;
+        this.readExecutor = VaultExecutors.io();
+        this.writeExecutor = VaultExecutors.serial();
+    }
+
+    /**
+     * @return The underlying (blocking) vault.
+     */
+    public Vault getVault() {
+        return vault;
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#getCredential(String)}.
+     *
+     * @param name     The credential's name (must not be null)
+     * @param callback The callback receiving the value, may be null
+     * @return The future value
+     */
+    public Future<byte[]> getCredential(String name, VaultCallback<byte[]> callback) {
+        return read(name, BYTES, callback);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#getStringCredential(String)}.
+     *
+     * @param name     The credential's name (must not be null)
+     * @param callback The callback receiving the value, may be null
+     * @return The future value
+     */
+    public Future<String> getStringCredential(String name, VaultCallback<String> callback) {
+        return read(name, UTF8_STRING, callback);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#getCredentials(Collection)}.
+     *
+     * @param names    The credentials' names (must not be null)
+     * @param callback The callback receiving the values, may be null
+     * @return The future values
+     */
+    public Future<Map<String, byte[]>> getCredentials(final Collection<String> names, VaultCallback<Map<String, byte[]>> callback) {
+        final List<String> nameList = new ArrayList<String>(names);
+        return submit(new Callable<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> call() throws VaultException {
+                return vault.getCredentials(nameList);
+            }
+        }, callback, hasPendingWrites(nameList) ? writeExecutor : readExecutor);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#getCredentialNames()}.
+     *
+     * @param callback The callback receiving the names, may be null
+     * @return The future names
+     */
+    public Future<List<String>> getCredentialNames(VaultCallback<List<String>> callback) {
+        final boolean pending;
+        synchronized (lock) {
+            pending = !pendingWrites.isEmpty();
+        }
+        return submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return vault.getCredentialNames();
+            }
+        }, callback, pending ? writeExecutor : readExecutor);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#storeCredential(String, byte[])}.
+     *
+     * @param name     The credential's name (must not be null)
+     * @param value    The credential's value (must not be null)
+     * @param callback The callback notified on completion, may be null
+     * @return The future completion
+     */
+    public Future<Void> storeCredential(final String name, final byte[] value, VaultCallback<Void> callback) {
+        return write(Collections.singletonList(name), new Callable<Void>() {
+            @Override
+            public Void call() throws VaultException {
+                vault.storeCredential(name, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#storeStringCredential(String, String)}.
+     *
+     * @param name     The credential's name (must not be null)
+     * @param value    The credential's value (must not be null)
+     * @param callback The callback notified on completion, may be null
+     * @return The future completion
+     */
+    public Future<Void> storeStringCredential(final String name, final String value, VaultCallback<Void> callback) {
+        return write(Collections.singletonList(name), new Callable<Void>() {
+            @Override
+            public Void call() throws VaultException {
+                vault.storeStringCredential(name, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#storeCredentials(Map)}.
+     *
+     * @param credentials The credentials' values by name (names and values must not be null)
+     * @param callback    The callback notified on completion, may be null
+     * @return The future completion
+     */
+    public Future<Void> storeCredentials(Map<String, byte[]> credentials, VaultCallback<Void> callback) {
+        final Map<String, byte[]> values = new HashMap<String, byte[]>(credentials);
+        return write(values.keySet(), new Callable<Void>() {
+            @Override
+            public Void call() throws VaultException {
+                vault.storeCredentials(values);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#removeCredential(String)}.
+     *
+     * @param name     The credential's name
+     * @param callback The callback notified on completion, may be null
+     * @return The future completion
+     */
+    public Future<Void> removeCredential(final String name, VaultCallback<Void> callback) {
+        return write(Collections.singletonList(name), new Callable<Void>() {
+            @Override
+            public Void call() {
+                vault.removeCredential(name);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous variant of {@link Vault#removeCredentials(Collection)}.
+     *
+     * @param names    The credentials' names
+     * @param callback The callback notified on completion, may be null
+     * @return The future completion
+     */
+    public Future<Void> removeCredentials(Collection<String> names, VaultCallback<Void> callback) {
+        final List<String> nameList = new ArrayList<String>(names);
+        return write(nameList, new Callable<Void>() {
+            @Override
+            public Void call() throws VaultException {
+                vault.removeCredentials(nameList);
+                return null;
+            }
+        }, callback);
+    }
+
+    private <T> Future<T> read(String name, Conversion<T> conversion, VaultCallback<T> callback) {
+        final ReadHandle<T> handle = new ReadHandle<T>(conversion, callback);
+        synchronized (lock) {
+            if (pendingWrites.containsKey(name)) {
+                // queue behind the pending write so the caller sees its own writes, don't share
+                final SharedRead read = new SharedRead(name, false);
+                read.subscribe(handle);
+                execute(read, writeExecutor);
+                return handle;
+            }
+            SharedRead read = inFlightReads.get(name);
+            if (read == null || !read.subscribe(handle)) {
+                read = new SharedRead(name, true);
+                read.subscribe(handle);
+                inFlightReads.put(name, read);
+                execute(read, readExecutor);
+            }
+        }
+        return handle;
+    }
+
+    private <T> Future<T> write(final Collection<String> names, Callable<T> operation, VaultCallback<T> callback) {
+        final CallbackTask<T> task = new CallbackTask<T>(operation, callback) {
+            @Override
+            protected void done() {
+                synchronized (lock) {
+                    for (String name : names) {
+                        final int count = pendingWrites.get(name);
+                        if (count == 1) {
+                            pendingWrites.remove(name);
+                        } else {
+                            pendingWrites.put(name, count - 1);
+                        }
+                    }
+                }
+                super.done();
+            }
+        };
+        synchronized (lock) {
+            for (String name : names) {
+                final Integer count = pendingWrites.get(name);
+                pendingWrites.put(name, count == null ? 1 : count + 1);
+                // reads already in progress may return the old value, later reads must not join them
+                inFlightReads.remove(name);
+            }
+            execute(task, writeExecutor);
+        }
+        return task;
+    }
+
+    private <T> Future<T> submit(Callable<T> operation, VaultCallback<T> callback, ExecutorService executor) {
+        final CallbackTask<T> task = new CallbackTask<T>(operation, callback);
+        execute(task, executor);
+        return task;
+    }
+
+    private boolean hasPendingWrites(Collection<String> names) {
+        synchronized (lock) {
+            for (String name : names) {
+                if (pendingWrites.containsKey(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static void execute(RejectableTask task, ExecutorService executor) {
+        try {
+            executor.execute((Runnable) task);
+        } catch (RejectedExecutionException e) {
+            task.reject(new VaultException("Too many pending vault operations", e));
+        }
+    }
+
+    private static VaultException toVaultException(Throwable t) {
+        if (t instanceof VaultException) {
+            return (VaultException) t;
+        } else {
+            return new VaultException("Vault operation failed", t);
+        }
+    }
+
+    private void deliver(final VaultCallback<?> callback, final Object result, final VaultException error) {
+        if (callback == null) {
+            return;
+        }
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                if (error != null) {
+                    callback.onError(error);
+                } else {
+                    ((VaultCallback<Object>) callback).onSuccess(result);
+                }
+            }
+        });
+    }
+
+    private interface RejectableTask {
+
+        void reject(VaultException e);
+    }
+
+    /**
+     * A single vault operation, delivering its outcome to the callback when done.
+     */
+    private class CallbackTask<T> extends FutureTask<T> implements RejectableTask {
+
+        private final VaultCallback<T> callback;
+
+        private final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_ASYNC_OPERATION);
+
+        CallbackTask(Callable<T> operation, VaultCallback<T> callback) {
+            super(operation);
+            this.callback = callback;
+        }
+
+        @Override
+        public void reject(VaultException e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            VaultTracing.endAsync(VaultTracing.SECTION_ASYNC_OPERATION, traceCookie);
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                deliver(callback, get(), null);
+            } catch (ExecutionException e) {
+                deliver(callback, null, toVaultException(e.getCause()));
+            } catch (InterruptedException e) {
+                // can't happen, the task is done
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A read of one credential, shared by all callers asking for it while it is in progress.
+     */
+    private final class SharedRead extends FutureTask<byte[]> implements RejectableTask {
+
+        private final String name;
+
+        private final boolean shared;
+
+        private final List<ReadHandle<?>> handles = new ArrayList<ReadHandle<?>>(1);
+
+        private final int traceCookie = VaultTracing.beginAsync(VaultTracing.SECTION_ASYNC_OPERATION);
+
+        /**
+         * Set once no more callers may subscribe, because the read completed or is being cancelled.
+         */
+        private boolean closed;
+
+        SharedRead(final String name, boolean shared) {
+            super(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws VaultException {
+                    return vault.getCredential(name);
+                }
+            });
+            this.name = name;
+            this.shared = shared;
+        }
+
+        synchronized boolean subscribe(ReadHandle<?> handle) {
+            if (closed) {
+                return false;
+            }
+            handles.add(handle);
+            handle.read = this;
+            return true;
+        }
+
+        void unsubscribe(ReadHandle<?> handle) {
+            final boolean cancel;
+            synchronized (this) {
+                handles.remove(handle);
+                cancel = handles.isEmpty() && !closed;
+                if (cancel) {
+                    closed = true;
+                }
+            }
+            if (cancel) {
+                cancel(true);
+            }
+        }
+
+        @Override
+        public void reject(VaultException e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            VaultTracing.endAsync(VaultTracing.SECTION_ASYNC_OPERATION, traceCookie);
+            if (shared) {
+                synchronized (lock) {
+                    if (inFlightReads.get(name) == this) {
+                        inFlightReads.remove(name);
+                    }
+                }
+            }
+            final List<ReadHandle<?>> subscribers;
+            synchronized (this) {
+                closed = true;
+                subscribers = new ArrayList<ReadHandle<?>>(handles);
+            }
+            if (isCancelled()) {
+                return; // all handles were cancelled already
+            }
+            byte[] value = null;
+            VaultException error = null;
+            try {
+                value = get();
+            } catch (ExecutionException e) {
+                error = toVaultException(e.getCause());
+            } catch (InterruptedException e) {
+                // can't happen, the task is done
+                Thread.currentThread().interrupt();
+            }
+            for (ReadHandle<?> handle : subscribers) {
+                handle.complete(value, error);
+            }
+        }
+    }
+
+    /**
+     * One caller's view of a {@link SharedRead}.
+     */
+    private final class ReadHandle<T> implements Future<T> {
+
+        private final Conversion<T> conversion;
+
+        private final VaultCallback<T> callback;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private SharedRead read;
+
+        private T result;
+
+        private VaultException error;
+
+        private boolean done;
+
+        private boolean cancelled;
+
+        ReadHandle(Conversion<T> conversion, VaultCallback<T> callback) {
+            this.conversion = conversion;
+            this.callback = callback;
+        }
+
+        void complete(byte[] value, VaultException readError) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                if (readError != null) {
+                    error = readError;
+                } else {
+                    try {
+                        result = conversion.convert(value);
+                    } catch (VaultException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        error = toVaultException(e);
+                    }
+                }
+            }
+            latch.countDown();
+            deliver(callback, result, error);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                cancelled = true;
+            }
+            latch.countDown();
+            read.unsubscribe(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getResult();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private synchronized T getResult() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+}
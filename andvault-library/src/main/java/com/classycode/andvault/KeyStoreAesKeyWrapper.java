@@ -0,0 +1,207 @@
+package com.classycode.andvault;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.UnrecoverableKeyException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Protects the vault key with an AES key held in the Android KeyStore (API 23+). Compared to
+ * {@link VaultKeyWrapper}, which wraps the vault key with an RSA keypair, generating the keystore key
+ * and unwrapping the vault key are much faster: there is no RSA key generation and no private key
+ * operation.
+ * <p/>
+ * The vault key is encrypted with AES/GCM, the wrapped key consists of a format byte, the random IV
+ * and the ciphertext including the authentication tag. The keystore key never leaves the keystore,
+ * the process-wide reference to it is loaded once and shared.
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class KeyStoreAesKeyWrapper implements KeyWrapper {
+
+    private static final String TAG = KeyStoreAesKeyWrapper.class.getSimpleName();
+
+    static final String KEYSTORE_KEY_ALIAS = "andvault-aes";
+
+    private static final String CIPHER_AES = "AES";
+
+    private static final byte FORMAT_AES_GCM = 1;
+
+    /**
+     * Length of a wrapped 256 bit vault key.
+     */
+    private static final int WRAPPED_KEY_LENGTH = 1 + GcmParameters.IV_LENGTH + CoreVault.KEY_LENGTH + GcmParameters.TAG_LENGTH;
+
+    private static final CipherPool CIPHERS = CipherPool.create("keystore-aes-key-wrap", GcmParameters.TRANSFORMATION);
+
+    // guarded by the class
+
+    private static SecretKey keyStoreKey;
+
+    /**
+     * Create a wrapper using the AES key in the Android KeyStore. If it does not exist, it is generated.
+     *
+     * @throws GeneralSecurityException An error occurred while creating or loading the key in the Android KeyStore
+     */
+    public KeyStoreAesKeyWrapper() throws GeneralSecurityException {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_KEY_WRAPPER_INIT);
+        try {
+            getKeyStoreKey();
+        } finally {
+            VaultTracing.end(tracer);
+        }
+    }
+
+    /**
+     * @return True if the device supports AES keys in the Android KeyStore.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * @param wrappedKey A wrapped vault key
+     * @return True if the key was wrapped by this class, rather than e.g. by {@link VaultKeyWrapper}
+     */
+    public static boolean isWrappedKey(byte[] wrappedKey) {
+        // RSA wrapped keys are as long as the RSA modulus, i.e. 256 bytes or more
+        return wrappedKey.length == WRAPPED_KEY_LENGTH && wrappedKey[0] == FORMAT_AES_GCM;
+    }
+
+    /**
+     * @return True if the AES key is held in secure hardware (e.g. a TEE), false if it is only protected
+     * by software or its properties can't be read. The key is generated if it does not exist yet.
+     */
+    public static boolean isInsideSecureHardware() {
+        try {
+            final SecretKey key = getKeyStoreKey();
+            final SecretKeyFactory factory = SecretKeyFactory.getInstance(key.getAlgorithm(), "AndroidKeyStore");
+            return ((KeyInfo) factory.getKeySpec(key, KeyInfo.class)).isInsideSecureHardware();
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Failed to read properties of the AES key in AndroidKeyStore", e);
+            return false;
+        }
+    }
+
+    /**
+     * Delete the AES key from the Android KeyStore, effectively throwing away the key to the vault.
+     */
+    public static synchronized void deleteKey() {
+        keyStoreKey = null;
+        try {
+            loadKeyStore().deleteEntry(KEYSTORE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Failed to delete entry in AndroidKeyStore, ignoring", e);
+        }
+    }
+
+    @Override
+    public byte[] wrap(SecretKey key) throws GeneralSecurityException {
+        final byte[] raw = key.getEncoded();
+        final Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, getKeyStoreKey());
+        } catch (InvalidKeyException e) {
+            invalidate();
+            cipher.init(Cipher.ENCRYPT_MODE, getKeyStoreKey());
+        }
+        // the keystore generates the IV, callers may not provide one
+        final byte[] iv = cipher.getIV();
+        final byte[] wrappedKey = new byte[1 + iv.length + cipher.getOutputSize(raw.length)];
+        wrappedKey[0] = FORMAT_AES_GCM;
+        System.arraycopy(iv, 0, wrappedKey, 1, iv.length);
+        cipher.doFinal(raw, 0, raw.length, wrappedKey, 1 + iv.length);
+        return wrappedKey;
+    }
+
+    @Override
+    public SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+        if (!isWrappedKey(wrappedKey)) {
+            throw new InvalidKeyException("Not a key wrapped with the keystore AES key");
+        }
+        final GCMParameterSpec spec = new GCMParameterSpec(GcmParameters.TAG_LENGTH * 8, wrappedKey, 1, GcmParameters.IV_LENGTH);
+        final Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, getKeyStoreKey(), spec);
+        } catch (InvalidKeyException e) {
+            // the cached key reference may be stale, reload it once and retry
+            invalidate();
+            cipher.init(Cipher.DECRYPT_MODE, getKeyStoreKey(), spec);
+        }
+        final byte[] raw = cipher.doFinal(wrappedKey, 1 + GcmParameters.IV_LENGTH, wrappedKey.length - 1 - GcmParameters.IV_LENGTH);
+        return new SecretKeySpec(raw, CIPHER_AES);
+    }
+
+    private static synchronized void invalidate() {
+        keyStoreKey = null;
+    }
+
+    /**
+     * @return The AES key in the keystore, generated if it does not exist yet
+     */
+    private static synchronized SecretKey getKeyStoreKey() throws GeneralSecurityException {
+        if (keyStoreKey == null) {
+            final long start = VaultMetrics.start();
+            final KeyStore store = loadKeyStore();
+            if (!store.containsAlias(KEYSTORE_KEY_ALIAS)) {
+                generateKey();
+            }
+            final KeyStore.Entry entry = store.getEntry(KEYSTORE_KEY_ALIAS, null);
+            if (!(entry instanceof KeyStore.SecretKeyEntry)) {
+                throw new UnrecoverableKeyException("Vault keystore key is not accessible");
+            }
+            keyStoreKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+            VaultMetrics.record(VaultMetrics.Phase.KEYSTORE_LOAD, start, 0);
+        }
+        return keyStoreKey;
+    }
+
+    private static void generateKey() throws GeneralSecurityException {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_GENERATE_KEYSTORE_KEY);
+        final long start = VaultMetrics.start();
+        try {
+            final KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            generator.init(new KeyGenParameterSpec.Builder(KEYSTORE_KEY_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
+                    .build());
+            generator.generateKey();
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.KEY_GENERATION, start, 0);
+            VaultTracing.end(tracer);
+        }
+    }
+
+    private static KeyStore loadKeyStore() throws KeyStoreException {
+        final KeyStore store = KeyStore.getInstance("AndroidKeyStore");
+        try {
+            store.load(null);
+        } catch (IOException e) {
+            throw new KeyStoreException("Error loading AndroidKeyStore", e);
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException("Error loading AndroidKeyStore", e);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,36 @@
+package com.classycode.andvault;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the Android main thread.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class MainThreadExecutor implements Executor {
+
+    private static MainThreadExecutor instance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private MainThreadExecutor() {
+    }
+
+    /**
+     * @return The shared executor.
+     */
+    static synchronized MainThreadExecutor get() {
+        if (instance == null) {
+            instance = new MainThreadExecutor();
+        }
+        return instance;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+}
@@ -0,0 +1,171 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.security.KeyPairGeneratorSpec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Process-wide holder for the vault master keypair in the AndroidKeyStore.
+ * <p/>
+ * Loading the keystore, looking up the alias and parsing the certificate is done once, the
+ * resulting {@link KeyPair} is shared by all {@link VaultKeyWrapper} instances. Only a reference to
+ * the private key is kept, the key material itself never leaves the keystore.
+ * <p/>
+ * The cached keypair is dropped with {@link #invalidate()} when a keystore operation indicates that
+ * the key became unusable (e.g. because the device lockscreen changed), and reloaded on next use.
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+final class MasterKeyHolder {
+
+    private static final String TAG = MasterKeyHolder.class.getSimpleName();
+
+    static final String KEYSTORE_KEY_ALIAS = "andvault";
+
+    private static KeyStore keyStore;
+
+    private static KeyPair keyPair;
+
+    private static volatile long lastLoadTimeNanos = -1;
+
+    private static volatile int loadCount;
+
+    private MasterKeyHolder() {
+    }
+
+    /**
+     * Return the vault master keypair, loading it from the keystore if it is not cached yet.
+     * If no pair exists, it is generated.
+     *
+     * @param context The application context
+     * @return The master keypair. The private key is a reference to the key in the keystore.
+     * @throws GeneralSecurityException An error occurred while creating or loading the keypair in the Android KeyStore
+     */
+    static synchronized KeyPair getKeyPair(Context context) throws GeneralSecurityException {
+        if (keyPair == null) {
+            final long start = System.nanoTime();
+            final KeyStore store = getKeyStore();
+            if (!store.containsAlias(KEYSTORE_KEY_ALIAS)) {
+                final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_GENERATE_KEY_PAIR);
+                final long generationStart = VaultMetrics.start();
+                try {
+                    generateKeyPair(context);
+                } finally {
+                    VaultTracing.end(tracer);
+                }
+                VaultMetrics.record(VaultMetrics.Phase.KEY_GENERATION, generationStart, 0);
+            }
+
+            // Even if we just generated the key, always read it back to ensure can read it successfully.
+            final KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) store.getEntry(KEYSTORE_KEY_ALIAS, null);
+            if (entry == null) {
+                throw new UnrecoverableKeyException("Vault master key is not accessible");
+            }
+            keyPair = new KeyPair(entry.getCertificate().getPublicKey(), entry.getPrivateKey());
+            lastLoadTimeNanos = System.nanoTime() - start;
+            loadCount++;
+            VaultMetrics.record(VaultMetrics.Phase.KEYSTORE_LOAD, start, 0);
+        }
+        return keyPair;
+    }
+
+    /**
+     * Drop the cached keypair and keystore handle, they are reloaded on next use.
+     */
+    static synchronized void invalidate() {
+        keyPair = null;
+        keyStore = null;
+    }
+
+    /**
+     * Delete the vault master keypair from the keystore and drop the cached copy.
+     */
+    static synchronized void deleteKey() {
+        invalidate();
+        try {
+            getKeyStore().deleteEntry(KEYSTORE_KEY_ALIAS);
+        } catch (KeyStoreException e) {
+            // not sure if it's wise to ignore this, but on the other hand, there isn't that much we can do.
+            Log.w(TAG, "Failed to delete entry in AndroidKeyStore, ignoring", e);
+        }
+    }
+
+    /**
+     * @return The time it took to load the master keypair the last time, in nanoseconds, or -1 if it was never loaded.
+     */
+    static long getLastLoadTimeNanos() {
+        return lastLoadTimeNanos;
+    }
+
+    /**
+     * @return How many times the master keypair was loaded from the keystore in this process.
+     */
+    static int getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * Get a reference to the AndroidKeyStore. We assume this always works, as we require Android 4.3+
+     *
+     * @return The Android KeyStore
+     * @throws IllegalStateException If against all odds we can not load the keystore
+     */
+    private static KeyStore getKeyStore() {
+        if (keyStore == null) {
+            try {
+                final KeyStore store = KeyStore.getInstance("AndroidKeyStore");
+                store.load(null);
+                keyStore = store;
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
+            } catch (CertificateException e) {
+                throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
+            }
+        }
+        return keyStore;
+    }
+
+    /**
+     * Generate the vault master keypair.
+     *
+     * @param context
+     * @throws GeneralSecurityException
+     */
+    private static void generateKeyPair(Context context) throws GeneralSecurityException {
+        final Calendar start = new GregorianCalendar();
+        final Calendar end = new GregorianCalendar();
+        end.add(Calendar.YEAR, 100);
+        final KeyPairGeneratorSpec.Builder builder = new KeyPairGeneratorSpec.Builder(context)
+                .setAlias(KEYSTORE_KEY_ALIAS)
+                .setSubject(new X500Principal("CN=" + KEYSTORE_KEY_ALIAS))
+                .setSerialNumber(BigInteger.ONE)
+                .setStartDate(start.getTime())
+                .setEndDate(end.getTime())
+                .setEncryptionRequired();
+        final KeyPairGeneratorSpec spec = builder.build();
+        final KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", "AndroidKeyStore");
+        gen.initialize(spec);
+        gen.generateKeyPair();
+    }
+}
@@ -0,0 +1,382 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link VaultStorage} implementation backed by an SQLite database. Encrypted values are stored as
+ * BLOBs in a table with the credential name as primary key, so single credentials are looked up
+ * through the index without loading the rest of the vault into memory. Names are listed by prefix
+ * using range queries on the same index.
+ * <p/>
+ * The database runs in write-ahead logging mode, so reads run concurrently with writes. Writes use
+ * precompiled statements, batch writes run in a single transaction.
+ * <p/>
+ * Thread safe.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class SQLiteStorage implements BatchVaultStorage, IndexedVaultStorage, MetadataVaultStorage, Closeable {
+
+    private static final String DATABASE_NAME = "vault.db";
+
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_CREDENTIALS = "credentials";
+
+    private static final String TABLE_META = "meta";
+
+    private static final String META_KEY = "key";
+
+    private static final String META_PREFIX_METADATA = "metadata_";
+
+    private static final String SQL_SELECT_CREDENTIAL = "SELECT value FROM " + TABLE_CREDENTIALS + " WHERE name = ?";
+
+    private static final String SQL_SELECT_CREDENTIAL_NAMES = "SELECT name FROM " + TABLE_CREDENTIALS;
+
+    private static final String SQL_INSERT_CREDENTIAL = "INSERT OR REPLACE INTO " + TABLE_CREDENTIALS + " (name, value) VALUES (?, ?)";
+
+    private static final String SQL_DELETE_CREDENTIAL = "DELETE FROM " + TABLE_CREDENTIALS + " WHERE name = ?";
+
+    private static final String SQL_SELECT_META = "SELECT value FROM " + TABLE_META + " WHERE name = ?";
+
+    private static final String SQL_INSERT_META = "INSERT OR REPLACE INTO " + TABLE_META + " (name, value) VALUES (?, ?)";
+
+    private static final String SQL_DELETE_META = "DELETE FROM " + TABLE_META + " WHERE name = ?";
+
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.enableWriteAheadLogging();
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CREDENTIALS + " (name TEXT PRIMARY KEY NOT NULL, value BLOB NOT NULL)");
+            db.execSQL("CREATE TABLE " + TABLE_META + " (name TEXT PRIMARY KEY NOT NULL, value BLOB NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // only one version so far
+        }
+    }
+
+    private final DatabaseHelper helper;
+
+    // precompiled write statements, guarded by this
+    private SQLiteStatement insertCredentialStatement;
+
+    private SQLiteStatement deleteCredentialStatement;
+
+    /**
+     * Open the vault database with the default name, creating it if necessary.
+     *
+     * @param context The context
+     */
+    public SQLiteStorage(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Open the vault database with the given name, creating it if necessary.
+     *
+     * @param context      The context
+     * @param databaseName The database name, see {@link Context#getDatabasePath(String)}
+     */
+    public SQLiteStorage(Context context, String databaseName) {
+        helper = new DatabaseHelper(context, databaseName);
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return helper.getWritableDatabase();
+    }
+
+    private static void checkCredentialName(String name) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Credential name must not be null or empty");
+        }
+    }
+
+    @Override
+    public List<String> getCredentialNames() {
+        final Cursor cursor = getDatabase().rawQuery(SQL_SELECT_CREDENTIAL_NAMES, null);
+        try {
+            final List<String> names = new ArrayList<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public List<String> getCredentialNames(String prefix, String startAfter, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        final List<String> args = new ArrayList<String>(2);
+        final StringBuilder sql = new StringBuilder(SQL_SELECT_CREDENTIAL_NAMES);
+        if (startAfter != null && startAfter.compareTo(prefix) >= 0) {
+            sql.append(" WHERE name > ?");
+            args.add(startAfter);
+        } else {
+            sql.append(" WHERE name >= ?");
+            args.add(prefix);
+        }
+        final String upperBound = getPrefixUpperBound(prefix);
+        if (upperBound != null) {
+            sql.append(" AND name < ?");
+            args.add(upperBound);
+        }
+        sql.append(" ORDER BY name LIMIT ").append(limit);
+        final Cursor cursor = getDatabase().rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            final List<String> names = new ArrayList<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                final String name = cursor.getString(0);
+                if (!name.startsWith(prefix)) {
+                    break; // only without an upper bound
+                }
+                names.add(name);
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The smallest string greater than all strings starting with the prefix, or null if there is
+     * no simple one (the names are then checked for the prefix while reading)
+     */
+    private static String getPrefixUpperBound(String prefix) {
+        if (prefix.length() == 0) {
+            return null;
+        }
+        final char last = prefix.charAt(prefix.length() - 1);
+        if (last >= Character.MIN_SURROGATE - 1) {
+            return null; // incrementing would produce a surrogate or overflow, and SQLite orders by UTF-8 bytes
+        }
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+
+    @Override
+    public byte[] getCredential(String name) {
+        // SQLiteDatabase keeps prepared statements in a per-connection cache, so the query is only compiled once
+        return queryBlob(SQL_SELECT_CREDENTIAL, name);
+    }
+
+    @Override
+    public Map<String, byte[]> getCredentials(Collection<String> names) {
+        final Map<String, byte[]> credentials = new LinkedHashMap<String, byte[]>(names.size() * 2);
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive(); // read all values from the same snapshot
+        try {
+            for (String name : names) {
+                final byte[] value = queryBlob(SQL_SELECT_CREDENTIAL, name);
+                if (value != null) {
+                    credentials.put(name, value);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return credentials;
+    }
+
+    @Override
+    public synchronized void setCredential(String name, byte[] value) {
+        checkCredentialName(name);
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+        final long start = VaultMetrics.start();
+        try {
+            insertCredential(name, value); // committed on its own
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, value.length);
+            VaultTracing.end(tracer);
+        }
+    }
+
+    @Override
+    public synchronized boolean setCredentials(Map<String, byte[]> values) {
+        for (String name : values.keySet()) {
+            checkCredentialName(name);
+        }
+        final SQLiteDatabase db = getDatabase();
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+        final long start = VaultMetrics.start();
+        try {
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                    insertCredential(entry.getKey(), entry.getValue());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, 0);
+            VaultTracing.end(tracer);
+        }
+    }
+
+    @Override
+    public synchronized void removeCredential(String name) {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+        final long start = VaultMetrics.start();
+        try {
+            deleteCredential(name);
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, 0);
+            VaultTracing.end(tracer);
+        }
+    }
+
+    @Override
+    public synchronized boolean removeCredentials(Collection<String> names) {
+        final SQLiteDatabase db = getDatabase();
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+        final long start = VaultMetrics.start();
+        try {
+            db.beginTransaction();
+            try {
+                for (String name : names) {
+                    deleteCredential(name);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, 0);
+            VaultTracing.end(tracer);
+        }
+    }
+
+    @Override
+    public synchronized void setKey(byte[] key) {
+        final SQLiteStatement statement = getDatabase().compileStatement(SQL_INSERT_META);
+        try {
+            statement.bindString(1, META_KEY);
+            statement.bindBlob(2, key);
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public byte[] getKey() {
+        return queryBlob(SQL_SELECT_META, META_KEY);
+    }
+
+    @Override
+    public byte[] getMetadata(String name) {
+        return queryBlob(SQL_SELECT_META, META_PREFIX_METADATA + name);
+    }
+
+    @Override
+    public synchronized boolean setMetadata(String name, byte[] value) {
+        final SQLiteStatement statement = getDatabase().compileStatement(value == null ? SQL_DELETE_META : SQL_INSERT_META);
+        try {
+            statement.bindString(1, META_PREFIX_METADATA + name);
+            if (value == null) {
+                statement.executeUpdateDelete();
+            } else {
+                statement.bindBlob(2, value);
+                statement.executeInsert();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_CREDENTIALS, null, null);
+            db.delete(TABLE_META, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Close the database. It is reopened on the next access.
+     */
+    @Override
+    public synchronized void close() {
+        if (insertCredentialStatement != null) {
+            insertCredentialStatement.close();
+            insertCredentialStatement = null;
+        }
+        if (deleteCredentialStatement != null) {
+            deleteCredentialStatement.close();
+            deleteCredentialStatement = null;
+        }
+        helper.close();
+    }
+
+    private byte[] queryBlob(String sql, String name) {
+        final Cursor cursor = getDatabase().rawQuery(sql, new String[]{name});
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // the following methods must be called while holding the lock on this
+
+    private void insertCredential(String name, byte[] value) {
+        if (insertCredentialStatement == null) {
+            insertCredentialStatement = getDatabase().compileStatement(SQL_INSERT_CREDENTIAL);
+        }
+        insertCredentialStatement.bindString(1, name);
+        insertCredentialStatement.bindBlob(2, value);
+        insertCredentialStatement.executeInsert();
+        insertCredentialStatement.clearBindings();
+    }
+
+    private void deleteCredential(String name) {
+        if (deleteCredentialStatement == null) {
+            deleteCredentialStatement = getDatabase().compileStatement(SQL_DELETE_CREDENTIAL);
+        }
+        deleteCredentialStatement.bindString(1, name);
+        deleteCredentialStatement.executeUpdateDelete();
+        deleteCredentialStatement.clearBindings();
+    }
+}
@@ -0,0 +1,297 @@
+package com.classycode.andvault;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.Flushable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link VaultStorage} implementation that spreads the credentials over several {@link SharedPreferences}
+ * files (shards) by the hash of their name. {@link SharedPreferences} rewrite the whole file on every
+ * change, so a write only rewrites the shard of the changed credential, about 1/N of the vault. A shard
+ * is only loaded when one of its credentials is first accessed.
+ * <p/>
+ * The wrapped vault key, the metadata and the number of shards are kept in a separate file. The number of shards is
+ * fixed when the storage is first written to, later instances use the stored number regardless of the
+ * number they are created with.
+ * <p/>
+ * Writes to different shards are not atomic, therefore this storage does not implement
+ * {@link BatchVaultStorage}. Use {@link #migrateFrom(VaultStorage)} to move an existing vault (e.g. a
+ * {@link SharedPrefsStorage}) into the shards.
+ *
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public class ShardedSharedPrefsStorage implements ByteBufferVaultStorage, IndexedVaultStorage, MetadataVaultStorage, Flushable {
+
+    /**
+     * Default number of shards.
+     */
+    public static final int DEFAULT_SHARD_COUNT = 8;
+
+    private static final int MAX_SHARD_COUNT = 256;
+
+    private static final String TAG = ShardedSharedPrefsStorage.class.getSimpleName();
+
+    private static final String KEY_PREFS_NAME = "vault-key";
+
+    private static final String SHARD_PREFS_NAME_PREFIX = "vault-shard-";
+
+    private static final String PREF_NAME_KEY = "key";
+
+    private static final String PREF_NAME_SHARD_COUNT = "shard_count";
+
+    private static final String PREF_PREFIX_METADATA = "metadata_";
+
+    private final Context context;
+
+    private final SharedPrefsStorage.Durability durability;
+
+    private final long groupCommitWindowMillis;
+
+    private final int requestedShardCount;
+
+    // the following fields are guarded by this
+
+    /**
+     * The shards, created on first use.
+     */
+    private SharedPrefsStorage[] shards;
+
+    public ShardedSharedPrefsStorage(Context context) {
+        this(context, DEFAULT_SHARD_COUNT, SharedPrefsStorage.Durability.SYNC);
+    }
+
+    /**
+     * @param context    The context
+     * @param shardCount The number of shards of a new vault, ignored if the vault already exists
+     * @param durability The durability mode for credential writes, see {@link SharedPrefsStorage.Durability}
+     */
+    public ShardedSharedPrefsStorage(Context context, int shardCount, SharedPrefsStorage.Durability durability) {
+        this(context, shardCount, durability, SharedPrefsStorage.DEFAULT_GROUP_COMMIT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param context                 The context
+     * @param shardCount              The number of shards of a new vault, ignored if the vault already exists
+     * @param durability              The durability mode for credential writes, see {@link SharedPrefsStorage.Durability}
+     * @param groupCommitWindowMillis The time a group commit waits for further writes to join it,
+     *                                only used with {@link SharedPrefsStorage.Durability#GROUP_COMMIT}
+     */
+    public ShardedSharedPrefsStorage(Context context, int shardCount, SharedPrefsStorage.Durability durability,
+                                     long groupCommitWindowMillis) {
+        if (shardCount <= 0 || shardCount > MAX_SHARD_COUNT) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARD_COUNT);
+        }
+        if (groupCommitWindowMillis < 0) {
+            throw new IllegalArgumentException("Group commit window must not be negative");
+        }
+        this.context = context;
+        this.requestedShardCount = shardCount;
+        this.durability = durability;
+        this.groupCommitWindowMillis = groupCommitWindowMillis;
+    }
+
+    private SharedPreferences getKeyPrefs() {
+        return context.getSharedPreferences(KEY_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return getShards().length;
+    }
+
+    private synchronized SharedPrefsStorage[] getShards() {
+        if (shards == null) {
+            final SharedPreferences keyPrefs = getKeyPrefs();
+            int shardCount = keyPrefs.getInt(PREF_NAME_SHARD_COUNT, 0);
+            if (shardCount == 0) {
+                shardCount = requestedShardCount;
+                keyPrefs.edit().putInt(PREF_NAME_SHARD_COUNT, shardCount).commit();
+            } else if (shardCount != requestedShardCount) {
+                Log.w(TAG, "Vault was created with " + shardCount + " shards, ignoring requested " + requestedShardCount);
+            }
+            // creating the storages is cheap, the files are only loaded on first access
+            shards = new SharedPrefsStorage[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new SharedPrefsStorage(context, SHARD_PREFS_NAME_PREFIX + i, durability, groupCommitWindowMillis);
+            }
+        }
+        return shards;
+    }
+
+    private SharedPrefsStorage getShard(String name) {
+        final SharedPrefsStorage[] shards = getShards();
+        int h = name == null ? 0 : name.hashCode(); // specified by String, so stable across processes
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    @Override
+    public List<String> getCredentialNames() {
+        final List<String> names = new ArrayList<String>();
+        for (SharedPrefsStorage shard : getShards()) {
+            names.addAll(shard.getCredentialNames());
+        }
+        return names;
+    }
+
+    /**
+     * Merges the sorted names of all shards.
+     */
+    @Override
+    public List<String> getCredentialNames(String prefix, String startAfter, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        final List<String> names = new ArrayList<String>();
+        for (SharedPrefsStorage shard : getShards()) {
+            names.addAll(shard.getCredentialNames(prefix, startAfter, limit));
+        }
+        Collections.sort(names);
+        return names.size() > limit ? new ArrayList<String>(names.subList(0, limit)) : names;
+    }
+
+    @Override
+    public byte[] getCredential(String name) {
+        return getShard(name).getCredential(name);
+    }
+
+    @Override
+    public int getCredential(String name, ByteBuffer dst) {
+        return getShard(name).getCredential(name, dst);
+    }
+
+    @Override
+    public void setCredential(String name, byte[] value) {
+        getShard(name).setCredential(name, value);
+    }
+
+    @Override
+    public void setCredential(String name, ByteBuffer value) {
+        getShard(name).setCredential(name, value);
+    }
+
+    @Override
+    public void removeCredential(String name) {
+        getShard(name).removeCredential(name);
+    }
+
+    @Override
+    public void setKey(byte[] key) {
+        // the key must never be lost, write it synchronously after any buffered credential writes
+        flush();
+        getKeyPrefs().edit().putString(PREF_NAME_KEY, Base64.encodeToString(key, Base64.NO_WRAP)).commit();
+    }
+
+    @Override
+    public byte[] getKey() {
+        final String vaultKey = getKeyPrefs().getString(PREF_NAME_KEY, null);
+        if (vaultKey == null) {
+            return null;
+        } else {
+            return Base64.decode(vaultKey, Base64.NO_WRAP);
+        }
+    }
+
+    @Override
+    public byte[] getMetadata(String name) {
+        final String value = getKeyPrefs().getString(PREF_PREFIX_METADATA + name, null);
+        return value == null ? null : Base64.decode(value, Base64.NO_WRAP);
+    }
+
+    @Override
+    public boolean setMetadata(String name, byte[] value) {
+        flush();
+        final SharedPreferences.Editor editor = getKeyPrefs().edit();
+        if (value == null) {
+            editor.remove(PREF_PREFIX_METADATA + name);
+        } else {
+            editor.putString(PREF_PREFIX_METADATA + name, Base64.encodeToString(value, Base64.NO_WRAP));
+        }
+        return editor.commit();
+    }
+
+    @Override
+    public void reset() {
+        for (SharedPrefsStorage shard : getShards()) {
+            shard.reset();
+        }
+        // keep the shard count, the shard files still exist
+        final SharedPreferences.Editor editor = getKeyPrefs().edit().remove(PREF_NAME_KEY);
+        for (String prefName : getKeyPrefs().getAll().keySet()) {
+            if (prefName.startsWith(PREF_PREFIX_METADATA)) {
+                editor.remove(prefName);
+            }
+        }
+        editor.commit();
+    }
+
+    /**
+     * Write all buffered credential changes of all shards to disk and wait until they are persisted.
+     * Only needed with the {@link SharedPrefsStorage.Durability#ASYNC} and
+     * {@link SharedPrefsStorage.Durability#GROUP_COMMIT} modes.
+     */
+    @Override
+    public void flush() {
+        for (SharedPrefsStorage shard : getShards()) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Move the credentials, the metadata and the wrapped vault key of another storage into this one, then
+     * reset the other storage. The values are copied as they are, so they remain readable with the same
+     * key. The metadata includes the state of a pending key rotation, which resumes on the new storage.
+     * <p/>
+     * The key is written last, so an interrupted migration is completed when this method is called
+     * again. Does nothing if the other storage holds no vault key, or if this storage already
+     * holds a different one.
+     *
+     * @param source The storage to migrate from, e.g. a {@link SharedPrefsStorage} with the default file
+     * @return True if the vault was migrated
+     */
+    public boolean migrateFrom(VaultStorage source) {
+        final byte[] sourceKey = source.getKey();
+        if (sourceKey == null) {
+            return false;
+        }
+        final byte[] key = getKey();
+        if (key != null) {
+            if (!Arrays.equals(key, sourceKey)) {
+                Log.w(TAG, "Not migrating, the storage already holds a different vault");
+                return false;
+            }
+            // the values were copied, but the other storage was not reset yet
+            source.reset();
+            return true;
+        }
+        for (String name : source.getCredentialNames()) {
+            final byte[] value = source.getCredential(name);
+            if (value != null) {
+                setCredential(name, value);
+            }
+        }
+        if (source instanceof MetadataVaultStorage) {
+            final MetadataVaultStorage sourceMetadata = (MetadataVaultStorage) source;
+            for (String name : CoreVault.METADATA_NAMES) {
+                final byte[] value = sourceMetadata.getMetadata(name);
+                if (value != null && !setMetadata(name, value)) {
+                    Log.w(TAG, "Not migrating, failed to copy metadata " + name);
+                    return false;
+                }
+            }
+        }
+        setKey(sourceKey); // also flushes the credentials
+        source.reset();
+        return true;
+    }
+}
@@ -4,41 +4,160 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Base64;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * A {@link VaultStorage} implementation that uses {@link SharedPreferences} for storage (= file in
  * a local filesystem).
+ * <p/>
+ * How credential writes are persisted is controlled by the {@link Durability} mode. The wrapped
+ * vault key and metadata are always written synchronously, regardless of the mode, so they can never be
+ * lost once {@link #setKey(byte[])} or {@link #setMetadata(String, byte[])} returns.
+ * <p/>
+ * Credential names are kept in a sorted in-memory index, built from the preferences on first use and
+ * maintained on every write, so names are listed without copying the stored values.
  *
  * @author Alex Suzuki, Classy Code GmbH, 2015
  */
-public class SharedPrefsStorage implements VaultStorage {
+public class SharedPrefsStorage implements BatchVaultStorage, ByteBufferVaultStorage, IndexedVaultStorage, MetadataVaultStorage {
 
-    private static final String PREFS_NAME = "vault";
+    /**
+     * Controls when credential writes ({@link #setCredential(String, byte[])}, {@link #removeCredential(String)}
+     * and their batch variants) reach the disk.
+     */
+    public enum Durability {
+
+        /**
+         * Every write is committed to disk before the call returns.
+         */
+        SYNC,
+
+        /**
+         * Writes update the in-memory state immediately and are written to disk in the background
+         * (see {@link SharedPreferences.Editor#apply()}). Call {@link #flush()} to wait for them.
+         */
+        ASYNC,
+
+        /**
+         * Writes issued by concurrent callers within a short window are coalesced into a single disk
+         * write. Every call returns once the write containing its change has been committed.
+         */
+        GROUP_COMMIT
+    }
+
+    /**
+     * Default time a group commit waits for further writes to join it.
+     */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MILLIS = 5;
+
+    /**
+     * Name of the preferences file used by default.
+     */
+    public static final String DEFAULT_PREFS_NAME = "vault";
 
     private static final String PREF_NAME_KEY = "key";
 
     private static final String PREF_PREFIX_CREDENTIAL = "credential_";
 
+    private static final String PREF_PREFIX_METADATA = "metadata_";
+
+    /**
+     * Name indexes by preferences file. {@link Context#getSharedPreferences(String, int)} returns the same
+     * instance for the same file, so all storages using a file share its index. Guarded by itself.
+     */
+    private static final Map<SharedPreferences, NameIndex> NAME_INDEXES = new WeakHashMap<SharedPreferences, NameIndex>();
+
     private Context context;
 
+    private final String prefsName;
+
+    private final Durability durability;
+
+    private final long groupCommitWindowMillis;
+
+    /**
+     * Guards {@link #pendingGroupCommit}.
+     */
+    private final Object groupLock = new Object();
+
+    /**
+     * Held while a group commit is closed and committed, so that group commits reach the
+     * {@link SharedPreferences} in the order they were opened.
+     */
+    private final Object commitLock = new Object();
+
+    private GroupCommit pendingGroupCommit;
+
     public SharedPrefsStorage(Context context) {
+        this(context, Durability.SYNC);
+    }
+
+    /**
+     * @param context    The context
+     * @param durability The durability mode for credential writes
+     */
+    public SharedPrefsStorage(Context context, Durability durability) {
+        this(context, durability, DEFAULT_GROUP_COMMIT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param context                 The context
+     * @param durability              The durability mode for credential writes
+     * @param groupCommitWindowMillis The time a group commit waits for further writes to join it,
+     *                                only used with {@link Durability#GROUP_COMMIT}
+     */
+    public SharedPrefsStorage(Context context, Durability durability, long groupCommitWindowMillis) {
+        this(context, DEFAULT_PREFS_NAME, durability, groupCommitWindowMillis);
+    }
+
+    /**
+     * @param context                 The context
+     * @param prefsName               The name of the preferences file, see {@link Context#getSharedPreferences(String, int)}
+     * @param durability              The durability mode for credential writes
+     * @param groupCommitWindowMillis The time a group commit waits for further writes to join it,
+     *                                only used with {@link Durability#GROUP_COMMIT}
+     */
+    public SharedPrefsStorage(Context context, String prefsName, Durability durability, long groupCommitWindowMillis) {
+        if (groupCommitWindowMillis < 0) {
+            throw new IllegalArgumentException("Group commit window must not be negative");
+        }
         this.context = context;
+        this.prefsName = prefsName;
+        this.durability = durability;
+        this.groupCommitWindowMillis = groupCommitWindowMillis;
     }
 
     private SharedPreferences getSharedPrefs() {
-        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
     }
 
-    @Override
-    public void setCredential(String name, byte[] value) {
+    private static void checkCredentialName(String name) {
         if (name == null || name.length() == 0) {
             throw new IllegalArgumentException("Credential name must not be null or empty");
         }
+    }
+
+    /**
+     * @return The durability mode for credential writes.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    @Override
+    public void setCredential(String name, byte[] value) {
+        checkCredentialName(name);
         final String encodedCredential = Base64.encodeToString(value, Base64.NO_WRAP);
-        getSharedPrefs().edit().putString(PREF_PREFIX_CREDENTIAL + name, encodedCredential).commit();
+        write(Collections.singletonMap(PREF_PREFIX_CREDENTIAL + name, encodedCredential));
     }
 
     @Override
@@ -51,29 +170,92 @@ public class SharedPrefsStorage implements VaultStorage {
         return Base64.decode(encodedCred, Base64.NO_WRAP);
     }
 
+    /**
+     * Decodes the stored Base64 string straight into the buffer, without intermediate arrays.
+     */
+    @Override
+    public int getCredential(String name, ByteBuffer dst) {
+        final String encodedCred = getSharedPrefs().getString(PREF_PREFIX_CREDENTIAL + name, null);
+        if (encodedCred == null) {
+            return -1;
+        }
+        return Base64Codec.decode(encodedCred, dst);
+    }
+
+    @Override
+    public void setCredential(String name, ByteBuffer value) {
+        checkCredentialName(name);
+        final String encodedCredential;
+        if (value.hasArray()) {
+            encodedCredential = Base64.encodeToString(value.array(), value.arrayOffset() + value.position(), value.remaining(), Base64.NO_WRAP);
+            value.position(value.limit());
+        } else {
+            final byte[] bytes = new byte[value.remaining()];
+            value.get(bytes);
+            encodedCredential = Base64.encodeToString(bytes, Base64.NO_WRAP);
+        }
+        write(Collections.singletonMap(PREF_PREFIX_CREDENTIAL + name, encodedCredential));
+    }
+
     @Override
     public List<String> getCredentialNames() {
-        final Map<String, ?> prefsMap = getSharedPrefs().getAll();
-        List<String> credentialNames = new ArrayList<String>(prefsMap.size());
-        for (String prefKey : prefsMap.keySet()) {
-            if (prefKey.startsWith(PREF_PREFIX_CREDENTIAL)) {
-                credentialNames.add(prefKey.substring(PREF_PREFIX_CREDENTIAL.length()));
-            }
+        return getCredentialNames("", null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<String> getCredentialNames(String prefix, String startAfter, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
         }
-        return credentialNames;
+        final SharedPreferences prefs = getSharedPrefs();
+        return getNameIndex(prefs).getNames(prefs, prefix, startAfter, limit);
     }
 
     @Override
     public void removeCredential(String name) {
         final SharedPreferences prefs = getSharedPrefs();
         if (prefs.contains(PREF_PREFIX_CREDENTIAL + name)) {
-            prefs.edit().remove(PREF_PREFIX_CREDENTIAL + name).commit();
+            write(Collections.singletonMap(PREF_PREFIX_CREDENTIAL + name, (String) null));
         }
     }
 
+    @Override
+    public Map<String, byte[]> getCredentials(Collection<String> names) {
+        final SharedPreferences prefs = getSharedPrefs();
+        final Map<String, byte[]> credentials = new LinkedHashMap<String, byte[]>(names.size() * 2);
+        for (String name : names) {
+            final String encodedCred = prefs.getString(PREF_PREFIX_CREDENTIAL + name, null);
+            if (encodedCred != null) {
+                credentials.put(name, Base64.decode(encodedCred, Base64.NO_WRAP));
+            }
+        }
+        return credentials;
+    }
+
+    @Override
+    public boolean setCredentials(Map<String, byte[]> values) {
+        final Map<String, String> changes = new LinkedHashMap<String, String>(values.size() * 2);
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            checkCredentialName(entry.getKey());
+            changes.put(PREF_PREFIX_CREDENTIAL + entry.getKey(), Base64.encodeToString(entry.getValue(), Base64.NO_WRAP));
+        }
+        return write(changes);
+    }
+
+    @Override
+    public boolean removeCredentials(Collection<String> names) {
+        final Map<String, String> changes = new LinkedHashMap<String, String>(names.size() * 2);
+        for (String name : names) {
+            changes.put(PREF_PREFIX_CREDENTIAL + name, null);
+        }
+        return write(changes);
+    }
+
     @Override
     public void setKey(byte[] key) {
-        getSharedPrefs().edit().putString(PREF_NAME_KEY, Base64.encodeToString(key, Base64.NO_WRAP)).commit();
+        // the key must never be lost, write it synchronously after any buffered credential writes
+        flush();
+        commitEditor(getSharedPrefs().edit().putString(PREF_NAME_KEY, Base64.encodeToString(key, Base64.NO_WRAP)));
     }
 
     @Override
@@ -86,9 +268,256 @@ public class SharedPrefsStorage implements VaultStorage {
         }
     }
 
+    @Override
+    public byte[] getMetadata(String name) {
+        final String value = getSharedPrefs().getString(PREF_PREFIX_METADATA + name, null);
+        return value == null ? null : Base64.decode(value, Base64.NO_WRAP);
+    }
+
+    @Override
+    public boolean setMetadata(String name, byte[] value) {
+        flush();
+        final SharedPreferences.Editor editor = getSharedPrefs().edit();
+        if (value == null) {
+            editor.remove(PREF_PREFIX_METADATA + name);
+        } else {
+            editor.putString(PREF_PREFIX_METADATA + name, Base64.encodeToString(value, Base64.NO_WRAP));
+        }
+        return commitEditor(editor);
+    }
+
     @Override
     public void reset() {
-        getSharedPrefs().edit().clear().commit();
+        flush();
+        final SharedPreferences prefs = getSharedPrefs();
+        prefs.edit().clear().commit();
+        getNameIndex(prefs).clear();
+    }
+
+    /**
+     * Write all buffered credential changes to disk and wait until they are persisted. Only needed
+     * with the {@link Durability#ASYNC} and {@link Durability#GROUP_COMMIT} modes.
+     */
+    public void flush() {
+        if (durability == Durability.GROUP_COMMIT) {
+            synchronized (commitLock) {
+                final GroupCommit groupCommit;
+                synchronized (groupLock) {
+                    groupCommit = pendingGroupCommit;
+                    pendingGroupCommit = null;
+                }
+                if (groupCommit != null) {
+                    groupCommit.commit();
+                }
+            }
+        } else if (durability == Durability.ASYNC) {
+            // commits are written after all previously applied changes, so an empty commit waits for them
+            commitEditor(getSharedPrefs().edit());
+        }
+    }
+
+    /**
+     * Write the changes according to the durability mode.
+     *
+     * @param changes New values by preference key, a null value removes the preference
+     * @return True if the changes were (or, for {@link Durability#ASYNC}, will be) written to disk
+     */
+    private boolean write(Map<String, String> changes) {
+        switch (durability) {
+            case ASYNC:
+                toEditor(changes).apply();
+                updateNameIndex(changes);
+                return true;
+            case GROUP_COMMIT:
+                return groupCommit(changes);
+            default:
+                final boolean result = commitEditor(toEditor(changes));
+                updateNameIndex(changes);
+                return result;
+        }
+    }
+
+    /**
+     * Commit the editor synchronously, reporting the time it takes.
+     */
+    private static boolean commitEditor(SharedPreferences.Editor editor) {
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_COMMIT);
+        final long start = VaultMetrics.start();
+        try {
+            return editor.commit();
+        } finally {
+            VaultMetrics.record(VaultMetrics.Phase.STORAGE_COMMIT, start, 0);
+            VaultTracing.end(tracer);
+        }
     }
 
+    private void updateNameIndex(Map<String, String> changes) {
+        final SharedPreferences prefs = getSharedPrefs();
+        getNameIndex(prefs).update(prefs, changes.keySet());
+    }
+
+    private static NameIndex getNameIndex(SharedPreferences prefs) {
+        synchronized (NAME_INDEXES) {
+            NameIndex index = NAME_INDEXES.get(prefs);
+            if (index == null) {
+                index = new NameIndex();
+                NAME_INDEXES.put(prefs, index);
+            }
+            return index;
+        }
+    }
+
+    private SharedPreferences.Editor toEditor(Map<String, String> changes) {
+        final SharedPreferences.Editor editor = getSharedPrefs().edit();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                editor.remove(change.getKey());
+            } else {
+                editor.putString(change.getKey(), change.getValue());
+            }
+        }
+        return editor;
+    }
+
+    /**
+     * Add the changes to the open group commit, or open one if there is none. The caller that opens a
+     * group commit waits for the commit window to pass and then commits it on behalf of all callers
+     * that joined it in the meantime.
+     */
+    private boolean groupCommit(Map<String, String> changes) {
+        final GroupCommit groupCommit;
+        final boolean leader;
+        synchronized (groupLock) {
+            leader = pendingGroupCommit == null;
+            if (leader) {
+                pendingGroupCommit = new GroupCommit();
+            }
+            groupCommit = pendingGroupCommit;
+            groupCommit.changes.putAll(changes);
+        }
+        if (leader) {
+            if (groupCommitWindowMillis > 0) {
+                try {
+                    Thread.sleep(groupCommitWindowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (commitLock) {
+                synchronized (groupLock) {
+                    if (pendingGroupCommit == groupCommit) {
+                        pendingGroupCommit = null;
+                    }
+                }
+                groupCommit.commit(); // no-op if flush() committed it already
+            }
+        }
+        return groupCommit.await();
+    }
+
+    /**
+     * Changes of several writers, committed together.
+     */
+    private final class GroupCommit {
+
+        /**
+         * New values by preference key, a null value removes the preference. Guarded by {@link #groupLock}
+         * until the group commit is closed.
+         */
+        final Map<String, String> changes = new LinkedHashMap<String, String>();
+
+        private final CountDownLatch committed = new CountDownLatch(1);
+
+        private boolean done;
+
+        private volatile boolean result;
+
+        synchronized void commit() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                result = commitEditor(toEditor(changes));
+                updateNameIndex(changes);
+            } finally {
+                committed.countDown();
+            }
+        }
+
+        boolean await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    committed.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Sorted credential names of a preferences file. Must not reference the preferences, as it is the
+     * value of a weak map keyed by them.
+     */
+    private static final class NameIndex {
+
+        /**
+         * The names, or null until the index is first used.
+         */
+        private TreeSet<String> names;
+
+        synchronized List<String> getNames(SharedPreferences prefs, String prefix, String startAfter, int limit) {
+            if (names == null) {
+                names = new TreeSet<String>();
+                for (String prefKey : prefs.getAll().keySet()) {
+                    if (prefKey.startsWith(PREF_PREFIX_CREDENTIAL)) {
+                        names.add(prefKey.substring(PREF_PREFIX_CREDENTIAL.length()));
+                    }
+                }
+            }
+            final Iterable<String> candidates = startAfter != null && startAfter.compareTo(prefix) >= 0
+                    ? names.tailSet(startAfter, false) : names.tailSet(prefix, true);
+            final List<String> result = new ArrayList<String>();
+            for (String name : candidates) {
+                if (!name.startsWith(prefix) || result.size() == limit) {
+                    break;
+                }
+                result.add(name);
+            }
+            return result;
+        }
+
+        /**
+         * Update the index for the changed preferences from their current state, so that concurrent
+         * writers can't leave it out of date by updating it in a different order than they wrote.
+         */
+        synchronized void update(SharedPreferences prefs, Collection<String> prefKeys) {
+            if (names == null) {
+                return; // built from the preferences on first use
+            }
+            for (String prefKey : prefKeys) {
+                if (prefKey.startsWith(PREF_PREFIX_CREDENTIAL)) {
+                    final String name = prefKey.substring(PREF_PREFIX_CREDENTIAL.length());
+                    if (prefs.contains(prefKey)) {
+                        names.add(name);
+                    } else {
+                        names.remove(name);
+                    }
+                }
+            }
+        }
+
+        synchronized void clear() {
+            if (names != null) {
+                names.clear();
+            }
+        }
+    }
 }
@@ -3,38 +3,75 @@ package com.classycode.andvault;
 import android.app.Application;
 import android.app.KeyguardManager;
 import android.content.Context;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.util.Log;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
-import java.util.List;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Secure storage of application secrets, using the Android KeyStore provider.
+ * <p/>
+ * The vault key is wrapped with an AES key in the Android KeyStore on API 23+ (see {@link KeyStoreAesKeyWrapper})
+ * and with the master keypair on older versions (see {@link VaultKeyWrapper}). Vaults created before the device
+ * was updated to API 23 are migrated on first use. Everything else is implemented by {@link CoreVault}.
  *
  * @author Alex Suzuki, Classy Code GmbH, 2015
  */
-public class Vault {
+public class Vault extends CoreVault {
 
     private static final String TAG = Vault.class.getSimpleName();
 
-    private static final String CIPHER_AES = "AES";
+    private static final String BLOB_DIRECTORY = "andvault-blobs";
 
     /**
-     * Key length for AES-256
+     * Measures idle time including deep sleep, unlike {@link System#nanoTime()} on Android.
      */
-    public static final int KEY_LENGTH = 32;
+    private static final VaultClock ELAPSED_REALTIME = new VaultClock() {
+        @Override
+        public long elapsedMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /**
+     * Wraps the vault key with the AES key in the Android KeyStore on API 23+ ({@link KeyStoreAesKeyWrapper}),
+     * and with the master keypair on older versions ({@link VaultKeyWrapper}). The keys are only loaded
+     * (or generated) when needed. Vault keys wrapped with the master keypair before the device was
+     * updated to API 23 are still unwrapped with it, and then migrated to the AES key.
+     */
+    private static final class KeyStoreKeyWrapper implements UpgradableKeyWrapper {
+
+        private final Context context;
+
+        KeyStoreKeyWrapper(Context context) {
+            this.context = context;
+        }
 
-    private final Context context;
+        @Override
+        public byte[] wrap(SecretKey key) throws GeneralSecurityException {
+            if (KeyStoreAesKeyWrapper.isSupported()) {
+                return new KeyStoreAesKeyWrapper().wrap(key);
+            }
+            return new VaultKeyWrapper(context).wrap(key);
+        }
 
-    private final VaultStorage storage;
+        @Override
+        public SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+            if (KeyStoreAesKeyWrapper.isSupported() && KeyStoreAesKeyWrapper.isWrappedKey(wrappedKey)) {
+                return new KeyStoreAesKeyWrapper().unwrap(wrappedKey);
+            }
+            return new VaultKeyWrapper(context).unwrap(wrappedKey);
+        }
+
+        @Override
+        public boolean isOutdated(byte[] wrappedKey) {
+            return KeyStoreAesKeyWrapper.isSupported() && !KeyStoreAesKeyWrapper.isWrappedKey(wrappedKey);
+        }
+    }
 
     /**
      * Initialize the Vault with an application {@link Context}. This uses the default storage mechanism {@link SharedPrefsStorage}.
@@ -61,176 +98,96 @@ public class Vault {
      *                        {@link Vault#reset(Context)}
      */
     public Vault(Context context, VaultStorage storage) throws VaultException {
-        if (!Vault.isDeviceProtected(context)) {
-            throw new VaultException("Keypair encryption is requested, but device is not protected. Handle this in your app by using Vault.isDeviceProtected(Context)");
-        }
-
-        this.context = context;
-        if (!(context instanceof Application)) {
-            Log.w(TAG, "Vault initialized with non-application context. You should always use Application Contexts to avoid leaking memory.");
-        }
-        this.storage = storage;
-
-        // early initialization to catch device lock changes.
-        try {
-            getOrCreateVaultKey();
-        } catch (GeneralSecurityException e) {
-            throw new VaultException("Initializing the Vault failed (HINT: did device lockscreen setting change?)", e);
-        } catch (IOException e) {
-            throw new VaultException("Initializing the Vault failed (HINT: did device lockscreen setting change?)", e);
-        }
+        this(context, storage, false);
     }
 
     /**
-     * @return The (symmetric) vault key. If it does not exist yet, it is created.
-     * @throws GeneralSecurityException
-     * @throws IOException
-     */
-    private SecretKey getOrCreateVaultKey() throws GeneralSecurityException, IOException {
-        final VaultKeyWrapper keyWrapper = new VaultKeyWrapper(context);
-        final byte[] wrappedVaultKey = storage.getKey();
-        if (wrappedVaultKey == null) { // no symmetric key yet, create and random one, and wrap it
-            final byte[] raw = new byte[KEY_LENGTH];
-            new SecureRandom().nextBytes(raw);
-            final SecretKey key = new SecretKeySpec(raw, CIPHER_AES);
-            storage.setKey(keyWrapper.wrap(key));
-            return key;
-        } else {
-            return keyWrapper.unwrap(wrappedVaultKey);
-        }
-    }
-
-    /**
-     * @return The list of credentials stored in the vault.
-     */
-    public List<String> getCredentialNames() {
-        return storage.getCredentialNames();
-    }
-
-    /**
-     * Remove the named credential from the vault.
+     * Create a vault using the default storage mechanism {@link SharedPrefsStorage}, initializing it in the background.
      *
-     * @param name The credential's name
+     * @see #warmUpAsync(Context, VaultStorage)
      */
-    public void removeCredential(String name) {
-        storage.removeCredential(name);
+    public static Vault warmUpAsync(Context context) throws VaultException {
+        return warmUpAsync(context, new SharedPrefsStorage(context));
     }
 
     /**
-     * Get the value of the named credential.
+     * Create a vault, initializing it in the background. The constructors create the keystore key pair
+     * and the vault key (on first use) or unwrap the vault key on the calling thread, which can take
+     * seconds. This method returns immediately instead, the initialization runs on a background thread
+     * owned by the library. Operations needing the vault key wait for it to complete, others (like
+     * {@link #getCredentialNames()}) don't.
+     * <p/>
+     * If the initialization fails, the first operation needing the vault key throws a {@link VaultException}.
      *
-     * @param name The credential's name (must not be null)
-     * @return The credential value, or null, if the credential does not exist in the vault
-     * @throws VaultException An error occurred while retrieving the credential from the vault
+     * @param context The Context, should be an application context as these can be referenced safely without leaking activities.
+     * @param storage A storage mechanism.
+     * @throws VaultException Thrown if the device is not protected (check {@link Vault#isDeviceProtected(Context)})
      */
-    public byte[] getCredential(String name) throws VaultException {
-        final byte[] encryptedCredential = storage.getCredential(name);
-        if (encryptedCredential == null) {
-            return null;
-        }
-        try {
-            return decrypt(encryptedCredential);
-        } catch (GeneralSecurityException e) {
-            throw new VaultException("Credential could not be read", e);
-        } catch (IOException e) {
-            throw new VaultException("Credential could not be read", e);
-        }
+    public static Vault warmUpAsync(Context context, VaultStorage storage) throws VaultException {
+        return new Vault(context, storage, true);
     }
 
-    /**
-     * Get the value of the named credential, which is assumed to be a string.
-     *
-     * @param name The credential's name (must not be null)
-     * @return The credential value as a string, or null, if the credential does not exist in the vault
-     * @throws VaultException An error occurred while retrieving the credential from the vault
-     */
-    public String getStringCredential(String name) throws VaultException {
-        byte[] value = getCredential(name);
-        if (value == null) {
-            return null;
-        } else {
-            try {
-                return new String(value, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new IllegalArgumentException(e); // should never happen
-            }
-        }
+    private Vault(Context context, VaultStorage storage, boolean warmUpAsync) throws VaultException {
+        super(new KeyStoreKeyWrapper(checkContext(context)), storage, getBlobDirectory(context), warmUpAsync, ELAPSED_REALTIME);
     }
 
     /**
-     * Store a new credential, which is assumed to be a string, in the vault or overwrite an existing one.
-     *
-     * @param name  The credential's name (must not be null)
-     * @param value The credential's value (must not be null)
-     * @throws VaultException An error occurred while storing the credential
+     * @return The context, if it can be used for a vault
+     * @throws VaultException The device is not protected
      */
-    public void storeCredential(String name, byte[] value) throws VaultException {
-        try {
-            storage.setCredential(name, encrypt(value));
-        } catch (GeneralSecurityException e) {
-            throw new VaultException("Credential could not be stored", e);
-        } catch (IOException e) {
-            throw new VaultException("Credential could not be stored", e);
+    private static Context checkContext(Context context) throws VaultException {
+        if (!Vault.isDeviceProtected(context)) {
+            throw new VaultException("Keypair encryption is requested, but device is not protected. Handle this in your app by using Vault.isDeviceProtected(Context)");
         }
-    }
-
-    /**
-     * Store a new credential in the vault or overwrite an existing one.
-     *
-     * @param name  The credential's name (must not be null)
-     * @param value The credential's value (must not be null)
-     * @throws VaultException An error occurred while storing the credential
-     */
-    public void storeStringCredential(String name, String value) throws VaultException {
-        try {
-            storeCredential(name, value.getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalArgumentException(e); // should never happen
+        if (!(context instanceof Application)) {
+            Log.w(TAG, "Vault initialized with non-application context. You should always use Application Contexts to avoid leaking memory.");
         }
+        return context;
     }
 
     /**
      * Clear the vault, remove all domains and credentials, throw away any key material.
+     * Unlocked vault instances are locked on their next operation.
      *
      * @param context The application context
      */
     public static void reset(Context context) {
+        newGeneration();
         VaultKeyWrapper.deleteKey();
+        if (KeyStoreAesKeyWrapper.isSupported()) {
+            KeyStoreAesKeyWrapper.deleteKey();
+        }
         new SharedPrefsStorage(context).reset();
+        new BlobStore(getBlobDirectory(context)).reset();
     }
 
-    /**
-     * Decrypt a value using the vault key.
-     *
-     * @param value
-     * @return
-     * @throws GeneralSecurityException
-     * @throws IOException
-     */
-    private byte[] decrypt(byte[] value) throws GeneralSecurityException, IOException {
-        final Cipher cipher = Cipher.getInstance(CIPHER_AES);
-        cipher.init(Cipher.DECRYPT_MODE, getOrCreateVaultKey());
-        return cipher.doFinal(value);
+    private static File getBlobDirectory(Context context) {
+        return new File(context.getFilesDir(), BLOB_DIRECTORY);
     }
 
     /**
-     * Encrypt a value using the vault key.
+     * Enable or disable trace sections around the keystore, cipher and storage calls of all vaults in
+     * this process, emitted with {@link android.os.Trace} for systrace and Perfetto. Background work
+     * (initialization started by {@link #warmUpAsync(Context)}, {@link AsyncVault} operations, storage
+     * compaction and write-back) is traced as asynchronous sections. Off by default; the section names are
+     * listed in {@link VaultTracing}.
+     * <p/>
+     * This replaces any {@link VaultTracer} set with {@link VaultTracing#setTracer(VaultTracer)}.
      *
-     * @param value
-     * @return The encrypted value
-     * @throws GeneralSecurityException
-     * @throws IOException
+     * @param enabled True to emit trace sections
      */
-    private byte[] encrypt(byte[] value) throws GeneralSecurityException, IOException {
-        final Cipher cipher = Cipher.getInstance(CIPHER_AES);
-        cipher.init(Cipher.ENCRYPT_MODE, getOrCreateVaultKey());
-        return cipher.doFinal(value);
+    public static void setTracingEnabled(boolean enabled) {
+        VaultTracing.setTracer(enabled ? AndroidVaultTracer.INSTANCE : null);
     }
 
     /**
-     * @return True if the device offers hardware-backed protection of the master key.
+     * @return True if the device offers hardware-backed protection of the key the vault key is wrapped
+     * with: the AES key in the Android KeyStore on API 23+, the RSA master keypair before.
      */
     public static boolean isHardwareBackedCredentialStorage() {
+        if (KeyStoreAesKeyWrapper.isSupported()) {
+            return KeyStoreAesKeyWrapper.isInsideSecureHardware();
+        }
         return KeyChain.isBoundKeyAlgorithm("RSA");
     }
 
@@ -0,0 +1,25 @@
+package com.classycode.andvault;
+
+/**
+ * Receives the result of an asynchronous {@link AsyncVault} operation. Callbacks are delivered on
+ * the callback executor of the {@link AsyncVault}, and not at all if the operation was cancelled.
+ *
+ * @param <T> The result type of the operation
+ * @author Alex Suzuki, Classy Code GmbH, 2016
+ */
+public interface VaultCallback<T> {
+
+    /**
+     * The operation completed successfully.
+     *
+     * @param result The result of the operation, may be null (e.g. for inexistent credentials)
+     */
+    void onSuccess(T result);
+
+    /**
+     * The operation failed.
+     *
+     * @param e The reason for the failure
+     */
+    void onError(VaultException e);
+}
@@ -1,24 +1,16 @@
 package com.classycode.andvault;
 
 import android.content.Context;
-import android.security.KeyPairGeneratorSpec;
-import android.util.Log;
 
-import java.io.IOException;
-import java.math.BigInteger;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.security.ProviderException;
 
 import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
-import javax.security.auth.x500.X500Principal;
 
 /**
  * Helper class for protecting the Vault key using AndroidKeyStore provider.
@@ -28,27 +20,34 @@ import javax.security.auth.x500.X500Principal;
  * <p/>
  * See <a href="http://en.wikipedia.org/wiki/Key_Wrap">key wrapping</a> for more details.
  * <p/>
- * Not inherently thread safe.
+ * Used by the {@link Vault} on API 18 to 22, newer versions use {@link KeyStoreAesKeyWrapper}, which
+ * avoids the slow RSA key generation and private key operations.
+ * <p/>
+ * Wrappers are cheap to create, the master keypair is loaded once per process and shared.
+ * Thread safe, each thread uses its own pooled cipher.
  * <p/>
  * Adapted from: https://android.googlesource.com/platform/development/+/master/samples/Vault/src/com/example/android/vault/SecretKeyWrapper.java
  */
-public class VaultKeyWrapper {
-
-    private static final String TAG = VaultKeyWrapper.class.getSimpleName();
-
-    private static final String KEYSTORE_KEY_ALIAS = "andvault";
+public class VaultKeyWrapper implements KeyWrapper {
 
     private static final String CIPHER_AES = "AES";
 
+    private static final String CIPHER_RSA = "RSA/ECB/PKCS1Padding";
+
     /**
-     * The symmetric cipher to use for the key wrapping.
+     * The ciphers to use for the key wrapping. Wrapping and unwrapping use different keys (and on some
+     * platform versions different providers), so they are pooled separately.
      */
-    private final Cipher cipher;
+    private static final CipherPool WRAP_CIPHERS = CipherPool.create("vault-key-wrap", CIPHER_RSA);
+
+    private static final CipherPool UNWRAP_CIPHERS = CipherPool.create("vault-key-unwrap", CIPHER_RSA);
+
+    private final Context context;
 
     /**
      * A reference to the vault master keypair. The private key is never exposed.
      */
-    private final KeyPair keyPair;
+    private volatile KeyPair keyPair;
 
     /**
      * Create a wrapper using the public/private key pair with the given alias.
@@ -58,73 +57,35 @@ public class VaultKeyWrapper {
      * @throws GeneralSecurityException An error occurred while creating or loading the keypair in the Android KeyStore
      */
     public VaultKeyWrapper(Context context) throws GeneralSecurityException {
-        cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        final KeyStore keyStore = getAndLoadKeystore();
-        if (!keyStore.containsAlias(KEYSTORE_KEY_ALIAS)) {
-            generateKeyPair(context);
+        this.context = context;
+        final VaultTracer tracer = VaultTracing.begin(VaultTracing.SECTION_KEY_WRAPPER_INIT);
+        try {
+            keyPair = MasterKeyHolder.getKeyPair(context);
+        } finally {
+            VaultTracing.end(tracer);
         }
-
-        // Even if we just generated the key, always read it back to ensure can read it successfully.
-        final KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(KEYSTORE_KEY_ALIAS, null);
-        keyPair = new KeyPair(entry.getCertificate().getPublicKey(), entry.getPrivateKey());
     }
 
     /**
-     * Get a reference to the AndroidKeyStore. We assume this always works, as we require Android 4.3+
-     *
-     * @return The Android KeyStore
-     * @throws IllegalStateException If against all odds we can not load the keystore
+     * Delete the vault master keypair, effectively throwing away the key to the vault.
      */
-    private static KeyStore getAndLoadKeystore() {
-        try {
-            final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-            keyStore.load(null);
-            return keyStore;
-        } catch (KeyStoreException e) {
-            throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
-        } catch (CertificateException e) {
-            throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
-        } catch (IOException e) {
-            throw new IllegalStateException("Error obtaining AndroidKeyStore", e);
-        }
+    public static void deleteKey() {
+        MasterKeyHolder.deleteKey();
     }
 
-
     /**
-     * Delete the vault master keypair, effectively throwing away the key to the vault.
+     * @return The time it took to load the vault master keypair from the Android KeyStore the last time it
+     * was loaded in this process, in nanoseconds, or -1 if it has not been loaded yet.
      */
-    public static void deleteKey() {
-        try {
-            getAndLoadKeystore().deleteEntry(KEYSTORE_KEY_ALIAS);
-        } catch (KeyStoreException e) {
-            // not sure if it's wise to ignore this, but on the other hand, there isn't that much we can do.
-            Log.w(TAG, "Failed to delete entry in AndroidKeyStore, ignoring", e);
-        }
+    public static long getMasterKeyLoadTimeNanos() {
+        return MasterKeyHolder.getLastLoadTimeNanos();
     }
 
     /**
-     * Generate the vault master keypair.
-     *
-     * @param context
-     * @throws GeneralSecurityException
+     * @return How many times the vault master keypair was loaded from the Android KeyStore in this process.
      */
-    private void generateKeyPair(Context context) throws GeneralSecurityException {
-        final Calendar start = new GregorianCalendar();
-        final Calendar end = new GregorianCalendar();
-        end.add(Calendar.YEAR, 100);
-        final KeyPairGeneratorSpec.Builder builder = new KeyPairGeneratorSpec.Builder(context)
-                .setAlias(KEYSTORE_KEY_ALIAS)
-                .setSubject(new X500Principal("CN=" + KEYSTORE_KEY_ALIAS))
-                .setSerialNumber(BigInteger.ONE)
-                .setStartDate(start.getTime())
-                .setEndDate(end.getTime())
-                .setEncryptionRequired();
-        final KeyPairGeneratorSpec spec = builder.build();
-        final KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", "AndroidKeyStore");
-        gen.initialize(spec);
-        gen.generateKeyPair();
+    public static int getMasterKeyLoadCount() {
+        return MasterKeyHolder.getLoadCount();
     }
 
     /**
@@ -134,9 +95,18 @@ public class VaultKeyWrapper {
      *
      * @return a wrapped version of the given {@link SecretKey} that can be safely stored on untrusted storage.
      */
+    @Override
     public byte[] wrap(SecretKey key) throws GeneralSecurityException {
-        cipher.init(Cipher.WRAP_MODE, keyPair.getPublic());
-        return cipher.wrap(key);
+        try {
+            return wrapWithKeyPair(key);
+        } catch (InvalidKeyException e) {
+            reloadKeyPair();
+        } catch (IllegalBlockSizeException e) {
+            reloadKeyPair();
+        } catch (ProviderException e) {
+            reloadKeyPair();
+        }
+        return wrapWithKeyPair(key);
     }
 
     /**
@@ -145,9 +115,37 @@ public class VaultKeyWrapper {
      *
      * @param blob a wrapped {@link SecretKey} as previously returned by {@link #wrap(SecretKey)}.
      */
+    @Override
     public SecretKey unwrap(byte[] blob) throws GeneralSecurityException {
+        // the cached key reference may be stale (e.g. lockscreen changed), reload it once and retry.
+        // Depending on the platform version, the keystore reports this from init or from the operation,
+        // as an InvalidKeyException, an IllegalBlockSizeException or a ProviderException wrapping a KeyStoreException.
+        try {
+            return unwrapWithKeyPair(blob);
+        } catch (InvalidKeyException e) {
+            reloadKeyPair();
+        } catch (IllegalBlockSizeException e) {
+            reloadKeyPair();
+        } catch (ProviderException e) {
+            reloadKeyPair();
+        }
+        return unwrapWithKeyPair(blob);
+    }
+
+    private byte[] wrapWithKeyPair(SecretKey key) throws GeneralSecurityException {
+        final Cipher cipher = WRAP_CIPHERS.get();
+        cipher.init(Cipher.WRAP_MODE, keyPair.getPublic());
+        return cipher.wrap(key);
+    }
+
+    private SecretKey unwrapWithKeyPair(byte[] blob) throws GeneralSecurityException {
+        final Cipher cipher = UNWRAP_CIPHERS.get();
         cipher.init(Cipher.UNWRAP_MODE, keyPair.getPrivate());
         return (SecretKey) cipher.unwrap(blob, CIPHER_AES, Cipher.SECRET_KEY);
     }
 
-}
\ No newline at end of file
+    private void reloadKeyPair() throws GeneralSecurityException {
+        MasterKeyHolder.invalidate();
+        keyPair = MasterKeyHolder.getKeyPair(context);
+    }
+}